@@ -5,6 +5,9 @@
 #include "llamajava.h"
 #include "grammar-parser.h"
 #include <vector>
+#include <unordered_map>
+#include <algorithm>
+#include <cmath>
 #include <string>
 #include <iostream>
 #include <stdio.h>
@@ -40,11 +43,18 @@ struct llama_java_context {
     llama_context *llama_ctx;
     llama_context_params params;
     llama_grammar *grammar;
+    //grammar state of each sequence, copied from a compiled grammar
+    std::unordered_map<jint, llama_grammar *> grammars;
+    //sampling candidates, reused by each sampling call
+    std::vector<llama_token_data> candidates;
+    //draft model of speculative decoding, nullable
+    llama_java_context *draft;
 };
 
 static jint JNI_VERSION = JNI_VERSION_1_8;
 static jint DEFAULT_LOG_LEVEL = 1;
 
+//active context, several contexts can be loaded and switched by handle
 llama_java_context *main_ctx = nullptr;
 
 static void JLog_Print(log_level_type level, int line, const char *fmt, ...) {
@@ -132,6 +142,9 @@ static jfieldID FIELD_USE_MMAP;
 static jfieldID FIELD_USE_MLOCK;
 static jfieldID FIELD_CHECK_TENSORS;
 static jfieldID FIELD_NUMA_STRATEGY;
+static jfieldID FIELD_PROGRESS_CALLBACK;
+//Class DoubleConsumer
+static jmethodID MD_DOUBLE_CONSUMER_ACCEPT;
 //Class LlamaModelQuantizeParams
 static jclass LLAMA_MODEL_QUANTIZE_PARAMS_CLASS;
 static jmethodID MD_CONS_LLAMA_MODEL_QUANTIZE_PARAMS;
@@ -250,6 +263,12 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     FIELD_USE_MLOCK = env->GetFieldID(LLAMA_MODEL_PARAMS_CLASS, "mlock", "Z");
     FIELD_CHECK_TENSORS = env->GetFieldID(LLAMA_MODEL_PARAMS_CLASS, "checkTensors", "Z");
     FIELD_NUMA_STRATEGY = env->GetFieldID(LLAMA_MODEL_PARAMS_CLASS, "numaStrategy", "I");
+    FIELD_PROGRESS_CALLBACK = env->GetFieldID(LLAMA_MODEL_PARAMS_CLASS, "progressCallback", "Ljava/util/function/DoubleConsumer;");
+
+    //Class DoubleConsumer
+    temp_local_class_ref = env->FindClass("java/util/function/DoubleConsumer");
+    MD_DOUBLE_CONSUMER_ACCEPT = env->GetMethodID(temp_local_class_ref, "accept", "(D)V");
+    env->DeleteLocalRef(temp_local_class_ref);
 
     //Class LlamaModelQuantizeParams
     temp_local_class_ref = env->FindClass("chat/octet/model/beans/LlamaModelQuantizeParams");
@@ -405,26 +424,21 @@ JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_llamaBackendFree
     JLOG_INFO("Released backend resources.");
 }
 
-/*
- * Class:     chat_octet_model_LlamaService
- * Method:    loadLlamaModelFromFile
- */
-JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_loadLlamaModelFromFile
-        (JNIEnv *env, jclass thisClass, jstring jmodel_path, jobject jllama_model_params,
-         jobject jllama_context_params) {
-
-    if (main_ctx != nullptr) {
-        JLOG_WARN("Model already loaded, releasing resources.");
-        llama_kv_cache_clear(main_ctx->llama_ctx);
-        Java_chat_octet_model_LlamaService_release(env, thisClass);
-        Java_chat_octet_model_LlamaService_llamaBackendFree(env, thisClass);
-    }
-    llama_backend_init();
-    jint numa_strategy = env->GetIntField(jllama_model_params, FIELD_NUMA_STRATEGY);
-    llama_numa_init(static_cast<enum ggml_numa_strategy>(numa_strategy));
+//load progress callback, called in the loading thread
+struct java_progress_callback {
+    JNIEnv *env;
+    jobject callback;
+};
 
-    main_ctx = new llama_java_context();
+static bool Java_Progress_Callback(float progress, void *user_data) {
+    java_progress_callback *data = (java_progress_callback *) user_data;
+    data->env->CallVoidMethod(data->callback, MD_DOUBLE_CONSUMER_ACCEPT, (jdouble) progress);
+    //abort loading if the callback throws an exception
+    return !data->env->ExceptionCheck();
+}
 
+static llama_java_context *Create_Java_Context(JNIEnv *env, jstring jmodel_path, jobject jllama_model_params,
+                                               jobject jllama_context_params) {
     //init model
     float *tensor_split = nullptr;
     jfloatArray arrays_data = (jfloatArray) env->GetObjectField(jllama_model_params, FIELD_TENSOR_SPLIT);
@@ -446,19 +460,28 @@ JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_loadLlamaModelFromFile
             /*.use_mlock                   =*/ To_CBool(env->GetBooleanField(jllama_model_params, FIELD_USE_MLOCK)),
             /*.check_tensors               =*/ To_CBool(env->GetBooleanField(jllama_model_params, FIELD_CHECK_TENSORS)),
     };
-    if (arrays_data != nullptr) {
-        env->ReleaseFloatArrayElements(arrays_data, tensor_split, 0);
+    java_progress_callback progress_callback = {env, env->GetObjectField(jllama_model_params, FIELD_PROGRESS_CALLBACK)};
+    if (progress_callback.callback != nullptr) {
+        model_params.progress_callback = Java_Progress_Callback;
+        model_params.progress_callback_user_data = &progress_callback;
     }
 
     const char *model_path = env->GetStringUTFChars(jmodel_path, JNI_FALSE);
     llama_model *model = llama_load_model_from_file(model_path, model_params);
+    if (arrays_data != nullptr) {
+        env->ReleaseFloatArrayElements(arrays_data, tensor_split, 0);
+    }
 
     if (model == nullptr) {
-        env->ThrowNew(MODEL_EXCEPTION_CLASS, "Load model failed.");
-        return;
+        //keep the exception thrown by the progress callback
+        if (!env->ExceptionCheck()) {
+            env->ThrowNew(MODEL_EXCEPTION_CLASS, "Load model failed.");
+        }
+        env->ReleaseStringUTFChars(jmodel_path, model_path);
+        return nullptr;
     }
-    main_ctx->model = model;
     JLOG_DEBUG("Successfully loaded model file %s.", model_path);
+    env->ReleaseStringUTFChars(jmodel_path, model_path);
 
     //init llama context
     struct llama_context_params context_params = {
@@ -494,13 +517,68 @@ JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_loadLlamaModelFromFile
 
     llama_context *llama_ctx = llama_new_context_with_model(model, context_params);
     if (llama_ctx == nullptr) {
+        llama_free_model(model);
         env->ThrowNew(MODEL_EXCEPTION_CLASS, "Create llama context failed.");
-        return;
+        return nullptr;
     }
-    main_ctx->llama_ctx = llama_ctx;
-    main_ctx->params = context_params;
+    llama_java_context *java_ctx = new llama_java_context();
+    java_ctx->model = model;
+    java_ctx->llama_ctx = llama_ctx;
+    java_ctx->params = context_params;
+    java_ctx->grammar = nullptr;
+    java_ctx->draft = nullptr;
 
     JLOG_DEBUG("Successfully created llama context.");
+    return java_ctx;
+}
+
+static void Free_Java_Context(llama_java_context *java_ctx) {
+    if (java_ctx->draft != nullptr) {
+        Free_Java_Context(java_ctx->draft);
+        java_ctx->draft = nullptr;
+        JLOG_INFO("Successfully released draft model.");
+    }
+    if (java_ctx->grammar != nullptr) {
+        llama_grammar_free(java_ctx->grammar);
+        java_ctx->grammar = nullptr;
+        JLOG_INFO("Successfully released grammar.");
+    }
+    for (auto &entry: java_ctx->grammars) {
+        llama_grammar_free(entry.second);
+    }
+    java_ctx->grammars.clear();
+    if (java_ctx->llama_ctx != nullptr) {
+        llama_free(java_ctx->llama_ctx);
+        java_ctx->llama_ctx = nullptr;
+        JLOG_INFO("Successfully released llama context.");
+    }
+    if (java_ctx->model != nullptr) {
+        llama_free_model(java_ctx->model);
+        java_ctx->model = nullptr;
+        JLOG_INFO("Successfully released model.");
+    }
+    delete java_ctx;
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    loadLlamaModelFromFile
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_loadLlamaModelFromFile
+        (JNIEnv *env, jclass thisClass, jstring jmodel_path, jobject jllama_model_params,
+         jobject jllama_context_params) {
+
+    if (main_ctx != nullptr) {
+        JLOG_WARN("Model already loaded, releasing resources.");
+        llama_kv_cache_clear(main_ctx->llama_ctx);
+        Java_chat_octet_model_LlamaService_release(env, thisClass);
+        Java_chat_octet_model_LlamaService_llamaBackendFree(env, thisClass);
+    }
+    llama_backend_init();
+    jint numa_strategy = env->GetIntField(jllama_model_params, FIELD_NUMA_STRATEGY);
+    llama_numa_init(static_cast<enum ggml_numa_strategy>(numa_strategy));
+
+    main_ctx = Create_Java_Context(env, jmodel_path, jllama_model_params, jllama_context_params);
 }
 
 /*
@@ -513,22 +591,182 @@ JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_release
     UNUSED(thisClass);
     if (main_ctx == nullptr) return;
 
-    if (main_ctx->grammar != nullptr) {
-        llama_grammar_free(main_ctx->grammar);
-        main_ctx->grammar = nullptr;
-        JLOG_INFO("Successfully released grammar.");
+    Free_Java_Context(main_ctx);
+    main_ctx = nullptr;
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    loadLlamaModel
+ */
+JNIEXPORT jlong JNICALL Java_chat_octet_model_LlamaService_loadLlamaModel
+        (JNIEnv *env, jclass thisClass, jstring jmodel_path, jobject jllama_model_params,
+         jobject jllama_context_params) {
+    UNUSED(thisClass);
+    llama_backend_init();
+    jint numa_strategy = env->GetIntField(jllama_model_params, FIELD_NUMA_STRATEGY);
+    llama_numa_init(static_cast<enum ggml_numa_strategy>(numa_strategy));
+
+    //the loaded contexts are kept, the new context is activated by handle,
+    //so the active context keeps serving while the new model is loading
+    llama_java_context *java_ctx = Create_Java_Context(env, jmodel_path, jllama_model_params, jllama_context_params);
+    if (java_ctx == nullptr) return 0;
+    return (jlong) java_ctx;
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    activateLlamaModel
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_activateLlamaModel
+        (JNIEnv *env, jclass thisClass, jlong handle) {
+    UNUSED(env);
+    UNUSED(thisClass);
+    main_ctx = (llama_java_context *) handle;
+    JLOG_DEBUG("Switched active model, handle: %lld.", (long long) handle);
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    releaseLlamaModel
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_releaseLlamaModel
+        (JNIEnv *env, jclass thisClass, jlong handle) {
+    UNUSED(env);
+    UNUSED(thisClass);
+    llama_java_context *java_ctx = (llama_java_context *) handle;
+    if (java_ctx == nullptr) return;
+
+    if (java_ctx == main_ctx) {
+        main_ctx = nullptr;
     }
-    if (main_ctx->model != nullptr) {
-        llama_free_model(main_ctx->model);
-        main_ctx->model = nullptr;
-        JLOG_INFO("Successfully released model.");
+    Free_Java_Context(java_ctx);
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    loadDraftModelFromFile
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_loadDraftModelFromFile
+        (JNIEnv *env, jclass thisClass, jstring jmodel_path, jobject jllama_model_params,
+         jobject jllama_context_params) {
+    if (Check_Context_Is_Null(env)) return;
+
+    if (main_ctx->draft != nullptr) {
+        JLOG_WARN("Draft model already loaded, releasing resources.");
+        Java_chat_octet_model_LlamaService_releaseDraftModel(env, thisClass);
     }
-    if (main_ctx->llama_ctx != nullptr) {
-        llama_free(main_ctx->llama_ctx);
-        main_ctx->llama_ctx = nullptr;
-        JLOG_INFO("Successfully released llama context.");
+    llama_java_context *java_ctx = Create_Java_Context(env, jmodel_path, jllama_model_params, jllama_context_params);
+    if (java_ctx == nullptr) return;
+
+    //the draft tokens are verified by the main model, so both models must share the same vocabulary
+    if (llama_n_vocab(java_ctx->model) != llama_n_vocab(main_ctx->model)) {
+        Free_Java_Context(java_ctx);
+        env->ThrowNew(MODEL_EXCEPTION_CLASS, "The vocabulary of the draft model does not match the main model.");
+        return;
     }
-    main_ctx = nullptr;
+    main_ctx->draft = java_ctx;
+    JLOG_DEBUG("Successfully loaded draft model.");
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    releaseDraftModel
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_releaseDraftModel
+        (JNIEnv *env, jclass thisClass) {
+    UNUSED(env);
+    UNUSED(thisClass);
+    if (main_ctx == nullptr || main_ctx->draft == nullptr) return;
+
+    Free_Java_Context(main_ctx->draft);
+    main_ctx->draft = nullptr;
+    JLOG_INFO("Successfully released draft model.");
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    draftTokens
+ */
+JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_draftTokens
+        (JNIEnv *env, jclass thisClass, jint sequence_id, jintArray tokens_arrays, jint input_length,
+         jint past_token_size, jintArray draft_tokens_arrays, jint draft_size) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return -1;
+    llama_java_context *draft_ctx = main_ctx->draft;
+    if (draft_ctx == nullptr) {
+        env->ThrowNew(MODEL_EXCEPTION_CLASS, "Draft model is not loaded, please load draft model first.");
+        return -1;
+    }
+    if (input_length <= 0 || past_token_size >= input_length) return -1;
+
+    //remove the tokens which are rejected by the main model
+    llama_kv_cache_seq_rm(draft_ctx->llama_ctx, sequence_id, past_token_size, -1);
+
+    jint *tokens = env->GetIntArrayElements(tokens_arrays, JNI_FALSE);
+    const int n_batch = draft_ctx->params.n_batch;
+    int decode_status = 0;
+    int past_tokens = past_token_size;
+    while (past_tokens < input_length) {
+        int decode_size = std::min(input_length - past_tokens, n_batch);
+        llama_batch batch = llama_batch_init(decode_size, 0, 1);
+        for (int32_t i = 0; i < decode_size; i++) {
+            llama_batch_add(batch, tokens[past_tokens + i], past_tokens + i, {sequence_id}, past_tokens + i == input_length - 1);
+        }
+        decode_status = llama_decode(draft_ctx->llama_ctx, batch);
+        llama_batch_free(batch);
+        if (decode_status != 0) {
+            break;
+        }
+        past_tokens += decode_size;
+    }
+    env->ReleaseIntArrayElements(tokens_arrays, tokens, JNI_ABORT);
+    if (decode_status != 0) {
+        JLOG_ERROR("Failed to decode the draft model, sequence id: %d, return code: %d.", sequence_id, decode_status);
+        return -1;
+    }
+
+    //greedy drafting, the last draft token is not decoded
+    const int n_vocab = llama_n_vocab(draft_ctx->model);
+    jint *draft_tokens = env->GetIntArrayElements(draft_tokens_arrays, JNI_FALSE);
+    const jint size = std::min(draft_size, env->GetArrayLength(draft_tokens_arrays));
+    jint n_draft = 0;
+    while (n_draft < size) {
+        const float *logits = llama_get_logits_ith(draft_ctx->llama_ctx, -1);
+        llama_token token = 0;
+        for (llama_token token_id = 1; token_id < n_vocab; token_id++) {
+            if (logits[token_id] > logits[token]) {
+                token = token_id;
+            }
+        }
+        draft_tokens[n_draft++] = token;
+        if (n_draft == size || llama_token_is_eog(draft_ctx->model, token)) {
+            break;
+        }
+        llama_batch batch = llama_batch_init(1, 0, 1);
+        llama_batch_add(batch, token, input_length + n_draft - 1, {sequence_id}, true);
+        decode_status = llama_decode(draft_ctx->llama_ctx, batch);
+        llama_batch_free(batch);
+        if (decode_status != 0) {
+            break;
+        }
+    }
+    env->ReleaseIntArrayElements(draft_tokens_arrays, draft_tokens, 0);
+    JLOG_DEBUG("Draft tokens generated, sequence id: %d, draft size: %d.", sequence_id, n_draft);
+    return n_draft;
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    clearDraftCache
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_clearDraftCache
+        (JNIEnv *env, jclass thisClass, jint sequence_id) {
+    UNUSED(env);
+    UNUSED(thisClass);
+    if (main_ctx == nullptr || main_ctx->draft == nullptr) return;
+    llama_kv_cache_seq_rm(main_ctx->draft->llama_ctx, sequence_id, -1, -1);
+    JLOG_DEBUG("Draft KV cache removed, sequence id: %d.", sequence_id);
 }
 
 /*
@@ -602,6 +840,15 @@ JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_loadLoraModelFromFile
     return -1;
 }
 
+static float *Get_Logits(jint index) {
+    llama_context_params params = main_ctx->params;
+    int n_batch = params.n_batch;
+    if (index >= n_batch) {
+        index = index % n_batch;
+    }
+    return llama_get_logits_ith(main_ctx->llama_ctx, index);
+}
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    getLogits
@@ -611,18 +858,27 @@ JNIEXPORT jfloatArray JNICALL Java_chat_octet_model_LlamaService_getLogits
     UNUSED(thisClass);
     if (Check_Context_Is_Null(env)) return nullptr;
 
-    llama_context_params params = main_ctx->params;
-    int n_batch = params.n_batch;
-    if (index >= n_batch) {
-        index = index % n_batch;
-    }
-    float *logits = llama_get_logits_ith(main_ctx->llama_ctx, index);
+    float *logits = Get_Logits(index);
     const int vocab_size = llama_n_vocab(main_ctx->model);
     jfloatArray arrays = env->NewFloatArray(vocab_size);
     env->SetFloatArrayRegion(arrays, 0, vocab_size, logits);
     return arrays;
 }
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    getNativeLogits
+ */
+JNIEXPORT jobject JNICALL Java_chat_octet_model_LlamaService_getNativeLogits
+        (JNIEnv *env, jclass thisClass, jint index) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return nullptr;
+
+    float *logits = Get_Logits(index);
+    const int vocab_size = llama_n_vocab(main_ctx->model);
+    return env->NewDirectByteBuffer(logits, (jlong) vocab_size * (jlong) sizeof(float));
+}
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    getEmbedding
@@ -639,6 +895,78 @@ JNIEXPORT jfloatArray JNICALL Java_chat_octet_model_LlamaService_getEmbedding
     return arrays;
 }
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    getEmbeddingSize
+ */
+JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_getEmbeddingSize
+        (JNIEnv *env, jclass thisClass) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return -1;
+    return llama_n_embd(main_ctx->model);
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    batchEmbedding
+ */
+JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_batchEmbedding
+        (JNIEnv *env, jclass thisClass, jint sequence_id, jintArray tokens_arrays, jintArray lengths_arrays, jint size,
+         jfloatArray embeddings_arrays) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return -1;
+    if (size <= 0) return 0;
+
+    jint *tokens = env->GetIntArrayElements(tokens_arrays, JNI_FALSE);
+    jint *lengths = env->GetIntArrayElements(lengths_arrays, JNI_FALSE);
+    int n_tokens = 0;
+    for (int i = 0; i < size; i++) {
+        n_tokens += lengths[i];
+    }
+
+    //each input is decoded in its own sequence, the last token of each sequence outputs the embedding
+    llama_batch batch = llama_batch_init(n_tokens, 0, 1);
+    int offset = 0;
+    for (int i = 0; i < size; i++) {
+        llama_kv_cache_seq_rm(main_ctx->llama_ctx, sequence_id + i, -1, -1);
+        for (int j = 0; j < lengths[i]; j++) {
+            llama_batch_add(batch, tokens[offset + j], j, {sequence_id + i}, j == lengths[i] - 1);
+        }
+        offset += lengths[i];
+    }
+    JLOG_DEBUG("Start embedding batch decoding, sequences: %d, batch size: %d.", size, n_tokens);
+    int decode_status = llama_decode(main_ctx->llama_ctx, batch);
+
+    if (decode_status == 0) {
+        const int n_embd = llama_n_embd(main_ctx->model);
+        const bool pooling = llama_pooling_type(main_ctx->llama_ctx) != LLAMA_POOLING_TYPE_NONE;
+        jfloat *embeddings = env->GetFloatArrayElements(embeddings_arrays, JNI_FALSE);
+        offset = 0;
+        for (int i = 0; i < size; i++) {
+            offset += lengths[i];
+            //use the pooled embedding of the sequence, otherwise the embedding of the last token
+            const float *embd = pooling ? llama_get_embeddings_seq(main_ctx->llama_ctx, sequence_id + i)
+                                        : llama_get_embeddings_ith(main_ctx->llama_ctx, offset - 1);
+            if (embd == nullptr) {
+                JLOG_ERROR("Failed to get embeddings, sequence id: %d.", sequence_id + i);
+                decode_status = -1;
+                break;
+            }
+            std::copy(embd, embd + n_embd, embeddings + i * n_embd);
+        }
+        env->ReleaseFloatArrayElements(embeddings_arrays, embeddings, 0);
+    }
+
+    //clear all resources
+    for (int i = 0; i < size; i++) {
+        llama_kv_cache_seq_rm(main_ctx->llama_ctx, sequence_id + i, -1, -1);
+    }
+    llama_batch_free(batch);
+    env->ReleaseIntArrayElements(tokens_arrays, tokens, JNI_ABORT);
+    env->ReleaseIntArrayElements(lengths_arrays, lengths, JNI_ABORT);
+    return decode_status;
+}
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    getTokenAttr
@@ -661,18 +989,59 @@ JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_tokenize
     UNUSED(thisClass);
     if (Check_Context_Is_Null(env)) return -1;
     llama_token *tokens = (llama_token *) env->GetIntArrayElements(tokens_arrays, JNI_FALSE);
-
-    jbyte *buffer = new jbyte[buffer_length];
-    env->GetByteArrayRegion(buf, 0, buffer_length, buffer);
+    jbyte *buffer = env->GetByteArrayElements(buf, JNI_FALSE);
     const char *text = (char *) buffer;
 
     int code = llama_tokenize(main_ctx->model, text, buffer_length, tokens, maxTokens, To_CBool(add_special),
                               To_CBool(parse_special));
     env->ReleaseIntArrayElements(tokens_arrays, (jint *) tokens, 0);
-    env->ReleaseByteArrayElements(buf, buffer, 0);
+    env->ReleaseByteArrayElements(buf, buffer, JNI_ABORT);
     return code;
 }
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    tokenizeBatch
+ */
+JNIEXPORT jobjectArray JNICALL Java_chat_octet_model_LlamaService_tokenizeBatch
+        (JNIEnv *env, jclass thisClass, jobjectArray texts, jboolean add_special, jboolean parse_special) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return nullptr;
+
+    const jsize size = env->GetArrayLength(texts);
+    jobjectArray results = env->NewObjectArray(size, env->FindClass("[I"), nullptr);
+    std::vector<llama_token> tokens;
+    for (jsize i = 0; i < size; i++) {
+        jbyteArray text_array = (jbyteArray) env->GetObjectArrayElement(texts, i);
+        const jsize text_length = env->GetArrayLength(text_array);
+        jbyte *text = env->GetByteArrayElements(text_array, JNI_FALSE);
+
+        //each token covers at least one byte, plus the special tokens
+        tokens.resize(text_length + 2);
+        int n_tokens = llama_tokenize(main_ctx->model, (char *) text, text_length, tokens.data(), (int32_t) tokens.size(),
+                                      To_CBool(add_special), To_CBool(parse_special));
+        if (n_tokens < 0) {
+            tokens.resize(-n_tokens);
+            n_tokens = llama_tokenize(main_ctx->model, (char *) text, text_length, tokens.data(), (int32_t) tokens.size(),
+                                      To_CBool(add_special), To_CBool(parse_special));
+        }
+        env->ReleaseByteArrayElements(text_array, text, JNI_ABORT);
+        env->DeleteLocalRef(text_array);
+        if (n_tokens < 0) {
+            std::string msg = "Failed to tokenize, next_tokens: " + std::to_string(n_tokens);
+            env->ThrowNew(MODEL_EXCEPTION_CLASS, msg.c_str());
+            return nullptr;
+        }
+
+        jintArray result = env->NewIntArray(n_tokens);
+        env->SetIntArrayRegion(result, 0, n_tokens, tokens.data());
+        env->SetObjectArrayElement(results, i, result);
+        env->DeleteLocalRef(result);
+    }
+    JLOG_DEBUG("Batch tokenization completed, text size: %d.", size);
+    return results;
+}
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    tokenToPiece
@@ -682,12 +1051,50 @@ JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_tokenToPiece
     UNUSED(thisClass);
     if (Check_Context_Is_Null(env)) return -1;
 
-    jbyte *buffer = new jbyte[buffer_length];
+    jbyte *buffer = env->GetByteArrayElements(buf, JNI_FALSE);
     int size = llama_token_to_piece(main_ctx->model, token, (char *) buffer, buffer_length, lstrip_length, To_CBool(special));
     env->ReleaseByteArrayElements(buf, buffer, 0);
     return size;
 }
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    getTokenPieces
+ */
+JNIEXPORT jbyteArray JNICALL Java_chat_octet_model_LlamaService_getTokenPieces
+        (JNIEnv *env, jclass thisClass, jintArray offsets_array, jboolean special) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return nullptr;
+
+    const int n_vocab = llama_n_vocab(main_ctx->model);
+    if (env->GetArrayLength(offsets_array) < n_vocab + 1) {
+        env->ThrowNew(MODEL_EXCEPTION_CLASS, "Offsets array is smaller than the vocabulary size.");
+        return nullptr;
+    }
+    std::vector<char> pieces;
+    std::vector<jint> offsets(n_vocab + 1);
+    std::vector<char> piece(64);
+    pieces.reserve(n_vocab * 8);
+    for (llama_token token = 0; token < n_vocab; token++) {
+        offsets[token] = (jint) pieces.size();
+        int size = llama_token_to_piece(main_ctx->model, token, piece.data(), (int32_t) piece.size(), 0, To_CBool(special));
+        if (size < 0) {
+            piece.resize(-size);
+            size = llama_token_to_piece(main_ctx->model, token, piece.data(), (int32_t) piece.size(), 0, To_CBool(special));
+        }
+        if (size > 0) {
+            pieces.insert(pieces.end(), piece.data(), piece.data() + size);
+        }
+    }
+    offsets[n_vocab] = (jint) pieces.size();
+    env->SetIntArrayRegion(offsets_array, 0, n_vocab + 1, offsets.data());
+
+    jbyteArray result = env->NewByteArray((jsize) pieces.size());
+    env->SetByteArrayRegion(result, 0, (jsize) pieces.size(), (jbyte *) pieces.data());
+    JLOG_DEBUG("Token pieces created, vocab size: %d, bytes: %d.", n_vocab, (int) pieces.size());
+    return result;
+}
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    getSamplingMetrics
@@ -727,116 +1134,204 @@ JNIEXPORT jstring JNICALL Java_chat_octet_model_LlamaService_getSystemInfo
     return env->NewStringUTF(system_info);
 }
 
-/*
- * Class:     chat_octet_model_LlamaService
- * Method:    sampling
- */
-JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_sampling
-        (JNIEnv *env,
-         jclass thisClass,
-         jfloatArray jlogits,
-         jintArray last_tokens_array,
-         jint last_tokens_size,
-         jfloat penalty,
-         jfloat alpha_frequency,
-         jfloat alpha_presence,
-         jboolean penalize_nl,
-         jint mirostat_mode,
-         jfloat mirostat_tau,
-         jfloat mirostat_eta,
-         jfloat temperature,
-         jint top_k,
-         jfloat top_p,
-         jfloat tsf,
-         jfloat typical,
-         jfloat min_p,
-         jfloat dynatemp_range,
-         jfloat dynatemp_exponent,
-         jint sequence_id,
-         jint past_token_size) {
-
-    UNUSED(thisClass);
-    if (Check_Context_Is_Null(env)) return -1;
+static llama_token_data_array Prepare_Candidates(JNIEnv *env,
+                                                 jfloatArray jlogits,
+                                                 const float *native_logits,
+                                                 jintArray last_tokens_array,
+                                                 jint last_tokens_offset,
+                                                 jint last_tokens_size,
+                                                 jfloat penalty,
+                                                 jfloat alpha_frequency,
+                                                 jfloat alpha_presence,
+                                                 jboolean penalize_nl) {
 
-    float *logits = env->GetFloatArrayElements(jlogits, JNI_FALSE);
     const int n_vocab = llama_n_vocab(main_ctx->model);
     const int token_nl = llama_token_nl(main_ctx->model);
-    const float nl_logit = logits[token_nl];
-    const int32_t final_top_k = top_k <= 0 ? n_vocab : top_k;
 
-    std::vector <llama_token_data> candidates;
-    candidates.reserve(n_vocab);
+    //read the logits in place, the array is not modified and no need to copy back
+    const float *logits = native_logits != nullptr ? native_logits : (float *) env->GetPrimitiveArrayCritical(jlogits, nullptr);
+    const float nl_logit = logits[token_nl];
+    std::vector<llama_token_data> &candidates = main_ctx->candidates;
+    candidates.resize(n_vocab);
     for (llama_token token_id = 0; token_id < n_vocab; token_id++) {
-        llama_token_data data = {token_id, logits[token_id], 0.0f};
-        candidates.emplace_back(data);
+        candidates[token_id] = {token_id, logits[token_id], 0.0f};
+    }
+    if (native_logits == nullptr) {
+        env->ReleasePrimitiveArrayCritical(jlogits, (void *) logits, JNI_ABORT);
     }
     llama_token_data_array candidates_p = {candidates.data(), candidates.size(), false};
 
     if (last_tokens_array != nullptr) {
-        llama_token *last_tokens = (llama_token *) env->GetIntArrayElements(last_tokens_array, JNI_FALSE);
+        const jint length = env->GetArrayLength(last_tokens_array);
+        const jint offset = std::max(0, std::min(last_tokens_offset, length));
+        const jint size = std::max(0, std::min(last_tokens_size, length - offset));
+        llama_token *last_tokens = (llama_token *) env->GetPrimitiveArrayCritical(last_tokens_array, nullptr);
 
         //repetition penalty
         llama_sample_repetition_penalties(main_ctx->llama_ctx,
                                           &candidates_p,
-                                          last_tokens,
-                                          last_tokens_size,
+                                          last_tokens + offset,
+                                          size,
                                           penalty,
                                           alpha_frequency,
                                           alpha_presence);
-        env->ReleaseIntArrayElements(last_tokens_array, (jint *) last_tokens, 0);
+        env->ReleasePrimitiveArrayCritical(last_tokens_array, last_tokens, JNI_ABORT);
     }
 
     if (!penalize_nl) {
         candidates_p.data[token_nl].logit = nl_logit;
     }
+    return candidates_p;
+}
 
-    if (main_ctx->grammar != nullptr) {
-        llama_grammar_sample(main_ctx->grammar, main_ctx->llama_ctx, &candidates_p);
-    }
+static llama_token Sample_Candidates(llama_token_data_array *candidates_p,
+                                     jint mirostat_mode,
+                                     jfloat mirostat_tau,
+                                     jfloat mirostat_eta,
+                                     jfloat temperature,
+                                     jint top_k,
+                                     jfloat top_p,
+                                     jfloat tsf,
+                                     jfloat typical,
+                                     jfloat min_p,
+                                     jfloat dynatemp_range,
+                                     jfloat dynatemp_exponent) {
+
+    const int n_vocab = llama_n_vocab(main_ctx->model);
+    const int32_t final_top_k = top_k <= 0 ? n_vocab : top_k;
 
     llama_token token;
     if (temperature <= 0) {
-        token = llama_sample_token_greedy(main_ctx->llama_ctx, &candidates_p);
+        token = llama_sample_token_greedy(main_ctx->llama_ctx, candidates_p);
     } else {
         if (mirostat_mode == 1) {
             const int mirostat_m = 100;
             static float final_mirostat_mu = 2.0f * mirostat_tau;
-            llama_sample_temp(main_ctx->llama_ctx, &candidates_p, temperature);
-            token = llama_sample_token_mirostat(main_ctx->llama_ctx, &candidates_p, mirostat_tau, mirostat_eta, mirostat_m, &final_mirostat_mu);
+            llama_sample_temp(main_ctx->llama_ctx, candidates_p, temperature);
+            token = llama_sample_token_mirostat(main_ctx->llama_ctx, candidates_p, mirostat_tau, mirostat_eta, mirostat_m, &final_mirostat_mu);
         } else if (mirostat_mode == 2) {
             static float final_mirostat_mu = 2.0f * mirostat_tau;
-            llama_sample_temp(main_ctx->llama_ctx, &candidates_p, temperature);
-            token = llama_sample_token_mirostat_v2(main_ctx->llama_ctx, &candidates_p, mirostat_tau, mirostat_eta, &final_mirostat_mu);
+            llama_sample_temp(main_ctx->llama_ctx, candidates_p, temperature);
+            token = llama_sample_token_mirostat_v2(main_ctx->llama_ctx, candidates_p, mirostat_tau, mirostat_eta, &final_mirostat_mu);
         } else {
-            llama_sample_top_k(main_ctx->llama_ctx, &candidates_p, final_top_k, 1);
-            llama_sample_tail_free(main_ctx->llama_ctx, &candidates_p, tsf, 1);
-            llama_sample_typical(main_ctx->llama_ctx, &candidates_p, typical, 1);
-            llama_sample_top_p(main_ctx->llama_ctx, &candidates_p, top_p, 1);
-            llama_sample_min_p(main_ctx->llama_ctx, &candidates_p, min_p, 1);
+            llama_sample_top_k(main_ctx->llama_ctx, candidates_p, final_top_k, 1);
+            llama_sample_tail_free(main_ctx->llama_ctx, candidates_p, tsf, 1);
+            llama_sample_typical(main_ctx->llama_ctx, candidates_p, typical, 1);
+            llama_sample_top_p(main_ctx->llama_ctx, candidates_p, top_p, 1);
+            llama_sample_min_p(main_ctx->llama_ctx, candidates_p, min_p, 1);
             if (dynatemp_range > 0) {
                 float dynatemp_min = std::max(0.0f, temperature - dynatemp_range);
                 float dynatemp_max = std::max(0.0f, temperature + dynatemp_range);
-                llama_sample_entropy(main_ctx->llama_ctx, &candidates_p, dynatemp_min, dynatemp_max, dynatemp_exponent);
+                llama_sample_entropy(main_ctx->llama_ctx, candidates_p, dynatemp_min, dynatemp_max, dynatemp_exponent);
             } else {
-                llama_sample_temp(main_ctx->llama_ctx, &candidates_p, temperature);
+                llama_sample_temp(main_ctx->llama_ctx, candidates_p, temperature);
             }
-            token = llama_sample_token(main_ctx->llama_ctx, &candidates_p);
+            token = llama_sample_token(main_ctx->llama_ctx, candidates_p);
         }
     }
+    return token;
+}
 
-    if (main_ctx->grammar != nullptr) {
-        llama_grammar_accept_token(main_ctx->grammar, main_ctx->llama_ctx, token);
+static llama_grammar *Get_Sequence_Grammar(jint sequence_id) {
+    auto entry = main_ctx->grammars.find(sequence_id);
+    return entry != main_ctx->grammars.end() ? entry->second : nullptr;
+}
+
+static llama_token Sample_Token(JNIEnv *env,
+                                jfloatArray jlogits,
+                                const float *native_logits,
+                                jintArray last_tokens_array,
+                                jint last_tokens_offset,
+                                jint last_tokens_size,
+                                jfloat penalty,
+                                jfloat alpha_frequency,
+                                jfloat alpha_presence,
+                                jboolean penalize_nl,
+                                jint mirostat_mode,
+                                jfloat mirostat_tau,
+                                jfloat mirostat_eta,
+                                jfloat temperature,
+                                jint top_k,
+                                jfloat top_p,
+                                jfloat tsf,
+                                jfloat typical,
+                                jfloat min_p,
+                                jfloat dynatemp_range,
+                                jfloat dynatemp_exponent,
+                                llama_grammar *grammar) {
+
+    llama_token_data_array candidates_p = Prepare_Candidates(env, jlogits, native_logits, last_tokens_array, last_tokens_offset,
+                                                             last_tokens_size, penalty, alpha_frequency, alpha_presence, penalize_nl);
+    //mirostat updates mu with each sampled token, so the token is sampled only once with the grammar applied
+    const bool mirostat = temperature > 0 && (mirostat_mode == 1 || mirostat_mode == 2);
+    if (grammar != nullptr && mirostat) {
+        llama_grammar_sample(grammar, main_ctx->llama_ctx, &candidates_p);
+    }
+    llama_token token = Sample_Candidates(&candidates_p, mirostat_mode, mirostat_tau, mirostat_eta, temperature,
+                                          top_k, top_p, tsf, typical, min_p, dynatemp_range, dynatemp_exponent);
+    if (grammar == nullptr) {
+        return token;
     }
 
+    //check the sampled token first, the grammar is applied to the whole vocabulary only if the token is rejected
+    llama_token_data sampled = {token, 1.0f, 0.0f};
+    llama_token_data_array sampled_p = {&sampled, 1, false};
+    if (!mirostat) {
+        llama_grammar_sample(grammar, main_ctx->llama_ctx, &sampled_p);
+    }
+    if (sampled.logit == -INFINITY) {
+        candidates_p = Prepare_Candidates(env, jlogits, native_logits, last_tokens_array, last_tokens_offset,
+                                          last_tokens_size, penalty, alpha_frequency, alpha_presence, penalize_nl);
+        llama_grammar_sample(grammar, main_ctx->llama_ctx, &candidates_p);
+        token = Sample_Candidates(&candidates_p, mirostat_mode, mirostat_tau, mirostat_eta, temperature,
+                                  top_k, top_p, tsf, typical, min_p, dynatemp_range, dynatemp_exponent);
+    }
+    llama_grammar_accept_token(grammar, main_ctx->llama_ctx, token);
+    return token;
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    sampling
+ */
+JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_sampling
+        (JNIEnv *env,
+         jclass thisClass,
+         jfloatArray jlogits,
+         jintArray last_tokens_array,
+         jint last_tokens_size,
+         jfloat penalty,
+         jfloat alpha_frequency,
+         jfloat alpha_presence,
+         jboolean penalize_nl,
+         jint mirostat_mode,
+         jfloat mirostat_tau,
+         jfloat mirostat_eta,
+         jfloat temperature,
+         jint top_k,
+         jfloat top_p,
+         jfloat tsf,
+         jfloat typical,
+         jfloat min_p,
+         jfloat dynatemp_range,
+         jfloat dynatemp_exponent,
+         jint sequence_id,
+         jint past_token_size) {
+
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return -1;
+
+    llama_token token = Sample_Token(env, jlogits, nullptr, last_tokens_array, 0, last_tokens_size, penalty, alpha_frequency,
+                                     alpha_presence, penalize_nl, mirostat_mode, mirostat_tau, mirostat_eta,
+                                     temperature, top_k, top_p, tsf, typical, min_p, dynatemp_range, dynatemp_exponent,
+                                     Get_Sequence_Grammar(sequence_id));
+
     //decode the next new token
     llama_batch batch = llama_batch_init(1, 0, 1);
     llama_batch_add(batch, token, past_token_size, {sequence_id}, true);
     int decode_status = llama_decode(main_ctx->llama_ctx, batch);
     llama_batch_free(batch);
 
-    //clear all resources
-    env->ReleaseFloatArrayElements(jlogits, logits, 0);
-
     //check decode status
     if (decode_status != 0) {
         std::string msg = "Failed to decode, return code: " + std::to_string(decode_status);
@@ -845,6 +1340,43 @@ JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_sampling
     return token;
 }
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    sampleLogits
+ */
+JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_sampleLogits
+        (JNIEnv *env,
+         jclass thisClass,
+         jint sequence_id,
+         jint logits_index,
+         jintArray last_tokens_array,
+         jint last_tokens_offset,
+         jint last_tokens_size,
+         jfloat penalty,
+         jfloat alpha_frequency,
+         jfloat alpha_presence,
+         jboolean penalize_nl,
+         jint mirostat_mode,
+         jfloat mirostat_tau,
+         jfloat mirostat_eta,
+         jfloat temperature,
+         jint top_k,
+         jfloat top_p,
+         jfloat tsf,
+         jfloat typical,
+         jfloat min_p,
+         jfloat dynatemp_range,
+         jfloat dynatemp_exponent) {
+
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return -1;
+
+    return Sample_Token(env, nullptr, Get_Logits(logits_index), last_tokens_array, last_tokens_offset, last_tokens_size,
+                        penalty, alpha_frequency, alpha_presence, penalize_nl, mirostat_mode, mirostat_tau, mirostat_eta,
+                        temperature, top_k, top_p, tsf, typical, min_p, dynatemp_range, dynatemp_exponent,
+                        Get_Sequence_Grammar(sequence_id));
+}
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    loadLlamaGrammar
@@ -875,6 +1407,63 @@ JNIEXPORT jboolean JNICALL Java_chat_octet_model_LlamaService_loadLlamaGrammar
     return status;
 }
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    compileGrammar
+ */
+JNIEXPORT jlong JNICALL Java_chat_octet_model_LlamaService_compileGrammar
+        (JNIEnv *env, jclass thisClass, jstring grammar_rules_text) {
+    UNUSED(thisClass);
+    if (grammar_rules_text == nullptr) return 0;
+
+    const char *grammar_chars = env->GetStringUTFChars(grammar_rules_text, JNI_FALSE);
+    grammar_parser::parse_state parsed_grammar = grammar_parser::parse(grammar_chars);
+    env->ReleaseStringUTFChars(grammar_rules_text, grammar_chars);
+
+    auto root = parsed_grammar.symbol_ids.find("root");
+    if (parsed_grammar.rules.empty() || root == parsed_grammar.symbol_ids.end()) {
+        return 0;
+    }
+    //the grammar copies the rules, the parsed state is not needed after initialization
+    std::vector<const llama_grammar_element *> grammar_rules(parsed_grammar.c_rules());
+    llama_grammar *grammar = llama_grammar_init(grammar_rules.data(), grammar_rules.size(), root->second);
+    JLOG_DEBUG("Grammar rules compiled, rules count: %d.", grammar_rules.size());
+    return reinterpret_cast<jlong>(grammar);
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    freeGrammar
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_freeGrammar
+        (JNIEnv *env, jclass thisClass, jlong handle) {
+    UNUSED(env);
+    UNUSED(thisClass);
+    if (handle == 0) return;
+    llama_grammar_free(reinterpret_cast<llama_grammar *>(handle));
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    attachGrammar
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_attachGrammar
+        (JNIEnv *env, jclass thisClass, jint sequence_id, jlong handle) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return;
+
+    auto entry = main_ctx->grammars.find(sequence_id);
+    if (entry != main_ctx->grammars.end()) {
+        llama_grammar_free(entry->second);
+        main_ctx->grammars.erase(entry);
+    }
+    if (handle != 0) {
+        //the compiled grammar is the initial state, each sequence matches on its own copy
+        main_ctx->grammars[sequence_id] = llama_grammar_copy(reinterpret_cast<llama_grammar *>(handle));
+        JLOG_DEBUG("Grammar attached, sequence id: %d.", sequence_id);
+    }
+}
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    batchDecode
@@ -930,6 +1519,37 @@ JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_batchDecode
     return decode_status;
 }
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    batchDecodeTokens
+ */
+JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_batchDecodeTokens
+        (JNIEnv *env, jclass thisClass, jintArray sequence_ids_arrays, jintArray tokens_arrays,
+         jintArray positions_arrays, jint size) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return -1;
+    if (size <= 0) return 0;
+
+    jint *sequence_ids = env->GetIntArrayElements(sequence_ids_arrays, JNI_FALSE);
+    jint *tokens = env->GetIntArrayElements(tokens_arrays, JNI_FALSE);
+    jint *positions = env->GetIntArrayElements(positions_arrays, JNI_FALSE);
+
+    //one token per sequence, all of them request logits
+    llama_batch batch = llama_batch_init(size, 0, 1);
+    for (int32_t i = 0; i < size; i++) {
+        llama_batch_add(batch, tokens[i], positions[i], {sequence_ids[i]}, true);
+    }
+    JLOG_DEBUG("Start multiple sequences batch decoding, batch size: %d.", size);
+    int decode_status = llama_decode(main_ctx->llama_ctx, batch);
+    llama_batch_free(batch);
+
+    //clear all resources
+    env->ReleaseIntArrayElements(sequence_ids_arrays, sequence_ids, JNI_ABORT);
+    env->ReleaseIntArrayElements(tokens_arrays, tokens, JNI_ABORT);
+    env->ReleaseIntArrayElements(positions_arrays, positions, JNI_ABORT);
+    return decode_status;
+}
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    clearCache
@@ -942,6 +1562,83 @@ JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_clearCache
     JLOG_DEBUG("KV cache removed, sequence id: %d, pos start: %d, pos end: %d.", sequence_id, pos_start, pos_end);
 }
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    shiftCache
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_shiftCache
+        (JNIEnv *env, jclass thisClass, jint sequence_id, jint pos_start, jint pos_end, jint delta) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return;
+    //the RoPE of the shifted cells is updated in the next decoding
+    llama_kv_cache_seq_add(main_ctx->llama_ctx, sequence_id, pos_start, pos_end, delta);
+    JLOG_DEBUG("KV cache shifted, sequence id: %d, pos start: %d, pos end: %d, delta: %d.", sequence_id, pos_start, pos_end, delta);
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    copyCache
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_copyCache
+        (JNIEnv *env, jclass thisClass, jint src_sequence_id, jint dst_sequence_id, jint pos_start, jint pos_end) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return;
+    llama_kv_cache_seq_cp(main_ctx->llama_ctx, src_sequence_id, dst_sequence_id, pos_start, pos_end);
+    JLOG_DEBUG("KV cache copied, source sequence id: %d, target sequence id: %d, pos start: %d, pos end: %d.",
+               src_sequence_id, dst_sequence_id, pos_start, pos_end);
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    getStateSize
+ */
+JNIEXPORT jlong JNICALL Java_chat_octet_model_LlamaService_getStateSize
+        (JNIEnv *env, jclass thisClass, jint sequence_id) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return 0;
+    return (jlong) llama_state_seq_get_size(main_ctx->llama_ctx, sequence_id);
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    saveState
+ */
+JNIEXPORT jlong JNICALL Java_chat_octet_model_LlamaService_saveState
+        (JNIEnv *env, jclass thisClass, jint sequence_id, jobject buffer) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return 0;
+
+    auto *dst = (uint8_t *) env->GetDirectBufferAddress(buffer);
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+    if (dst == nullptr || capacity <= 0) {
+        JLOG_ERROR("Invalid state buffer, a direct buffer is required.");
+        return 0;
+    }
+    size_t size = llama_state_seq_get_data(main_ctx->llama_ctx, dst, (size_t) capacity, sequence_id);
+    JLOG_DEBUG("Sequence state saved, sequence id: %d, state size: %zu.", sequence_id, size);
+    return (jlong) size;
+}
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    loadState
+ */
+JNIEXPORT jlong JNICALL Java_chat_octet_model_LlamaService_loadState
+        (JNIEnv *env, jclass thisClass, jint sequence_id, jobject buffer) {
+    UNUSED(thisClass);
+    if (Check_Context_Is_Null(env)) return 0;
+
+    auto *src = (const uint8_t *) env->GetDirectBufferAddress(buffer);
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+    if (src == nullptr || capacity <= 0) {
+        JLOG_ERROR("Invalid state buffer, a direct buffer is required.");
+        return 0;
+    }
+    size_t size = llama_state_seq_set_data(main_ctx->llama_ctx, src, (size_t) capacity, sequence_id);
+    JLOG_DEBUG("Sequence state loaded, sequence id: %d, state size: %zu.", sequence_id, size);
+    return (jlong) size;
+}
+
 /*
  * Class:     chat_octet_model_LlamaServicen
  * Method:    llamaModelQuantize
@@ -57,6 +57,55 @@ JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_loadLlamaModelFromFile
 JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_release
         (JNIEnv *, jclass);
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    loadLlamaModel
+ */
+JNIEXPORT jlong JNICALL Java_chat_octet_model_LlamaService_loadLlamaModel
+        (JNIEnv *, jclass, jstring, jobject, jobject);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    activateLlamaModel
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_activateLlamaModel
+        (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    releaseLlamaModel
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_releaseLlamaModel
+        (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    loadDraftModelFromFile
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_loadDraftModelFromFile
+        (JNIEnv *, jclass, jstring, jobject, jobject);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    releaseDraftModel
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_releaseDraftModel
+        (JNIEnv *, jclass);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    draftTokens
+ */
+JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_draftTokens
+        (JNIEnv *, jclass, jint, jintArray, jint, jint, jintArray, jint);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    clearDraftCache
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_clearDraftCache
+        (JNIEnv *, jclass, jint);
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    isMmapSupported
@@ -106,6 +155,13 @@ JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_loadLoraModelFromFile
 JNIEXPORT jfloatArray JNICALL Java_chat_octet_model_LlamaService_getLogits
         (JNIEnv *, jclass, jint);
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    getNativeLogits
+ */
+JNIEXPORT jobject JNICALL Java_chat_octet_model_LlamaService_getNativeLogits
+        (JNIEnv *, jclass, jint);
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    getEmbedding
@@ -113,6 +169,20 @@ JNIEXPORT jfloatArray JNICALL Java_chat_octet_model_LlamaService_getLogits
 JNIEXPORT jfloatArray JNICALL Java_chat_octet_model_LlamaService_getEmbedding
         (JNIEnv *, jclass);
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    getEmbeddingSize
+ */
+JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_getEmbeddingSize
+        (JNIEnv *, jclass);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    batchEmbedding
+ */
+JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_batchEmbedding
+        (JNIEnv *, jclass, jint, jintArray, jintArray, jint, jfloatArray);
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    getTokenAttr
@@ -127,6 +197,13 @@ JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_getTokenAttr
 JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_tokenize
         (JNIEnv *, jclass, jbyteArray, jint, jintArray, jint, jboolean, jboolean);
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    tokenizeBatch
+ */
+JNIEXPORT jobjectArray JNICALL Java_chat_octet_model_LlamaService_tokenizeBatch
+        (JNIEnv *, jclass, jobjectArray, jboolean, jboolean);
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    tokenToPiece
@@ -134,6 +211,13 @@ JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_tokenize
 JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_tokenToPiece
         (JNIEnv *, jclass, jint, jbyteArray, jint, jint, jboolean);
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    getTokenPieces
+ */
+JNIEXPORT jbyteArray JNICALL Java_chat_octet_model_LlamaService_getTokenPieces
+        (JNIEnv *, jclass, jintArray, jboolean);
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    getSamplingMetrics
@@ -156,6 +240,14 @@ JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_sampling
         (JNIEnv *, jclass, jfloatArray, jintArray, jint, jfloat, jfloat, jfloat, jboolean, jint, jfloat,
          jfloat, jfloat, jint, jfloat, jfloat, jfloat, jfloat, jfloat, jfloat, jint, jint);
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    sampleLogits
+ */
+JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_sampleLogits
+        (JNIEnv *, jclass, jint, jint, jintArray, jint, jint, jfloat, jfloat, jfloat, jboolean, jint, jfloat,
+         jfloat, jfloat, jint, jfloat, jfloat, jfloat, jfloat, jfloat, jfloat);
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    loadLlamaGrammar
@@ -163,6 +255,27 @@ JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_sampling
 JNIEXPORT jboolean JNICALL Java_chat_octet_model_LlamaService_loadLlamaGrammar
         (JNIEnv *, jclass, jstring);
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    compileGrammar
+ */
+JNIEXPORT jlong JNICALL Java_chat_octet_model_LlamaService_compileGrammar
+        (JNIEnv *, jclass, jstring);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    freeGrammar
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_freeGrammar
+        (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    attachGrammar
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_attachGrammar
+        (JNIEnv *, jclass, jint, jlong);
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    batchDecode
@@ -170,6 +283,13 @@ JNIEXPORT jboolean JNICALL Java_chat_octet_model_LlamaService_loadLlamaGrammar
 JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_batchDecode
         (JNIEnv *, jclass, jint, jintArray, jint, jint);
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    batchDecodeTokens
+ */
+JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_batchDecodeTokens
+        (JNIEnv *, jclass, jintArray, jintArray, jintArray, jint);
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    clearCache
@@ -177,6 +297,41 @@ JNIEXPORT jint JNICALL Java_chat_octet_model_LlamaService_batchDecode
 JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_clearCache
         (JNIEnv *, jclass, jint, jint, jint);
 
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    shiftCache
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_shiftCache
+        (JNIEnv *, jclass, jint, jint, jint, jint);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    copyCache
+ */
+JNIEXPORT void JNICALL Java_chat_octet_model_LlamaService_copyCache
+        (JNIEnv *, jclass, jint, jint, jint, jint);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    getStateSize
+ */
+JNIEXPORT jlong JNICALL Java_chat_octet_model_LlamaService_getStateSize
+        (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    saveState
+ */
+JNIEXPORT jlong JNICALL Java_chat_octet_model_LlamaService_saveState
+        (JNIEnv *, jclass, jint, jobject);
+
+/*
+ * Class:     chat_octet_model_LlamaService
+ * Method:    loadState
+ */
+JNIEXPORT jlong JNICALL Java_chat_octet_model_LlamaService_loadState
+        (JNIEnv *, jclass, jint, jobject);
+
 /*
  * Class:     chat_octet_model_LlamaService
  * Method:    llamaModelQuantize
@@ -0,0 +1,422 @@
+package chat.octet.model;
+
+import chat.octet.model.beans.Status;
+import chat.octet.model.beans.Token;
+import chat.octet.model.exceptions.DecodeException;
+import chat.octet.model.exceptions.GenerationException;
+import com.google.common.collect.Lists;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nonnull;
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Continuous batch scheduler,
+ * Admits multiple generators at the same time and decodes the next token of all running sequences in one batch.
+ * <p>All the model inference of the scheduled generators is executed in the scheduler thread,
+ * the generated tokens are streamed back to each generator iterator.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Slf4j
+public class BatchScheduler implements AutoCloseable {
+    private final int maxSequences;
+    private final LinkedList<Task> waitingTasks = Lists.newLinkedList();
+    private final List<Task> runningTasks = Lists.newArrayList();
+    private final List<Runnable> pendingActions = Lists.newArrayList();
+    private final int[] sequenceIds;
+    private final int[] tokens;
+    private final int[] positions;
+    private final Thread worker;
+    private volatile boolean closed;
+
+    /**
+     * Create continuous batch scheduler.
+     *
+     * @param maxSequences Maximum number of sequences decoded in one batch.
+     */
+    public BatchScheduler(int maxSequences) {
+        this.maxSequences = Math.max(1, maxSequences);
+        this.sequenceIds = new int[this.maxSequences];
+        this.tokens = new int[this.maxSequences];
+        this.positions = new int[this.maxSequences];
+        this.worker = new Thread(this::run, "llama-batch-scheduler");
+        this.worker.setDaemon(true);
+        this.worker.start();
+        log.info("Continuous batch scheduler started, max sequences: {}.", this.maxSequences);
+    }
+
+    /**
+     * Submit a generator to the scheduler.
+     *
+     * @param generator Inference generator.
+     * @return Task, the token iterator of the generator.
+     */
+    protected Task submit(Generator generator) {
+        Task task = new Task(this, generator);
+        synchronized (this) {
+            if (closed) {
+                throw new GenerationException("Batch scheduler is closed");
+            }
+            waitingTasks.add(task);
+            notifyAll();
+        }
+        return task;
+    }
+
+    /**
+     * Execute an action in the scheduler thread before the next batch,
+     * used to modify the context cache without interfering with the running generations.
+     * If the scheduler is closed, the action is executed immediately.
+     *
+     * @param action Action.
+     */
+    public void execute(Runnable action) {
+        synchronized (this) {
+            if (!closed) {
+                pendingActions.add(action);
+                notifyAll();
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Number of generators waiting to be admitted.
+     *
+     * @return int
+     */
+    public synchronized int getWaitingSize() {
+        return waitingTasks.size();
+    }
+
+    /**
+     * Number of generators in progress.
+     *
+     * @return int
+     */
+    public synchronized int getRunningSize() {
+        return runningTasks.size();
+    }
+
+    private void run() {
+        while (true) {
+            synchronized (this) {
+                while (!closed && waitingTasks.isEmpty() && runningTasks.isEmpty() && pendingActions.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        closed = true;
+                    }
+                }
+                if (closed) {
+                    break;
+                }
+            }
+            try {
+                runPendingActions();
+                admit();
+                step();
+            } catch (Exception e) {
+                log.error("Batch scheduler error ", e);
+                List<Task> tasks;
+                synchronized (this) {
+                    tasks = Lists.newArrayList(runningTasks);
+                    runningTasks.clear();
+                }
+                tasks.forEach(task -> task.fail(e));
+            }
+        }
+        List<Task> tasks;
+        synchronized (this) {
+            tasks = Lists.newArrayList(waitingTasks);
+            tasks.addAll(runningTasks);
+            waitingTasks.clear();
+            runningTasks.clear();
+        }
+        tasks.forEach(task -> task.fail(new GenerationException("Batch scheduler is closed")));
+        runPendingActions();
+        log.info("Continuous batch scheduler stopped.");
+    }
+
+    private void runPendingActions() {
+        List<Runnable> actions;
+        synchronized (this) {
+            if (pendingActions.isEmpty()) {
+                return;
+            }
+            actions = Lists.newArrayList(pendingActions);
+            pendingActions.clear();
+        }
+        for (Runnable action : actions) {
+            try {
+                action.run();
+            } catch (Exception e) {
+                log.error("Batch scheduler action error ", e);
+            }
+        }
+    }
+
+    /**
+     * Admit the waiting generators, decode the prompt and sample the first token.
+     * A sequence can only be running once at the same time.
+     * <p>The prompt is prepared before the admission, it waits until the running sequences leave enough context
+     * for the tokens that are not decoded yet.</p>
+     */
+    private void admit() {
+        while (runningTasks.size() < maxSequences) {
+            Task task = null;
+            synchronized (this) {
+                for (Task t : waitingTasks) {
+                    if (t.cancelled || !isRunning(t.getStatus().getId())) {
+                        task = t;
+                        //the prepared task is completed by the scheduler thread, the context cache is modified
+                        task.admitted = true;
+                        break;
+                    }
+                }
+            }
+            if (task == null) {
+                return;
+            }
+            if (task.cancelled) {
+                removeWaiting(task);
+                task.complete();
+                continue;
+            }
+            try {
+                Generator.Inference inference = task.generator.getInference();
+                inference.prepare();
+                Status status = inference.getStatus();
+                if (getUsedTokenSize() + status.getInputLength() - status.getPastTokenSize() > status.getContextSize()) {
+                    return;
+                }
+                removeWaiting(task);
+                inference.prefill();
+                task.emit(inference.next(inference.getLogitsIndex(), false));
+                synchronized (this) {
+                    runningTasks.add(task);
+                }
+            } catch (Exception e) {
+                removeWaiting(task);
+                task.fail(e);
+            }
+        }
+    }
+
+    private synchronized boolean removeWaiting(Task task) {
+        return waitingTasks.remove(task);
+    }
+
+    /**
+     * Remove the waiting task that is not prepared yet, the prepared task is completed by the scheduler thread.
+     */
+    private synchronized boolean removeWaitingTask(Task task) {
+        return !task.admitted && waitingTasks.remove(task);
+    }
+
+    private int getUsedTokenSize() {
+        int size = 0;
+        for (Task task : runningTasks) {
+            size += task.getStatus().getPastTokenSize();
+        }
+        return size;
+    }
+
+    private boolean isRunning(int sequenceId) {
+        for (Task task : runningTasks) {
+            if (task.getStatus().getId() == sequenceId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode the last sampled token of all running sequences in one batch,
+     * then sample the next token for the unfinished sequences.
+     * If no K-V cache slot is free, the newest sequence is preempted and the batch is decoded again.
+     */
+    private void step() {
+        int size;
+        int decodeStatus;
+        do {
+            size = runningTasks.size();
+            if (size == 0) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                Status status = runningTasks.get(i).getStatus();
+                sequenceIds[i] = status.getId();
+                tokens[i] = status.getInputIds()[status.getInputLength() - 1];
+                positions[i] = status.getPastTokenSize() - 1;
+            }
+            decodeStatus = LlamaService.batchDecodeTokens(sequenceIds, tokens, positions, size);
+            if (decodeStatus == 1) {
+                preempt();
+            }
+        } while (decodeStatus == 1);
+        if (decodeStatus != 0) {
+            throw new DecodeException(MessageFormat.format("Failed to decode, return code: {0}.", decodeStatus));
+        }
+        List<Task> finishedTasks = Lists.newArrayList();
+        for (int i = 0; i < size; i++) {
+            Task task = runningTasks.get(i);
+            Generator.Inference inference = task.generator.getInference();
+            if (task.cancelled || !inference.hasNext()) {
+                finishedTasks.add(task);
+                continue;
+            }
+            try {
+                task.emit(inference.next(i, false));
+            } catch (Exception e) {
+                task.error(e);
+                finishedTasks.add(task);
+            }
+        }
+        synchronized (this) {
+            runningTasks.removeAll(finishedTasks);
+        }
+        finishedTasks.forEach(Task::complete);
+    }
+
+    /**
+     * Terminate the newest running generation to release its K-V cache cells,
+     * the context cache of the failed generation is cleared.
+     */
+    private void preempt() {
+        Task task;
+        synchronized (this) {
+            task = runningTasks.remove(runningTasks.size() - 1);
+        }
+        log.warn("No free K-V cache slot for the batch, preempt the generation, sequence id: {}.", task.getStatus().getId());
+        task.fail(new DecodeException("No free K-V cache slot, the generation is preempted."));
+    }
+
+    /**
+     * Close the scheduler, all the waiting and running generators will be terminated.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Scheduled generation task, streams the generated tokens to the consumer.
+     */
+    protected static class Task implements Iterator<Token> {
+        private static final Object END_OF_STREAM = new Object();
+        private final BatchScheduler scheduler;
+        private final Generator generator;
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        private final CountDownLatch terminated = new CountDownLatch(1);
+        private volatile boolean cancelled;
+        private volatile boolean admitted;
+        private volatile boolean failed;
+        private Object nextElement;
+
+        protected Task(BatchScheduler scheduler, Generator generator) {
+            this.scheduler = scheduler;
+            this.generator = generator;
+        }
+
+        private Status getStatus() {
+            return generator.getInference().getStatus();
+        }
+
+        private void emit(Token token) {
+            queue.add(token);
+        }
+
+        private void complete() {
+            try {
+                //the status is untouched if the task has never been admitted
+                if (admitted) {
+                    generator.release(failed);
+                }
+            } catch (Exception e) {
+                log.error("Release generation status error ", e);
+            } finally {
+                queue.add(END_OF_STREAM);
+                terminated.countDown();
+            }
+        }
+
+        private void error(Throwable e) {
+            failed = true;
+            queue.add(e);
+        }
+
+        private void fail(Throwable e) {
+            error(e);
+            complete();
+        }
+
+        /**
+         * Cancel the generation, it will be stopped before the next batch.
+         */
+        protected void cancel() {
+            cancelled = true;
+            if (scheduler.removeWaitingTask(this)) {
+                complete();
+            }
+        }
+
+        /**
+         * Wait until the scheduler releases the generation status.
+         */
+        protected void awaitTermination() {
+            try {
+                terminated.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextElement == null) {
+                try {
+                    nextElement = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GenerationException("Generation is interrupted", e);
+                }
+            }
+            if (nextElement instanceof Throwable e) {
+                nextElement = END_OF_STREAM;
+                throw new GenerationException("Generate next token error ", e);
+            }
+            return nextElement != END_OF_STREAM;
+        }
+
+        @Nonnull
+        @Override
+        public Token next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Token token = (Token) nextElement;
+            nextElement = null;
+            return token;
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package chat.octet.model;
+
+import chat.octet.model.exceptions.ModelException;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Embedding cache,
+ * Caches the embeddings by the SHA-256 hash of the text, so the repeated texts are not decoded again.
+ * <p>The cache is a direct-mapped table of fixed size slots, a slot is overwritten by the newer text with the same slot index.
+ * The table is kept in off-heap memory, or memory-mapped to a file and reused after restart.</p>
+ * <p>File layout: header, slots of [text hash, embedding].</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Slf4j
+public class EmbeddingCache {
+    private static final int MAGIC = 0x4F43454D;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int KEY_SIZE = 16;
+
+    private final int capacity;
+    private final int embeddingSize;
+    private final int slotSize;
+    private final ByteBuffer buffer;
+    private long hits;
+    private long misses;
+
+    /**
+     * Create embedding cache.
+     *
+     * @param capacity      Maximum number of cached embeddings.
+     * @param embeddingSize Embedding size of the model.
+     * @param path          Cache file path, use off-heap memory if it is blank.
+     * @param fingerprint   Model fingerprint, the cache file of other models is cleared.
+     */
+    public EmbeddingCache(int capacity, int embeddingSize, String path, int fingerprint) {
+        this.embeddingSize = embeddingSize;
+        this.slotSize = KEY_SIZE + Float.BYTES * embeddingSize;
+        //a buffer cannot exceed 2GB
+        this.capacity = Math.max(1, Math.min(capacity, (Integer.MAX_VALUE - HEADER_SIZE) / slotSize));
+        long size = HEADER_SIZE + (long) this.capacity * slotSize;
+        if (path == null || path.isBlank()) {
+            this.buffer = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+        } else {
+            this.buffer = map(Paths.get(path), size).order(ByteOrder.nativeOrder());
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != fingerprint
+                || buffer.getInt(12) != embeddingSize || buffer.getInt(16) != this.capacity) {
+            //the memory of a new file is filled with zeros, only the existing slots are cleared
+            for (int i = 0; i < this.capacity; i++) {
+                buffer.putLong(slotOffset(i), 0).putLong(slotOffset(i) + Long.BYTES, 0);
+            }
+            buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, fingerprint).putInt(12, embeddingSize).putInt(16, this.capacity);
+        }
+        log.info("Embedding cache created, capacity: {}, file: {}.", this.capacity, path);
+    }
+
+    private static MappedByteBuffer map(Path file, long size) {
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (channel.size() != size) {
+                    channel.truncate(0);
+                }
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        } catch (IOException e) {
+            throw new ModelException("Failed to map embedding cache file: " + file, e);
+        }
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    /**
+     * Get the cached embedding of the text.
+     *
+     * @param text Input text.
+     * @return float[], Returns null if not cached.
+     */
+    public synchronized float[] get(String text) {
+        ByteBuffer key = ByteBuffer.wrap(Hashing.sha256().hashString(text, StandardCharsets.UTF_8).asBytes());
+        long key1 = key.getLong(0);
+        long key2 = key.getLong(Long.BYTES);
+        int offset = slotOffset(slot(key1));
+        if (buffer.getLong(offset) != key1 || buffer.getLong(offset + Long.BYTES) != key2) {
+            misses++;
+            return null;
+        }
+        float[] embedding = new float[embeddingSize];
+        buffer.slice(offset + KEY_SIZE, Float.BYTES * embeddingSize).order(buffer.order()).asFloatBuffer().get(embedding);
+        hits++;
+        return embedding;
+    }
+
+    /**
+     * Cache the embedding of the text.
+     *
+     * @param text      Input text.
+     * @param embedding Embedding of the text.
+     */
+    public synchronized void put(String text, float[] embedding) {
+        ByteBuffer key = ByteBuffer.wrap(Hashing.sha256().hashString(text, StandardCharsets.UTF_8).asBytes());
+        long key1 = key.getLong(0);
+        long key2 = key.getLong(Long.BYTES);
+        int offset = slotOffset(slot(key1));
+        buffer.slice(offset + KEY_SIZE, Float.BYTES * embeddingSize).order(buffer.order()).asFloatBuffer().put(embedding, 0, embeddingSize);
+        buffer.putLong(offset, key1).putLong(offset + Long.BYTES, key2);
+    }
+
+    private int slot(long key) {
+        return (int) Math.floorMod(key, (long) capacity);
+    }
+
+    /**
+     * Flush the memory-mapped cache file.
+     */
+    public synchronized void flush() {
+        if (buffer instanceof MappedByteBuffer mapped) {
+            mapped.force();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits: " + hits + ", misses: " + misses;
+    }
+
+}
@@ -3,19 +3,28 @@ package chat.octet.model;
 import chat.octet.model.beans.CompletionResult;
 import chat.octet.model.beans.Status;
 import chat.octet.model.beans.Token;
+import chat.octet.model.components.criteria.impl.StoppingWordCriteria;
+import chat.octet.model.components.sampler.SamplerChain;
+import chat.octet.model.components.speculative.DraftModelProposer;
+import chat.octet.model.components.speculative.DraftProposer;
+import chat.octet.model.components.speculative.PromptLookupProposer;
 import chat.octet.model.enums.FinishReason;
 import chat.octet.model.exceptions.DecodeException;
 import chat.octet.model.exceptions.GenerationException;
 import chat.octet.model.parameters.GenerateParameter;
 import chat.octet.model.utils.ColorConsole;
+import chat.octet.model.utils.Utf8StreamDecoder;
 import com.google.common.collect.Lists;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.annotation.Nonnull;
-import java.nio.charset.StandardCharsets;
+import java.nio.FloatBuffer;
 import java.text.MessageFormat;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
@@ -30,6 +39,7 @@ import java.util.Optional;
 public class Generator implements Iterable<Token> {
     private final Inference inference;
     private final Status chatStatus;
+    private final BatchScheduler.Task task;
 
     /**
      * Create inference generator.
@@ -39,8 +49,32 @@ public class Generator implements Iterable<Token> {
      * @param chatStatus     Source status.
      */
     public Generator(GenerateParameter generateParams, String prompt, Status chatStatus) {
+        this(generateParams, prompt, chatStatus, null, null, false);
+    }
+
+    /**
+     * Create inference generator.
+     * <p>If the batch scheduler is specified, the generator is submitted to the scheduler,
+     * the prompt decoding and token generation will be executed by the scheduler.</p>
+     *
+     * @param generateParams Specify a generation parameter.
+     * @param prompt         Prompt text.
+     * @param chatStatus     Source status.
+     * @param scheduler      Continuous batch scheduler, nullable.
+     * @param prefixCache    Prompt prefix cache, nullable.
+     * @param draftModel     Use the loaded draft model for speculative decoding.
+     */
+    protected Generator(GenerateParameter generateParams, String prompt, Status chatStatus, BatchScheduler scheduler, PrefixCache prefixCache, boolean draftModel) {
         this.chatStatus = chatStatus;
-        this.inference = new Inference(generateParams, prompt, chatStatus);
+        //speculative decoding is only used if the generator is not scheduled
+        DraftProposer proposer = scheduler == null ? createDraftProposer(generateParams, draftModel) : null;
+        this.inference = new Inference(generateParams, prompt, chatStatus, prefixCache, proposer);
+        if (scheduler != null) {
+            this.task = scheduler.submit(this);
+        } else {
+            this.inference.prefill();
+            this.task = null;
+        }
     }
 
     /**
@@ -53,6 +87,24 @@ public class Generator implements Iterable<Token> {
         this(generateParams, prompt, null);
     }
 
+    /**
+     * Create the draft proposer of speculative decoding,
+     * prompt lookup is preferred if it is enabled, otherwise the draft model is used if it is loaded.
+     *
+     * @param generateParams Specify a generation parameter.
+     * @param draftModel     The draft model is loaded.
+     * @return DraftProposer, Returns null if speculative decoding is disabled.
+     */
+    private static DraftProposer createDraftProposer(GenerateParameter generateParams, boolean draftModel) {
+        if (generateParams.getDraftTokenSize() <= 0) {
+            return null;
+        }
+        if (generateParams.getPromptLookupNgramSize() > 0) {
+            return new PromptLookupProposer(generateParams.getPromptLookupNgramSize());
+        }
+        return draftModel ? new DraftModelProposer() : null;
+    }
+
     /**
      * Return inference iterator.
      *
@@ -61,7 +113,7 @@ public class Generator implements Iterable<Token> {
     @Nonnull
     @Override
     public Iterator<Token> iterator() {
-        return inference;
+        return task != null ? task : inference;
     }
 
     /**
@@ -117,28 +169,78 @@ public class Generator implements Iterable<Token> {
 
     /**
      * Close inference generator.
+     * <p>If the generator is scheduled, the generation will be cancelled and the resources are released by the scheduler.</p>
      */
     public void close() {
-        if (chatStatus != null && inference.isSessionCache()) {
+        if (task != null) {
+            task.cancel();
+            task.awaitTermination();
+        } else {
+            release();
+        }
+    }
+
+    /**
+     * Release the generation status, save it into the session or clear the context cache.
+     */
+    protected void release() {
+        release(false);
+    }
+
+    /**
+     * Release the generation status, save it into the session or clear the context cache.
+     *
+     * @param failed The generation is failed, the status may be partly decoded and is not saved into the session.
+     */
+    protected void release(boolean failed) {
+        inference.complete();
+        if (chatStatus != null && inference.isSessionCache() && !failed) {
+            inference.appendGeneratedText();
             chatStatus.copyToStatus(inference.getStatus());
         } else {
             inference.clearCache();
+            if (chatStatus != null && inference.isSessionCache()) {
+                //the session does not match the cleared context cache
+                chatStatus.reset();
+            }
         }
     }
 
+    protected Inference getInference() {
+        return inference;
+    }
+
     /**
      * Iterator-based inference implementation.
      */
-    private static class Inference implements Iterator<Token> {
+    protected static class Inference implements Iterator<Token> {
         private final GenerateParameter generateParams;
         private final Status status;
-        private final byte[] multiByteTokenBuffer;
-        private final int maxNewTokenSize;
+        private final Utf8StreamDecoder textDecoder;
         private final int contextSize;
-        private final int promptTokens;
-        private int multiByteTokenLength;
-        private int multiByteTokenIndex;
+        private final PrefixCache prefixCache;
+        private final SamplerChain samplerChain;
+        private final SpeculativeDecoder speculativeDecoder;
+        private final Deque<Token> speculativeTokens;
+        private final boolean contextShift;
+        //stopping words are matched on the text stream, null if no stopping word
+        private final StoppingWordCriteria.Matcher stoppingWordMatcher;
+        //position of the generated token which is not decoded yet, -1 if not exists
+        private int undecodedPosition = -1;
+        //reusable buffers of each inference step
+        private byte[] pieceBuffer;
+        private final int[] decodeSequenceIds;
+        private final int[] decodeTokens;
+        private final int[] decodePositions;
+        private int prefillLogitsIndex;
         private boolean finished = false;
+        //the prompt is tokenized and appended to the status when the sequence is admitted
+        private final String finalPrompt;
+        private final boolean incremental;
+        private int[] promptTokenIds;
+        private boolean prepared;
+        private int promptTokens;
+        private int maxNewTokenSize;
 
         /**
          * Create inference iterator.
@@ -146,12 +248,33 @@ public class Generator implements Iterable<Token> {
          * @param generateParams Specify a generation parameter.
          * @param prompt         Prompt
          * @param srcStatus      Source status.
+         * @param prefixCache    Prompt prefix cache, nullable.
+         * @param proposer       Draft proposer of speculative decoding, nullable.
          */
-        protected Inference(GenerateParameter generateParams, String prompt, Status srcStatus) {
+        protected Inference(GenerateParameter generateParams, String prompt, Status srcStatus, PrefixCache prefixCache, DraftProposer proposer) {
             this.generateParams = generateParams;
-            this.multiByteTokenBuffer = new byte[8];
+            this.prefixCache = prefixCache;
+            this.textDecoder = new Utf8StreamDecoder();
+            //grammar rules are only supported by the native sampling
+            this.samplerChain = generateParams.isJavaSampling() && StringUtils.isBlank(generateParams.getGrammarRules()) ?
+                    new SamplerChain(generateParams, LlamaService.getVocabSize(), LlamaService.getNlToken()) : null;
             this.contextSize = LlamaService.getContextSize();
             this.status = srcStatus == null ? new Status() : new Status(srcStatus);
+            this.pieceBuffer = new byte[64];
+            this.decodeSequenceIds = new int[]{this.status.getId()};
+            this.decodeTokens = new int[1];
+            this.decodePositions = new int[1];
+            this.speculativeDecoder = proposer != null ?
+                    new SpeculativeDecoder(this.status.getId(), generateParams.getDraftTokenSize(), proposer) : null;
+            this.speculativeTokens = new ArrayDeque<>();
+            //the positions of the draft tokens are not shifted, and the cells shared with the prefix cache cannot be shifted
+            //the context of the prompt is shifted when the generator is prepared, not in the caller thread
+            this.contextShift = generateParams.isContextShift() && proposer == null && prefixCache == null;
+            if (generateParams.getKeepTokenSize() >= 0) {
+                this.status.setKeepTokenSize(generateParams.getKeepTokenSize());
+            }
+            this.stoppingWordMatcher = ArrayUtils.isNotEmpty(generateParams.getStoppingWord()) ?
+                    StoppingWordCriteria.of(generateParams.getStoppingWord()).newMatcher() : null;
 
             //format prompt text
             String bosToken = StringUtils.EMPTY;
@@ -181,23 +304,56 @@ public class Generator implements Iterable<Token> {
                 log.info("Final prompt text:\n{}", finalPrompt);
             }
 
-            //prompt tokenization
-            int[] tokens = StringUtils.isNotBlank(prompt) ? LlamaService.tokenize(finalPrompt, false, true) : new int[]{LlamaService.getBosToken()};
-            this.promptTokens = tokens.length;
+            //the incremental prompt only tokenizes the text after the cached tokens of the session when it is prepared
+            this.finalPrompt = finalPrompt;
+            this.incremental = generateParams.isIncrementalPrompt() && srcStatus != null && StringUtils.isNotBlank(prompt);
+            if (!incremental) {
+                this.promptTokenIds = tokenizePrompt(StringUtils.isNotBlank(prompt));
+            }
+        }
+
+        private int[] tokenizePrompt(boolean notBlank) {
+            int[] tokens = notBlank ? LlamaService.tokenize(finalPrompt, false, true) : new int[]{LlamaService.getBosToken()};
             if (tokens.length >= contextSize) {
                 throw new IllegalArgumentException(MessageFormat.format("Requested tokens ({0}) exceed context window of {1}.", tokens.length, contextSize));
             }
-            this.status.appendTokens(tokens);
+            return tokens;
+        }
 
-            this.maxNewTokenSize = (generateParams.getMaxNewTokenSize() <= 0) ? contextSize - this.status.getInputLength() : generateParams.getMaxNewTokenSize();
-            if (StringUtils.isNotBlank(generateParams.getGrammarRules())) {
-                boolean status = LlamaService.loadLlamaGrammar(generateParams.getGrammarRules());
-                if (!status) {
-                    log.error("Grammar rule parsing failed, Please check the grammar rule format.");
+        /**
+         * Append the prompt tokens to the status, the cached tokens that do not match the prompt are removed.
+         * <p>The context cache of the sequence is modified, so a scheduled generator is prepared by the scheduler thread
+         * when it is admitted. It is prepared only once.</p>
+         */
+        protected void prepare() {
+            if (prepared) {
+                return;
+            }
+            prepared = true;
+            //restore the K-V cache of the session from the snapshot, the cached tokens are matched with the restored cache
+            if (status.getSnapshot() != null) {
+                SessionSnapshot.restore(status);
+            }
+            //prompt tokenization, the incremental prompt only tokenizes the text after the cached tokens of the session
+            String promptText = incremental ? status.retainPrefix(finalPrompt) : null;
+            int[] tokens = promptText != null ? LlamaService.tokenize(promptText, false, true) : promptTokenIds;
+            if (tokens == null || (promptText != null && status.getInputLength() + tokens.length >= contextSize
+                    && !(contextShift && status.shift(status.getInputLength() + tokens.length - contextSize + 1)))) {
+                if (incremental && status.getInputLength() > 0) {
+                    log.debug("Cached tokens do not match the prompt, prefill the session again, sequence id: {}.", status.getId());
+                    status.reset();
                 }
+                promptText = finalPrompt;
+                tokens = tokenizePrompt(true);
+            } else if (incremental) {
+                log.debug("Incremental prompt, cached token size: {}, new token size: {}.", status.getInputLength(), tokens.length);
             }
-            log.debug("Inference starting, input token size: {}, past token size: {}.", tokens.length, this.status.getPastTokenSize());
-            batchDecode();
+            this.promptTokens = tokens.length;
+            status.appendTokens(tokens, contextShift);
+            if (incremental) {
+                status.appendText(promptText, status.getInputLength());
+            }
+            this.maxNewTokenSize = (generateParams.getMaxNewTokenSize() <= 0) ? contextSize - status.getInputLength() : generateParams.getMaxNewTokenSize();
         }
 
         /**
@@ -207,7 +363,39 @@ public class Generator implements Iterable<Token> {
          * @param text           Input text or prompt.
          */
         protected Inference(GenerateParameter generateParams, String text) {
-            this(generateParams, text, null);
+            this(generateParams, text, null, null, null);
+        }
+
+        /**
+         * Attach the grammar rules and batch decoding the prompt tokens.
+         */
+        protected void prefill() {
+            prepare();
+            boolean grammar = StringUtils.isNotBlank(generateParams.getGrammarRules());
+            if (grammar) {
+                //the compiled grammar is cached and attached to this sequence only
+                if (!GrammarCache.attach(status.getId(), generateParams.getGrammarRules())) {
+                    log.error("Grammar rule parsing failed, Please check the grammar rule format.");
+                }
+            }
+            try {
+                //reuse the longest cached prompt prefix, at least one token is decoded to get the logits
+                boolean fullPrompt = prefixCache != null && status.getPastTokenSize() == 0;
+                if (fullPrompt) {
+                    status.addPastTokensSize(prefixCache.reuse(status.getId(), status.getInputIds(), status.getInputLength() - 1));
+                }
+                log.debug("Inference starting, input token size: {}, past token size: {}.", promptTokens, status.getPastTokenSize());
+                batchDecode();
+                if (fullPrompt) {
+                    prefixCache.put(status.getId(), status.getInputIds(), status.getInputLength());
+                }
+            } catch (RuntimeException e) {
+                //the generation is never completed, so the grammar is detached here
+                if (grammar) {
+                    GrammarCache.detach(status.getId());
+                }
+                throw e;
+            }
         }
 
         protected Status getStatus() {
@@ -222,6 +410,24 @@ public class Generator implements Iterable<Token> {
             return generateParams.isSessionCache();
         }
 
+        /**
+         * Append the text of the generated tokens for the incremental prompt of the next turn,
+         * the end of generation token can be removed if it is not in the next prompt.
+         */
+        protected void appendGeneratedText() {
+            if (!generateParams.isIncrementalPrompt() || status.getCachedText() == null || status.getGenerateTokens().isEmpty()) {
+                return;
+            }
+            int[] tokens = status.getGenerateTokens().stream().mapToInt(Token::getId).toArray();
+            int inputLength = status.getInputLength();
+            if (LlamaService.isEndOfGeneration(tokens[tokens.length - 1])) {
+                status.appendText(TokenDecoder.decodeToken(true, Arrays.copyOf(tokens, tokens.length - 1)), inputLength - 1);
+                status.appendText(TokenDecoder.decodeToken(true, tokens[tokens.length - 1]), inputLength);
+            } else {
+                status.appendText(TokenDecoder.decodeToken(true, tokens), inputLength);
+            }
+        }
+
         private String formatPromptInfill(String prompt) {
             StringBuilder buffer = new StringBuilder(prompt);
             // prefix token
@@ -257,8 +463,8 @@ public class Generator implements Iterable<Token> {
         }
 
 
-        private int getLogitsIndex() {
-            return status.getGenerateTokens().isEmpty() ? promptTokens - 1 : 0;
+        protected int getLogitsIndex() {
+            return status.getGenerateTokens().isEmpty() ? prefillLogitsIndex : 0;
         }
 
         /**
@@ -267,11 +473,19 @@ public class Generator implements Iterable<Token> {
         private void batchDecode() {
             //batch decode input tokens
             int decodeStatus = LlamaService.batchDecode(status.getId(), status.getInputIds(), status.getInputLength(), status.getPastTokenSize());
+            if (decodeStatus == 1 && prefixCache != null && !prefixCache.isEmpty()) {
+                //no free K-V cache slot, release the cached prompts and try again
+                log.warn("No free K-V cache slot for the prompt, clear prefix cache and try again, sequence id: {}.", status.getId());
+                prefixCache.clear();
+                LlamaService.clearCache(status.getId(), status.getPastTokenSize(), contextSize);
+                decodeStatus = LlamaService.batchDecode(status.getId(), status.getInputIds(), status.getInputLength(), status.getPastTokenSize());
+            }
             if (decodeStatus != 0) {
                 throw new DecodeException(MessageFormat.format("Failed to decode, return code: {0}.", decodeStatus));
             }
             int size = status.getInputLength() - status.getPastTokenSize();
             status.addPastTokensSize(size);
+            prefillLogitsIndex = size - 1;
             log.debug("Batch decoding prompt completed, sequence id: {}, decode token size: {}.", status.getId(), size);
         }
 
@@ -282,11 +496,15 @@ public class Generator implements Iterable<Token> {
          * @param logits Logits.
          * @return boolean
          */
-        private boolean breakOrContinue(Token token, float[] logits) {
+        private boolean breakOrContinue(Token token, FloatBuffer logits) {
             if (LlamaService.isEndOfGeneration(token.getId())) {
                 token.updateFinishReason(FinishReason.FINISHED);
                 return true;
             }
+            if (stoppingWordMatcher != null && stoppingWordMatcher.isMatched()) {
+                token.updateFinishReason(FinishReason.STOP);
+                return true;
+            }
             if (!generateParams.getStoppingCriteriaList().isEmpty()) {
                 boolean matched = generateParams.getStoppingCriteriaList().criteria(status.getInputIds(), logits, status.getGenerateTokens());
                 if (matched) {
@@ -295,6 +513,9 @@ public class Generator implements Iterable<Token> {
                 }
             }
             if (status.getInputLength() >= contextSize) {
+                if (contextShift && status.shift(1)) {
+                    return false;
+                }
                 token.updateFinishReason(FinishReason.TRUNCATED);
                 log.warn("Context size has been exceeded. Truncate and reset the context cache, sequence id: {}.", status.getId());
                 return true;
@@ -307,26 +528,21 @@ public class Generator implements Iterable<Token> {
         }
 
         /**
-         * Append multibyte token buffer
+         * Emit the held back text with the last token.
          *
-         * @param buffer Byte buffer
-         * @param length Byte buffer length
-         * @return String, Token text.
+         * @param token Last token.
+         * @return Token
          */
-        private String appendMultiByteTokenBuffer(byte[] buffer, int length) {
-            System.arraycopy(buffer, 0, multiByteTokenBuffer, multiByteTokenIndex, length);
-            multiByteTokenIndex += length;
-            if (multiByteTokenIndex >= multiByteTokenLength) {
-                String text = new String(multiByteTokenBuffer, 0, multiByteTokenLength, StandardCharsets.UTF_8);
-                multiByteTokenIndex = 0;
-                multiByteTokenLength = 0;
-                Arrays.fill(multiByteTokenBuffer, (byte) 0);
-                return text;
-            }
-            return StringUtils.EMPTY;
+        private Token flushStoppingWord(Token token) {
+            String text = stoppingWordMatcher.flush();
+            if (text.isEmpty()) {
+                return token;
+            }
+            Token last = new Token(token.getId(), token.getTokenAttr(), token.getText() + text, token.getFinishReason());
+            status.getGenerateTokens().set(status.getGenerateTokens().size() - 1, last);
+            return last;
         }
 
-
         /**
          * Converts the specified token id to text.
          *
@@ -334,29 +550,18 @@ public class Generator implements Iterable<Token> {
          * @return String
          */
         private String tokenToText(int token) {
-            byte[] buffer = new byte[64];
-            int length = LlamaService.tokenToPiece(token, buffer, buffer.length, 0, generateParams.isSpecial());
-            if (length == 0) {
-                return StringUtils.EMPTY;
-            }
-
-            if (multiByteTokenLength > 0) {
-                return appendMultiByteTokenBuffer(buffer, length);
-            }
-
-            int byteLength = TokenDecoder.getByteLength(buffer, length);
-            if (byteLength != length) {
-                multiByteTokenIndex = 0;
-                multiByteTokenLength = byteLength;
-                return appendMultiByteTokenBuffer(buffer, length);
-            } else {
-                return new String(buffer, 0, length, StandardCharsets.UTF_8);
+            int length = TokenDecoder.getPiece(generateParams.isSpecial(), token, pieceBuffer);
+            if (length < 0) {
+                pieceBuffer = new byte[-length];
+                length = TokenDecoder.getPiece(generateParams.isSpecial(), token, pieceBuffer);
             }
+            //a character may be split across several tokens, only complete characters are returned
+            return textDecoder.decode(pieceBuffer, 0, length);
         }
 
         @Override
         public boolean hasNext() {
-            return !finished;
+            return !finished || !speculativeTokens.isEmpty();
         }
 
         /**
@@ -367,25 +572,121 @@ public class Generator implements Iterable<Token> {
          */
         @Override
         public Token next() {
-            float[] logits = LlamaService.getLogits(getLogitsIndex());
+            if (speculativeDecoder == null) {
+                return next(getLogitsIndex(), true);
+            }
+            if (speculativeTokens.isEmpty()) {
+                speculate();
+            }
+            return speculativeTokens.poll();
+        }
+
+        /**
+         * Speculative decoding, the last generated token and the draft tokens are decoded in one batch,
+         * the generated tokens are accepted until the first token that differs from the draft token.
+         */
+        private void speculate() {
+            if (undecodedPosition < 0) {
+                //the first token is sampled from the prompt logits
+                speculativeTokens.add(next(getLogitsIndex(), false));
+                undecodedPosition = status.getPastTokenSize() - 1;
+            } else {
+                int maxSize = Math.min(contextSize - status.getInputLength(), maxNewTokenSize - status.getGenerateTokens().size()) - 1;
+                int draftSize = speculativeDecoder.draft(status, maxSize);
+                int acceptedSize = 0;
+                boolean accepted;
+                do {
+                    Token token = next(acceptedSize, false);
+                    speculativeTokens.add(token);
+                    accepted = token.getId() == speculativeDecoder.getDraftToken(acceptedSize);
+                    if (accepted) {
+                        acceptedSize++;
+                    }
+                } while (accepted && !finished);
+                speculativeDecoder.accept(acceptedSize, contextSize);
+                undecodedPosition = accepted ? -1 : undecodedPosition + acceptedSize + 1;
+                log.debug("Speculative decoding step, sequence id: {}, draft size: {}, accepted size: {}.", status.getId(), draftSize, acceptedSize);
+            }
+            if (finished) {
+                complete();
+            }
+        }
+
+        /**
+         * Detach the grammar, decode the generated token which is not decoded yet and release the draft proposer,
+         * so that the context cache is consistent with the generation status.
+         */
+        protected void complete() {
+            if (StringUtils.isNotBlank(generateParams.getGrammarRules())) {
+                GrammarCache.detach(status.getId());
+            }
+            if (speculativeDecoder == null) {
+                return;
+            }
+            if (undecodedPosition >= 0) {
+                decodeNextToken(status.getInputIds()[undecodedPosition], undecodedPosition);
+                undecodedPosition = -1;
+            }
+            speculativeDecoder.release(status);
+        }
+
+        /**
+         * Inference the next token from the logits of the specified index.
+         *
+         * @param logitsIndex Logits index of the last decoded batch.
+         * @param decode      Decode the new token immediately,
+         *                    otherwise the token must be decoded by the caller before the next inference.
+         * @return Token
+         * @see Token
+         */
+        protected Token next(int logitsIndex, boolean decode) {
+            //the logits are adjusted in place and sampled by native without copying
+            FloatBuffer logits = LlamaService.getLogitsBuffer(logitsIndex);
             //execute logits processor
             if (!generateParams.getLogitsProcessorList().isEmpty()) {
-                logits = generateParams.getLogitsProcessorList().processor(status.getInputIds(), logits);
+                generateParams.getLogitsProcessorList().processor(status.getInputIds(), logits);
             }
-            //do sampling
-            int[] lastTokens = null;
-            if (generateParams.getLastTokensSize() != 0) {
-                int startIndex = Math.max(0, status.getInputLength() - generateParams.getLastTokensSize());
-                lastTokens = status.subInputIds(startIndex);
+            //do sampling, the last tokens are read from the input ids without copying
+            int lastTokensSize = Math.max(0, Math.min(generateParams.getLastTokensSize(), status.getInputLength()));
+            int lastTokensOffset = status.getInputLength() - lastTokensSize;
+            int tokenId = samplerChain != null ?
+                    samplerChain.sample(logits, status.getInputIds(), lastTokensOffset, lastTokensSize) :
+                    LlamaService.sampleLogits(generateParams, status.getId(), logitsIndex, status.getInputIds(), lastTokensOffset, lastTokensSize);
+            String text = tokenToText(tokenId);
+            //the text that may be the start of a stopping word is held back until it is known
+            if (stoppingWordMatcher != null) {
+                text = stoppingWordMatcher.feed(tokenId, text);
             }
-            int tokenId = LlamaService.sampling(generateParams, logits, lastTokens, status.getId(), status.getPastTokenSize());
-            Token token = new Token(tokenId, LlamaService.getLlamaTokenAttr(tokenId), tokenToText(tokenId));
+            Token token = new Token(tokenId, LlamaService.getLlamaTokenAttr(tokenId), text);
             //update generate status
             status.appendNextToken(token);
             finished = breakOrContinue(token, logits);
+            if (finished && stoppingWordMatcher != null && !stoppingWordMatcher.isMatched()) {
+                token = flushStoppingWord(token);
+            }
+            //the logits view is overwritten by decoding, so decode after the stopping criteria
+            //the position is read after the stopping criteria, the context may be shifted
+            if (decode) {
+                decodeNextToken(tokenId, status.getPastTokenSize() - 1);
+            }
             return token;
         }
 
+        /**
+         * Decode the next new token.
+         *
+         * @param tokenId  Next new token id.
+         * @param position Position of the token in the sequence.
+         */
+        private void decodeNextToken(int tokenId, int position) {
+            decodeTokens[0] = tokenId;
+            decodePositions[0] = position;
+            int decodeStatus = LlamaService.batchDecodeTokens(decodeSequenceIds, decodeTokens, decodePositions, 1);
+            if (decodeStatus != 0) {
+                throw new DecodeException(MessageFormat.format("Failed to decode, return code: {0}.", decodeStatus));
+            }
+        }
+
         /**
          * Clear context cache at the end of generation
          */
@@ -0,0 +1,70 @@
+package chat.octet.model;
+
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Grammar cache,
+ * The grammar rules are compiled once and cached by the SHA-256 hash of the rules, so the repeated grammars are not parsed again.
+ * <p>Each sequence samples with its own copy of the compiled grammar, the grammars of other sequences are not affected.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Slf4j
+public class GrammarCache {
+    private static final int MAX_CACHED_GRAMMARS = 32;
+    private static final Cache<HashCode, Long> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_GRAMMARS)
+            .removalListener((RemovalListener<HashCode, Long>) notification -> LlamaService.freeGrammar(notification.getValue()))
+            .build();
+
+    private GrammarCache() {
+    }
+
+    /**
+     * Attach the grammar to the sequence, the grammar rules are compiled if not cached.
+     *
+     * @param sequenceId   Sequence id.
+     * @param grammarRules Grammar rules.
+     * @return boolean, Returns false if the rules cannot be parsed.
+     */
+    public static synchronized boolean attach(int sequenceId, String grammarRules) {
+        HashCode key = Hashing.sha256().hashString(grammarRules, StandardCharsets.UTF_8);
+        Long handle = CACHE.getIfPresent(key);
+        if (handle == null) {
+            //the rules that cannot be parsed are cached as 0, so they are not parsed again
+            handle = LlamaService.compileGrammar(grammarRules);
+            CACHE.put(key, handle);
+            log.debug("Compiled grammar rules, cached grammar size: {}.", CACHE.size());
+        }
+        if (handle == 0) {
+            return false;
+        }
+        LlamaService.attachGrammar(sequenceId, handle);
+        return true;
+    }
+
+    /**
+     * Detach the grammar of the sequence.
+     *
+     * @param sequenceId Sequence id.
+     */
+    public static void detach(int sequenceId) {
+        LlamaService.detachGrammar(sequenceId);
+    }
+
+    /**
+     * Release all the compiled grammars.
+     */
+    public static synchronized void clearCache() {
+        CACHE.invalidateAll();
+    }
+
+}
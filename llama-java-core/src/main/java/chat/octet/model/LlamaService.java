@@ -17,9 +17,14 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ArrayUtils;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -95,6 +100,70 @@ public class LlamaService {
      */
     public static native void release();
 
+    /**
+     * Load Llama model from file, the active model is not changed,
+     * the loaded models are kept and can be switched by handle.
+     *
+     * @param modelPath     Llama model file path.
+     * @param modelParams   Llama model params.
+     * @param contextParams Llama context params.
+     * @return long, Model handle.
+     * @see #activateLlamaModel(long)
+     */
+    public static native long loadLlamaModel(String modelPath, LlamaModelParams modelParams, LlamaContextParams contextParams) throws ModelException;
+
+    /**
+     * Switch the active model, all the other methods use the active model.
+     *
+     * @param handle Model handle.
+     */
+    public static native void activateLlamaModel(long handle);
+
+    /**
+     * Close the model of the specified handle and release its resources.
+     *
+     * @param handle Model handle.
+     */
+    public static native void releaseLlamaModel(long handle);
+
+    /**
+     * Load the draft model of speculative decoding from file,
+     * the main model must be loaded first and the vocabulary of both models must be the same.
+     *
+     * @param modelPath     Draft model file path.
+     * @param modelParams   Llama model params.
+     * @param contextParams Llama context params.
+     * @see LlamaModelParams
+     * @see LlamaContextParams
+     */
+    public static native void loadDraftModelFromFile(String modelPath, LlamaModelParams modelParams, LlamaContextParams contextParams) throws ModelException;
+
+    /**
+     * Close the draft model and release its resources.
+     */
+    public static native void releaseDraftModel();
+
+    /**
+     * Generate draft tokens greedily by the draft model,
+     * the input tokens after the past token size are decoded by the draft model first.
+     *
+     * @param sequenceId     Generation sequence id.
+     * @param tokens         Input tokens.
+     * @param inputLength    Input context length.
+     * @param pastTokenSize  Number of input tokens already decoded by the draft model.
+     * @param draftTokens    Buffer of the draft tokens.
+     * @param draftTokenSize Maximum number of draft tokens.
+     * @return int, Number of draft tokens, or -1 if decoding failed.
+     */
+    public static native int draftTokens(int sequenceId, int[] tokens, int inputLength, int pastTokenSize, int[] draftTokens, int draftTokenSize) throws ModelException;
+
+    /**
+     * Clear the K-V cache of the draft model.
+     *
+     * @param sequenceId Generation sequence id.
+     */
+    public static native void clearDraftCache(int sequenceId);
+
     /**
      * Check whether mmap is supported.
      *
@@ -153,6 +222,26 @@ public class LlamaService {
      */
     public static native float[] getLogits(int index);
 
+    /**
+     * Get the native logits based on index, the buffer is a view of the native memory without copying.
+     *
+     * @param index index
+     * @return ByteBuffer, Returns a direct byte buffer of the logits.
+     */
+    private static native ByteBuffer getNativeLogits(int index);
+
+    /**
+     * Get a read-write view of the logits based on index,
+     * changes to the buffer are visible to {@link #sampleLogits(GenerateParameter, int, int, int[], int, int)}.
+     * <p>The view is valid until the next decoding, it must not be used after that.</p>
+     *
+     * @param index index
+     * @return FloatBuffer, Returns a direct float buffer of the vocabulary size.
+     */
+    public static FloatBuffer getLogitsBuffer(int index) {
+        return getNativeLogits(index).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
     /**
      * Get embedding
      *
@@ -160,6 +249,27 @@ public class LlamaService {
      */
     public static native float[] getEmbedding();
 
+    /**
+     * Get embedding size of the model.
+     *
+     * @return int, Returns embedding size.
+     */
+    public static native int getEmbeddingSize();
+
+    /**
+     * Batch decoding multiple inputs and get their embeddings, the i-th input is decoded in sequence {@code sequenceId + i},
+     * the sequences must not be used by the generations or the prefix cache.
+     * <p>Use the pooled embedding of each sequence, or the embedding of the last token if the pooling type is none.</p>
+     *
+     * @param sequenceId Sequence id of the first input.
+     * @param tokens     Tokens of all inputs.
+     * @param lengths    Token length of each input.
+     * @param size       Number of inputs.
+     * @param embeddings Buffer of the embeddings, the size is {@code size * embeddingSize}.
+     * @return int, Returns 0 on success, else failed.
+     */
+    public static native int batchEmbedding(int sequenceId, int[] tokens, int[] lengths, int size, float[] embeddings);
+
     /**
      * Get token type code.
      *
@@ -194,6 +304,16 @@ public class LlamaService {
      */
     public static native int tokenize(byte[] buf, int bufferLength, int[] tokens, int maxTokens, boolean addSpecial, boolean parseSpecial);
 
+    /**
+     * Convert the provided texts into tokens in one call.
+     *
+     * @param texts        Text byte buffers.
+     * @param addSpecial   Add special BOS token.
+     * @param parseSpecial Allow tokenizing special and/or control tokens which otherwise are not exposed and treated as plaintext. Does not insert a leading space.
+     * @return int[][], Returns the tokens of each text.
+     */
+    public static native int[][] tokenizeBatch(byte[][] texts, boolean addSpecial, boolean parseSpecial) throws ModelException;
+
     /**
      * Convert the token id to text piece.
      *
@@ -206,6 +326,16 @@ public class LlamaService {
      */
     public static native int tokenToPiece(int token, byte[] buf, int bufferLength, int lstripLength, boolean special);
 
+    /**
+     * Convert all tokens in the vocabulary to text pieces in one call.
+     * The piece of token i is stored in the range [offsets[i], offsets[i + 1]) of the returned bytes.
+     *
+     * @param offsets Empty offset array, the length must be at least the vocabulary size + 1.
+     * @param special If true, special tokens are rendered in the output.
+     * @return byte[], Returns the pieces of all tokens.
+     */
+    public static native byte[] getTokenPieces(int[] offsets, boolean special) throws ModelException;
+
     /**
      * Get sampling metrics
      *
@@ -286,14 +416,115 @@ public class LlamaService {
         );
     }
 
+    /**
+     * Sampling the next token from the native logits without decoding it,
+     * the logits can be adjusted in place by {@link #getLogitsBuffer(int)}.
+     *
+     * @param sequenceId       Sequence id, the grammar attached to the sequence is applied.
+     * @param logitsIndex      Logits index of the last decoded batch.
+     * @param lastTokens       Last token array.
+     * @param lastTokensOffset Offset of the last tokens in the array.
+     * @param lastTokensSize   Last token array size.
+     * @param penalty          Control the repetition of token sequences in the generated text.
+     * @param alphaFrequency   Repeat alpha frequency penalty.
+     * @param alphaPresence    Repeat alpha presence penalty.
+     * @param penalizeNL       Disable penalization for newline tokens when applying the repeat penalty.
+     * @param mirostatMode     <b>Mirostat Sampling</b> Use Mirostat sampling, controlling perplexity during text generation.
+     * @param mirostatTAU      <b>Mirostat Sampling</b> Set the Mirostat target entropy.
+     * @param mirostatETA      <b>Mirostat Sampling</b> Set the Mirostat learning rate.
+     * @param temperature      Adjust the randomness of the generated text.
+     * @param topK             <b>TOP-K Sampling</b> Limit the next token selection to the K most probable tokens.
+     * @param topP             <b>TOP-P Sampling</b> Limit the next token selection to a subset of tokens with a cumulative probability above a threshold P.
+     * @param tsf              <b>Tail Free Sampling (TFS)</b> Enable tail free sampling with parameter z.
+     * @param typical          <b>Typical Sampling</b> Enable typical sampling sampling with parameter p.
+     * @param minP             <b>MIN-P Sampling</b> Sets a minimum base probability threshold for token selection.
+     * @param dynatempRange    <b>Dynamic Temperature Sampling</b> Dynamic temperature range.
+     * @param dynatempExponent <b>Dynamic Temperature Sampling</b> Dynamic temperature exponent.
+     * @return int, Returns the sampled token id.
+     * @see GenerateParameter
+     */
+    public static native int sampleLogits(int sequenceId, int logitsIndex, int[] lastTokens, int lastTokensOffset, int lastTokensSize, float penalty, float alphaFrequency, float alphaPresence, boolean penalizeNL, int mirostatMode, float mirostatTAU, float mirostatETA, float temperature, int topK, float topP, float tsf, float typical, float minP, float dynatempRange, float dynatempExponent);
+
+    /**
+     * Sampling the next token from the native logits without decoding it.
+     *
+     * @param generateParams   generation parameter.
+     * @param sequenceId       Sequence id, the grammar attached to the sequence is applied.
+     * @param logitsIndex      Logits index of the last decoded batch.
+     * @param lastTokens       Last token array.
+     * @param lastTokensOffset Offset of the last tokens in the array.
+     * @param lastTokensSize   Number of the last tokens.
+     * @return int, Returns the sampled token id.
+     * @see GenerateParameter
+     */
+    public static int sampleLogits(GenerateParameter generateParams, int sequenceId, int logitsIndex, int[] lastTokens, int lastTokensOffset, int lastTokensSize) {
+        return sampleLogits(
+                sequenceId,
+                logitsIndex,
+                lastTokens,
+                lastTokensOffset,
+                lastTokensSize,
+                generateParams.getRepeatPenalty(),
+                generateParams.getFrequencyPenalty(),
+                generateParams.getPresencePenalty(),
+                generateParams.isPenalizeNl(),
+                generateParams.getMirostatMode().ordinal(),
+                generateParams.getMirostatTAU(),
+                generateParams.getMirostatETA(),
+                generateParams.getTemperature(),
+                generateParams.getTopK(),
+                generateParams.getTopP(),
+                generateParams.getTsf(),
+                generateParams.getTypical(),
+                generateParams.getMinP(),
+                generateParams.getDynatempRange(),
+                generateParams.getDynatempExponent()
+        );
+    }
+
     /**
      * Load llama grammar by rules.
      *
      * @param grammarRules Grammar rules.
      * @return boolean, Returns true on success, else failed.
+     * @deprecated The global grammar is not used by the sequence sampling, use {@link GrammarCache#attach(int, String)} instead.
      */
+    @Deprecated
     public static native boolean loadLlamaGrammar(String grammarRules);
 
+    /**
+     * Compile the grammar rules, the compiled grammar can be attached to several sequences.
+     *
+     * @param grammarRules Grammar rules.
+     * @return long, Returns the grammar handle, or 0 if the rules cannot be parsed.
+     * @see GrammarCache
+     */
+    public static native long compileGrammar(String grammarRules);
+
+    /**
+     * Release the compiled grammar, the grammars attached to the sequences are not affected.
+     *
+     * @param handle Grammar handle.
+     */
+    public static native void freeGrammar(long handle);
+
+    /**
+     * Attach a copy of the compiled grammar to the sequence, the grammar is applied when sampling the sequence.
+     *
+     * @param sequenceId Sequence id.
+     * @param handle     Grammar handle, 0 to detach the grammar of the sequence.
+     */
+    public static native void attachGrammar(int sequenceId, long handle);
+
+    /**
+     * Detach the grammar of the sequence.
+     *
+     * @param sequenceId Sequence id.
+     */
+    public static void detachGrammar(int sequenceId) {
+        attachGrammar(sequenceId, 0);
+    }
+
     /**
      * Batch decoding.
      *
@@ -305,6 +536,18 @@ public class LlamaService {
      */
     public static native int batchDecode(int sequenceId, int[] tokens, int inputLength, int pastTokenSize);
 
+    /**
+     * Batch decoding one token for each of multiple sequences,
+     * the logits of the i-th token can be read by {@link #getLogits(int)} with index i.
+     *
+     * @param sequenceIds Sequence id of each token.
+     * @param tokens      Tokens that need to be decoding.
+     * @param positions   Position of each token in its sequence.
+     * @param size        Number of tokens in the batch.
+     * @return int, Returns 0 on success, else failed.
+     */
+    public static native int batchDecodeTokens(int[] sequenceIds, int[] tokens, int[] positions, int size);
+
     /**
      * Clear cache in K-V sequences.
      *
@@ -323,6 +566,52 @@ public class LlamaService {
         clearCache(sequenceId, 0, getContextSize());
     }
 
+    /**
+     * Shift the positions of the cache in K-V sequences.
+     *
+     * @param sequenceId Generation sequence id.
+     * @param posStart   Start position.
+     * @param posEnd     End position.
+     * @param delta      Position delta, a negative value shifts the cache to the front.
+     */
+    public static native void shiftCache(int sequenceId, int posStart, int posEnd, int delta);
+
+    /**
+     * Copy cache in K-V sequences, the cache cells are shared by both sequences.
+     *
+     * @param srcSequenceId Source sequence id.
+     * @param dstSequenceId Target sequence id.
+     * @param posStart      Start position.
+     * @param posEnd        End position.
+     */
+    public static native void copyCache(int srcSequenceId, int dstSequenceId, int posStart, int posEnd);
+
+    /**
+     * Get the size of the sequence state, including the K-V cache of the sequence.
+     *
+     * @param sequenceId Generation sequence id.
+     * @return long, State size in bytes.
+     */
+    public static native long getStateSize(int sequenceId);
+
+    /**
+     * Copy the sequence state into the buffer.
+     *
+     * @param sequenceId Generation sequence id.
+     * @param buffer     Direct byte buffer, the capacity must be greater than or equal to the state size.
+     * @return long, Number of bytes copied, returns 0 if failed.
+     */
+    public static native long saveState(int sequenceId, ByteBuffer buffer);
+
+    /**
+     * Load the sequence state from the buffer into the specified sequence.
+     *
+     * @param sequenceId Target sequence id.
+     * @param buffer     Direct byte buffer of the state.
+     * @return long, Number of bytes read, returns 0 if failed.
+     */
+    public static native long loadState(int sequenceId, ByteBuffer buffer);
+
     /**
      * Quantize the model.
      *
@@ -361,13 +650,35 @@ public class LlamaService {
      */
     public static int[] tokenize(String text, boolean addSpecial, boolean parseSpecial) {
         Preconditions.checkNotNull(text, "Text cannot be null");
-        int[] tokens = new int[getContextSize()];
         byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
-        int nextTokens = tokenize(textBytes, textBytes.length, tokens, getContextSize(), addSpecial, parseSpecial);
+        //each token covers at least one byte, plus the special tokens
+        int[] tokens = new int[textBytes.length + 2];
+        int nextTokens = tokenize(textBytes, textBytes.length, tokens, tokens.length, addSpecial, parseSpecial);
+        if (nextTokens < 0) {
+            tokens = new int[-nextTokens];
+            nextTokens = tokenize(textBytes, textBytes.length, tokens, tokens.length, addSpecial, parseSpecial);
+        }
         if (nextTokens < 0) {
             throw new ModelException(MessageFormat.format("Failed to tokenize: {0}, next_tokens: {1}", text, nextTokens));
         }
-        return ArrayUtils.subarray(tokens, 0, nextTokens);
+        return nextTokens == tokens.length ? tokens : ArrayUtils.subarray(tokens, 0, nextTokens);
+    }
+
+    /**
+     * Convert the provided texts into tokens in one call.
+     *
+     * @param texts        Input texts.
+     * @param addSpecial   Add special BOS token.
+     * @param parseSpecial Allow tokenizing special and/or control tokens which otherwise are not exposed and treated as plaintext. Does not insert a leading space.
+     * @return List, Returns the tokens of each text.
+     */
+    public static List<int[]> tokenizeBatch(List<String> texts, boolean addSpecial, boolean parseSpecial) {
+        Preconditions.checkNotNull(texts, "Texts cannot be null");
+        byte[][] buffers = new byte[texts.size()][];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = Preconditions.checkNotNull(texts.get(i), "Text cannot be null").getBytes(StandardCharsets.UTF_8);
+        }
+        return Arrays.asList(tokenizeBatch(buffers, addSpecial, parseSpecial));
     }
 
     /**
@@ -417,6 +728,15 @@ public class LlamaService {
         return getSpecialToken(LlamaSpecialTokenType.TOKEN_EOT.getType());
     }
 
+    /**
+     * Get new line token id.
+     *
+     * @return Token id.
+     */
+    public static int getNlToken() {
+        return getSpecialToken(LlamaSpecialTokenType.TOKEN_NL.getType());
+    }
+
     /**
      * Get prefix token id.
      *
@@ -2,26 +2,32 @@ package chat.octet.model;
 
 
 import chat.octet.model.beans.*;
-import chat.octet.model.components.criteria.impl.StoppingWordCriteria;
 import chat.octet.model.components.processor.impl.CustomBiasLogitsProcessor;
 import chat.octet.model.components.prompt.ChatTemplateFormatter;
 import chat.octet.model.components.prompt.DefaultChatTemplateFormatter;
+import chat.octet.model.exceptions.DecodeException;
 import chat.octet.model.exceptions.ModelException;
 import chat.octet.model.functions.Function;
 import chat.octet.model.parameters.GenerateParameter;
 import chat.octet.model.parameters.ModelParameter;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
 import java.nio.file.Files;
+import java.text.MessageFormat;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.DoubleConsumer;
 
 /**
  * LLama model, which provides functions for generating and chatting conversations.
@@ -31,9 +37,16 @@ import java.util.Optional;
 
 @Slf4j
 public class Model implements AutoCloseable {
+    /**
+     * Sequence id of the first embedding input, after the prefix cache sequences and the generation sequences (10000 to 50000).
+     */
+    private static final int EMBEDDING_SEQUENCE_ID = 50000;
+
     @Getter
     private final ModelParameter modelParams;
     @Getter
+    private final ModelParameter draftModelParams;
+    @Getter
     private final String modelName;
     @Getter
     private final String modelType;
@@ -41,13 +54,44 @@ public class Model implements AutoCloseable {
     private boolean closed;
 
     private final ChatTemplateFormatter chatFormatter;
-    private final Map<String, Status> chatStatus = Maps.newConcurrentMap();
+    private final BatchScheduler scheduler;
+    private final PrefixCache prefixCache;
+    @Getter
+    private final SessionCache sessionCache;
+    private final SessionSnapshot sessionSnapshot;
+    private final EmbeddingCache embeddingCache;
+    private final Object embeddingLock = new Object();
+    private final long handle;
 
     public Model(String modelPath) {
         this(ModelParameter.builder().modelPath(modelPath).build());
     }
 
     public Model(ModelParameter modelParams) {
+        this(modelParams, null);
+    }
+
+    /**
+     * Create model with a draft model for speculative decoding,
+     * the draft model is a smaller model with the same vocabulary as the main model.
+     *
+     * @param modelParams      Model parameters.
+     * @param draftModelParams Draft model parameters, nullable.
+     */
+    public Model(ModelParameter modelParams, ModelParameter draftModelParams) {
+        this(modelParams, draftModelParams, null);
+    }
+
+    /**
+     * Create model and report the load progress.
+     *
+     * @param modelParams      Model parameters.
+     * @param draftModelParams Draft model parameters, nullable.
+     * @param progressCallback Load progress callback of the model, the progress is between 0 and 1,
+     *                         throw an exception to abort loading, nullable.
+     * @see ModelLoader
+     */
+    public Model(ModelParameter modelParams, ModelParameter draftModelParams, DoubleConsumer progressCallback) {
         Preconditions.checkNotNull(modelParams, "Model parameters cannot be null");
         Preconditions.checkNotNull(modelParams.getModelPath(), "Model file path cannot be null");
 
@@ -55,34 +99,101 @@ public class Model implements AutoCloseable {
             throw new ModelException("Model file is not exists, please check the file path");
         }
         this.modelParams = modelParams;
+        this.draftModelParams = draftModelParams;
 
         //Load model and initialize
         LlamaModelParams llamaModelParams = getLlamaModelParameters(modelParams);
         LlamaContextParams llamaContextParams = getLlamaContextParameters(modelParams);
-        LlamaService.loadLlamaModelFromFile(modelParams.getModelPath(), llamaModelParams, llamaContextParams);
+        llamaModelParams.progressCallback = progressCallback;
+        //several models can be loaded, the model is active in the native library only within a lease
+        this.handle = ModelSwitcher.load(() -> LlamaService.loadLlamaModel(modelParams.getModelPath(), llamaModelParams, llamaContextParams));
+        try {
+            //apple lora from file
+            if (StringUtils.isNotBlank(modelParams.getLoraPath())) {
+                if (!Files.exists(new File(modelParams.getLoraPath()).toPath())) {
+                    throw new ModelException("Lora model file is not exists, please check the file path");
+                }
+                int status = LlamaService.loadLoraModelFromFile(modelParams.getLoraPath(), modelParams.getLoraScale(), modelParams.getLoraBase(), modelParams.getThreads());
+                if (status != 0) {
+                    throw new ModelException(String.format("Failed to apply LoRA from lora path: %s to base path: %s", modelParams.getLoraPath(), modelParams.getLoraBase()));
+                }
+            }
+            //load draft model for speculative decoding
+            if (draftModelParams != null) {
+                Preconditions.checkNotNull(draftModelParams.getModelPath(), "Draft model file path cannot be null");
+                if (!Files.exists(new File(draftModelParams.getModelPath()).toPath())) {
+                    throw new ModelException("Draft model file is not exists, please check the file path");
+                }
+                LlamaService.loadDraftModelFromFile(draftModelParams.getModelPath(), getLlamaModelParameters(draftModelParams), getLlamaContextParameters(draftModelParams));
+                if (modelParams.isContinuousBatching()) {
+                    log.warn("Speculative decoding is not supported in continuous batching, the draft model is not used.");
+                }
+            }
+            //load model meta
+            this.modelName = LlamaService.llamaModelMeta("general.name");
+            this.modelType = LlamaService.llamaModelMeta("general.architecture");
+
+            //load chat template, by default use the template from local resource.
+            String defaultChatTemplate = LlamaService.llamaModelMeta("tokenizer.chat_template");
+            this.chatFormatter = Optional.ofNullable(modelParams.getChatTemplateFormatter())
+                    .orElse(new DefaultChatTemplateFormatter(this.modelType, defaultChatTemplate));
+
+            //create continuous batch scheduler, the number of concurrent generations is limited by seqMax
+            this.scheduler = modelParams.isContinuousBatching() ? new BatchScheduler(modelParams.getSeqMax()) : null;
+            this.prefixCache = modelParams.isPrefixCache() ? new PrefixCache(modelParams.getPrefixCacheSize()) : null;
+
+            //create chat session cache, the context cache of evicted sessions is released by the scheduler if it exists
+            int tokenBudget = modelParams.getSessionTokenBudget() < 0 ? LlamaService.getContextSize() : modelParams.getSessionTokenBudget();
+            Executor executor = scheduler != null ? action -> scheduler.execute(() -> runActive(action)) : this::runActive;
+            int fingerprint = Objects.hash(this.modelName, this.modelType, LlamaService.getVocabSize());
+            if (StringUtils.isNotBlank(modelParams.getSessionSnapshotPath())) {
+                this.sessionSnapshot = new SessionSnapshot(modelParams.getSessionSnapshotPath(), fingerprint);
+                this.sessionCache = new SessionCache(modelParams.getMaxSessions(), modelParams.getSessionIdleTimeout(), tokenBudget, executor, sessionSnapshot::save);
+            } else {
+                this.sessionSnapshot = null;
+                this.sessionCache = new SessionCache(modelParams.getMaxSessions(), modelParams.getSessionIdleTimeout(), tokenBudget, executor);
+            }
+            //create embedding cache, the embeddings depend on the pooling type
+            if (modelParams.isEmbedding() && modelParams.getEmbeddingCacheSize() > 0) {
+                int embeddingFingerprint = Objects.hash(fingerprint, LlamaService.getEmbeddingSize(), modelParams.getPoolingType());
+                this.embeddingCache = new EmbeddingCache(modelParams.getEmbeddingCacheSize(), LlamaService.getEmbeddingSize(), modelParams.getEmbeddingCachePath(), embeddingFingerprint);
+            } else {
+                this.embeddingCache = null;
+            }
 
-        //apple lora from file
-        if (StringUtils.isNotBlank(modelParams.getLoraPath())) {
-            if (!Files.exists(new File(modelParams.getLoraPath()).toPath())) {
-                throw new ModelException("Lora model file is not exists, please check the file path");
+            log.info(LlamaService.getSystemInfo());
+            log.info(this.toString());
+            log.info("Model loaded successfully.");
+        } catch (RuntimeException e) {
+            if (ModelSwitcher.unload(handle)) {
+                LlamaService.llamaBackendFree();
             }
-            int status = LlamaService.loadLoraModelFromFile(modelParams.getLoraPath(), modelParams.getLoraScale(), modelParams.getLoraBase(), modelParams.getThreads());
-            if (status != 0) {
-                throw new ModelException(String.format("Failed to apply LoRA from lora path: %s to base path: %s", modelParams.getLoraPath(), modelParams.getLoraBase()));
+            throw e;
+        }
+        ModelSwitcher.release(handle);
+        //the warm-up generation takes its own lease, it may wait behind the other models
+        if (modelParams.isWarmUp()) {
+            try {
+                warmUp();
+            } catch (RuntimeException e) {
+                close();
+                throw e;
             }
         }
-        //load model meta
-        this.modelName = LlamaService.llamaModelMeta("general.name");
-        this.modelType = LlamaService.llamaModelMeta("general.architecture");
-
-        //load chat template, by default use the template from local resource.
-        String defaultChatTemplate = LlamaService.llamaModelMeta("tokenizer.chat_template");
-        this.chatFormatter = Optional.ofNullable(modelParams.getChatTemplateFormatter())
-                .orElse(new DefaultChatTemplateFormatter(this.modelType, defaultChatTemplate));
+    }
 
-        log.info(LlamaService.getSystemInfo());
-        log.info(this.toString());
-        log.info("Model loaded successfully.");
+    /**
+     * Decode a short prompt to page in the memory-mapped weights, and run the generation once to compile the hot paths.
+     */
+    private void warmUp() {
+        long startTime = System.currentTimeMillis();
+        generate(GenerateParameter.builder().maxNewTokenSize(8).build(), "Hello").result();
+        //the warm-up generation is not counted in the metrics and caches
+        LlamaService.getSamplingMetrics(true);
+        if (prefixCache != null) {
+            prefixCache.clear();
+        }
+        log.info("Model warm-up completed, elapsed time: {} ms.", System.currentTimeMillis() - startTime);
     }
 
     private LlamaModelParams getLlamaModelParameters(ModelParameter modelParams) {
@@ -139,14 +250,9 @@ public class Model implements AutoCloseable {
      * @param session User session key.
      */
     public void removeChatStatus(String session) {
-        for (String key : chatStatus.keySet()) {
-            if (key.equals(session)) {
-                Status status = chatStatus.remove(key);
-                if (status != null) {
-                    status.reset();
-                }
-                log.info("Removed chat session, session: {}.", key);
-            }
+        runActive(() -> sessionCache.remove(session));
+        if (sessionSnapshot != null) {
+            sessionSnapshot.delete(session);
         }
     }
 
@@ -154,11 +260,12 @@ public class Model implements AutoCloseable {
      * Delete all user session states.
      */
     public void removeAllChatStatus() {
-        int size = chatStatus.size();
-        if (size > 0) {
-            chatStatus.keySet().forEach(this::removeChatStatus);
-            log.info("Removed all chat sessions, size: {}.", size);
-        }
+        runActive(() -> {
+            int size = sessionCache.removeAll();
+            if (size > 0) {
+                log.info("Removed all chat sessions, size: {}.", size);
+            }
+        });
     }
 
     /**
@@ -206,13 +313,16 @@ public class Model implements AutoCloseable {
     public Generator generate(GenerateParameter generateParams, String text) {
         Preconditions.checkNotNull(generateParams, "Generate parameter cannot be null");
         Preconditions.checkNotNull(text, "Text cannot be null");
-        if (generateParams.getLogitBias() != null && !generateParams.getLogitBias().isEmpty()) {
-            generateParams.getLogitsProcessorList().add(new CustomBiasLogitsProcessor(generateParams.getLogitBias(), LlamaService.getVocabSize()));
-        }
-        if (generateParams.getStoppingWord() != null) {
-            generateParams.getStoppingCriteriaList().add(new StoppingWordCriteria(generateParams.getStoppingWord()));
+        ModelSwitcher.acquire(handle);
+        try {
+            if (generateParams.getLogitBias() != null && !generateParams.getLogitBias().isEmpty()) {
+                generateParams.getLogitsProcessorList().add(new CustomBiasLogitsProcessor(generateParams.getLogitBias(), LlamaService.getVocabSize()));
+            }
+            return newGenerator(generateParams, text, null, null);
+        } catch (RuntimeException e) {
+            ModelSwitcher.release(handle);
+            throw e;
         }
-        return new Generator(generateParams, text);
     }
 
     /**
@@ -289,45 +399,285 @@ public class Model implements AutoCloseable {
             throw new IllegalArgumentException("Chat messages cannot be only one system message");
         }
 
-        //add custom logit bias
-        if (generateParams.getLogitBias() != null && !generateParams.getLogitBias().isEmpty()) {
-            generateParams.getLogitsProcessorList().add(new CustomBiasLogitsProcessor(generateParams.getLogitBias(), LlamaService.getVocabSize()));
-        }
-        //add custom stopping word
-        if (generateParams.getStoppingWord() != null) {
-            generateParams.getStoppingCriteriaList().add(new StoppingWordCriteria(generateParams.getStoppingWord()));
-        }
+        //the model is active until the generator is closed
+        ModelSwitcher.acquire(handle);
+        try {
+            //add custom logit bias
+            if (generateParams.getLogitBias() != null && !generateParams.getLogitBias().isEmpty()) {
+                generateParams.getLogitsProcessorList().add(new CustomBiasLogitsProcessor(generateParams.getLogitBias(), LlamaService.getVocabSize()));
+            }
 
-        Status status = null;
-        //if session cache is enabled, try to retrieve the chat session from the cache
-        //otherwise does not use session cache in chat
-        if (generateParams.isSessionCache()) {
+            //if session cache is enabled, try to retrieve the chat session from the cache
+            //otherwise does not use session cache in chat
+            if (!generateParams.isSessionCache()) {
+                String prompt = chatFormatter.format(messages, functions, true, params);
+                Status status = null;
+                if (generateParams.isContextShift() && generateParams.getKeepTokenSize() < 0) {
+                    status = new Status();
+                    status.setKeepTokenSize(getSystemPromptTokenSize(messages, prompt, params));
+                }
+                return newGenerator(generateParams, prompt, status, null);
+            }
             Preconditions.checkNotNull(generateParams.getUser(), "Chat user cannot be null, please set user in generate parameter.");
             String key = StringUtils.isBlank(generateParams.getSession()) ? generateParams.getUser() : generateParams.getSession();
-            boolean exists = chatStatus.containsKey(key);
-            if (!exists) {
-                status = new Status();
-                chatStatus.put(key, status);
-                log.debug("Create new chat session, session: {} id: {}, chat session cache size: {}.", key, status.getId(), chatStatus.size());
+            SessionCache.Session session = sessionCache.acquire(key, this::createChatStatus);
+            try {
+                Status status = session.getStatus();
+                //if prompt cache is enabled, set the initial system prompt and does not update it again
+                //the incremental prompt keeps the whole conversation, the cached system prompt is matched by the prompt text
+                if (generateParams.isPromptCache() && !generateParams.isIncrementalPrompt()) {
+                    ChatMessage msg = messages.stream().filter(m -> ChatMessage.ChatRole.SYSTEM == m.getRole()).findFirst().orElse(null);
+                    if (msg != null && StringUtils.isNotBlank(msg.getContent())) {
+                        if (!msg.getContent().equals(status.getSystemPromptCache())) {
+                            status.setSystemPromptCache(msg.getContent());
+                        } else {
+                            //remove the system prompt in messages
+                            messages.remove(msg);
+                        }
+                    }
+                }
+                String prompt = chatFormatter.format(messages, functions, true, params);
+                if (generateParams.isContextShift() && generateParams.getKeepTokenSize() < 0 && status.getInputLength() == 0) {
+                    status.setKeepTokenSize(getSystemPromptTokenSize(messages, prompt, params));
+                }
+                //the session is in use until the generator is closed
+                return newGenerator(generateParams, prompt, status, session);
+            } catch (Exception e) {
+                sessionCache.release(session);
+                throw e;
             }
-            status = chatStatus.get(key);
-
-            //if prompt cache is enabled, set the initial system prompt and does not update it again
-            if (generateParams.isPromptCache()) {
-                ChatMessage msg = messages.stream().filter(m -> ChatMessage.ChatRole.SYSTEM == m.getRole()).findFirst().orElse(null);
-                if (msg != null && StringUtils.isNotBlank(msg.getContent())) {
-                    if (!msg.getContent().equals(status.getSystemPromptCache())) {
-                        status.setSystemPromptCache(msg.getContent());
-                    } else {
-                        //remove the system prompt in messages
-                        messages.remove(msg);
+        } catch (RuntimeException e) {
+            ModelSwitcher.release(handle);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the token size of the system prompt at the start of the prompt, it is kept when shifting the context.
+     */
+    private int getSystemPromptTokenSize(List<ChatMessage> messages, String prompt, Map<String, Object> params) {
+        ChatMessage system = messages.stream().filter(m -> ChatMessage.ChatRole.SYSTEM == m.getRole()).findFirst().orElse(null);
+        if (system == null) {
+            return 0;
+        }
+        String text = chatFormatter.format(Lists.newArrayList(system), false, params);
+        return StringUtils.isNotEmpty(text) && prompt.startsWith(text) ? TokenEncoder.encode(text, true, true).length : 0;
+    }
+
+    private Status createChatStatus(String key) {
+        //restore the chat session from the snapshot, the K-V cache is restored before decoding
+        Status status = sessionSnapshot != null ? sessionSnapshot.load(key) : null;
+        return status != null ? status : new Status();
+    }
+
+    private Generator newGenerator(GenerateParameter generateParams, String prompt, Status status, SessionCache.Session session) {
+        return new Generator(generateParams, prompt, status, scheduler, prefixCache, draftModelParams != null) {
+            private final AtomicBoolean released = new AtomicBoolean();
+
+            @Override
+            public void close() {
+                try {
+                    super.close();
+                } finally {
+                    if (released.compareAndSet(false, true)) {
+                        try {
+                            if (session != null) {
+                                sessionCache.release(session);
+                            }
+                        } finally {
+                            ModelSwitcher.release(handle);
+                        }
                     }
                 }
             }
+        };
+    }
+
+    /**
+     * Run the action with this model active in the native library,
+     * the action may run within a lease of this model, so it joins the lease.
+     *
+     * @param action Action with the native library.
+     */
+    private void runActive(Runnable action) {
+        ModelSwitcher.join(handle);
+        try {
+            action.run();
+        } finally {
+            ModelSwitcher.release(handle);
+        }
+    }
+
+    /**
+     * Tokenize the text with the vocabulary of this model.
+     *
+     * @param text         Input text.
+     * @param addSpecial   Add special tokens.
+     * @param parseSpecial Parse special tokens in the text.
+     * @return int[], Tokens of the text.
+     */
+    public int[] tokenize(String text, boolean addSpecial, boolean parseSpecial) {
+        ModelSwitcher.acquire(handle);
+        try {
+            return TokenEncoder.encode(text, addSpecial, parseSpecial);
+        } finally {
+            ModelSwitcher.release(handle);
+        }
+    }
+
+    /**
+     * Decode the tokens with the vocabulary of this model.
+     *
+     * @param tokens Tokens.
+     * @return String, Decoded text.
+     */
+    public String detokenize(int... tokens) {
+        ModelSwitcher.acquire(handle);
+        try {
+            return TokenDecoder.decodeToken(tokens);
+        } finally {
+            ModelSwitcher.release(handle);
+        }
+    }
+
+    /**
+     * Get the embedding of the text.
+     *
+     * @param text Input text.
+     * @return float[], Normalized embedding of the text.
+     * @see #embed(List)
+     */
+    public float[] embed(String text) {
+        return embed(Lists.newArrayList(text)).get(0);
+    }
+
+    /**
+     * Get the embeddings of the texts, the texts are packed into batches and each text is decoded in its own sequence.
+     * <p>Require embedding parameter to be true. The number of texts in a batch is limited by seqMax,
+     * and the number of tokens in a batch is limited by the batch size and ubatch, longer texts are truncated.</p>
+     *
+     * @param texts Input texts.
+     * @return List, Normalized embedding of each text.
+     */
+    public List<float[]> embed(List<String> texts) {
+        Preconditions.checkNotNull(texts, "Texts cannot be null");
+        if (!modelParams.isEmbedding()) {
+            throw new ModelException("Embedding mode is not enabled, please set embedding in model parameter.");
+        }
+        float[][] embeddings = new float[texts.size()][];
+        List<Integer> pending = Lists.newArrayList();
+        for (int i = 0; i < texts.size(); i++) {
+            Preconditions.checkArgument(StringUtils.isNotEmpty(texts.get(i)), "Text cannot be empty");
+            embeddings[i] = embeddingCache != null ? embeddingCache.get(texts.get(i)) : null;
+            if (embeddings[i] == null) {
+                pending.add(i);
+            }
+        }
+        if (!pending.isEmpty()) {
+            ModelSwitcher.acquire(handle);
+            try {
+                synchronized (embeddingLock) {
+                    runDecoding(() -> decodeEmbeddings(texts, pending, embeddings));
+                }
+            } finally {
+                ModelSwitcher.release(handle);
+            }
         }
+        return Lists.newArrayList(embeddings);
+    }
 
-        String prompt = chatFormatter.format(messages, functions, true, params);
-        return new Generator(generateParams, prompt, status);
+    /**
+     * Run the decoding in the scheduler thread if it exists, so it never runs concurrently with the batch decoding.
+     */
+    private void runDecoding(Runnable action) {
+        if (scheduler == null) {
+            action.run();
+            return;
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        scheduler.execute(() -> {
+            try {
+                action.run();
+                future.complete(null);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    private void decodeEmbeddings(List<String> texts, List<Integer> pending, float[][] embeddings) {
+        int embeddingSize = LlamaService.getEmbeddingSize();
+        //all tokens of a sequence must be decoded in one micro batch for non-causal models
+        int maxTokens = Math.min(modelParams.getBatchSize(), modelParams.getUbatch());
+        int maxSequences = Math.max(1, modelParams.getSeqMax());
+        List<int[]> tokens = TokenEncoder.encode(pending.stream().map(texts::get).toList(), true, false);
+
+        int start = 0;
+        while (start < pending.size()) {
+            int end = start;
+            int batchSize = 0;
+            while (end < pending.size() && end - start < maxSequences) {
+                int length = Math.min(tokens.get(end).length, maxTokens);
+                if (end > start && batchSize + length > maxTokens) {
+                    break;
+                }
+                batchSize += length;
+                end++;
+            }
+            int[] batchTokens = new int[batchSize];
+            int[] lengths = new int[end - start];
+            int offset = 0;
+            for (int i = start; i < end; i++) {
+                int[] input = tokens.get(i);
+                if (input.length > maxTokens) {
+                    log.warn("Embedding input is truncated, token size: {}, max tokens: {}.", input.length, maxTokens);
+                }
+                lengths[i - start] = Math.min(input.length, maxTokens);
+                System.arraycopy(input, 0, batchTokens, offset, lengths[i - start]);
+                offset += lengths[i - start];
+            }
+            float[] buffer = new float[lengths.length * embeddingSize];
+            int status = LlamaService.batchEmbedding(EMBEDDING_SEQUENCE_ID, batchTokens, lengths, lengths.length, buffer);
+            if (status != 0) {
+                throw new DecodeException(MessageFormat.format("Failed to decode, return code: {0}.", status));
+            }
+            for (int i = start; i < end; i++) {
+                float[] embedding = normalize(buffer, (i - start) * embeddingSize, embeddingSize);
+                embeddings[pending.get(i)] = embedding;
+                if (embeddingCache != null) {
+                    embeddingCache.put(texts.get(pending.get(i)), embedding);
+                }
+            }
+            start = end;
+        }
+    }
+
+    private static float[] normalize(float[] buffer, int offset, int size) {
+        double sum = 0;
+        for (int i = offset; i < offset + size; i++) {
+            sum += buffer[i] * buffer[i];
+        }
+        float norm = sum > 0 ? (float) (1.0 / Math.sqrt(sum)) : 0;
+        float[] embedding = new float[size];
+        for (int i = 0; i < size; i++) {
+            embedding[i] = buffer[offset + i] * norm;
+        }
+        return embedding;
+    }
+
+    /**
+     * Check if continuous batching is enabled,
+     * if enabled, multiple generators can be used concurrently.
+     *
+     * @return boolean
+     */
+    public boolean isContinuousBatching() {
+        return scheduler != null;
     }
 
     /**
@@ -336,7 +686,14 @@ public class Model implements AutoCloseable {
      */
     public void metrics() {
         if (modelParams.isVerbose()) {
-            log.info("Metrics: {}", LlamaService.getSamplingMetrics(true).toString());
+            runActive(() -> log.info("Metrics: {}", LlamaService.getSamplingMetrics(true).toString()));
+            if (prefixCache != null) {
+                log.info("Prefix cache: {}", prefixCache);
+            }
+            log.info("Session cache: {}", sessionCache);
+            if (embeddingCache != null) {
+                log.info("Embedding cache: {}", embeddingCache);
+            }
         }
     }
 
@@ -345,9 +702,33 @@ public class Model implements AutoCloseable {
      */
     @Override
     public void close() {
-        removeAllChatStatus();
-        LlamaService.release();
-        LlamaService.llamaBackendFree();
+        if (closed) {
+            return;
+        }
+        //the context is freed by unloading, wait until the other generators of this model are closed
+        ModelSwitcher.acquireExclusive(handle);
+        try {
+            if (scheduler != null) {
+                scheduler.close();
+            }
+            if (sessionSnapshot != null) {
+                int size = sessionCache.evictAll();
+                log.info("Saved chat sessions, size: {}.", size);
+            }
+            removeAllChatStatus();
+            if (prefixCache != null) {
+                prefixCache.clear();
+            }
+            if (embeddingCache != null) {
+                embeddingCache.flush();
+            }
+        } finally {
+            //the draft model is released with the model, and the backend is freed after the last model is closed
+            if (ModelSwitcher.unload(handle)) {
+                GrammarCache.clearCache();
+                LlamaService.llamaBackendFree();
+            }
+        }
         this.closed = true;
         log.info("Closed model and context resources.");
     }
@@ -356,7 +737,8 @@ public class Model implements AutoCloseable {
     public String toString() {
         return "model name: " + modelName +
                 ", model type: " + modelType +
-                ", model parameters: " + modelParams;
+                ", model parameters: " + modelParams +
+                (draftModelParams != null ? ", draft model parameters: " + draftModelParams : "");
     }
 
 
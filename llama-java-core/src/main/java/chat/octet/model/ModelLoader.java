@@ -0,0 +1,139 @@
+package chat.octet.model;
+
+
+import chat.octet.model.exceptions.ModelException;
+import chat.octet.model.parameters.ModelParameter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Asynchronous model loader,
+ * The model is loaded in a background thread, and the load progress and readiness can be queried while loading.
+ * <p>If warm-up is enabled in the model parameters, the model is ready after the warm-up generation.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ * @see Model
+ */
+@Slf4j
+public final class ModelLoader {
+    private final CompletableFuture<Model> future = new CompletableFuture<>();
+    private final DoubleConsumer progressCallback;
+    private volatile double progress;
+    private volatile boolean cancelled;
+    private volatile long loadTimeMs = -1;
+
+    private ModelLoader(DoubleConsumer progressCallback) {
+        this.progressCallback = progressCallback;
+    }
+
+    /**
+     * Load the model asynchronously.
+     *
+     * @param modelParams Model parameters.
+     * @return ModelLoader
+     */
+    public static ModelLoader load(ModelParameter modelParams) {
+        return load(modelParams, null, null);
+    }
+
+    /**
+     * Load the model asynchronously.
+     *
+     * @param modelParams      Model parameters.
+     * @param draftModelParams Draft model parameters, nullable.
+     * @param progressCallback Load progress callback, the progress is between 0 and 1, nullable.
+     * @return ModelLoader
+     */
+    public static ModelLoader load(ModelParameter modelParams, ModelParameter draftModelParams, DoubleConsumer progressCallback) {
+        ModelLoader loader = new ModelLoader(progressCallback);
+        Thread worker = new Thread(() -> loader.run(modelParams, draftModelParams), "llama-model-loader");
+        worker.setDaemon(true);
+        worker.start();
+        return loader;
+    }
+
+    private void run(ModelParameter modelParams, ModelParameter draftModelParams) {
+        long startTime = System.currentTimeMillis();
+        try {
+            Model model = new Model(modelParams, draftModelParams, this::onProgress);
+            if (cancelled) {
+                model.close();
+                future.completeExceptionally(new CancellationException("Model loading is cancelled"));
+                return;
+            }
+            loadTimeMs = System.currentTimeMillis() - startTime;
+            progress = 1;
+            log.info("Model loaded asynchronously, elapsed time: {} ms.", loadTimeMs);
+            future.complete(model);
+        } catch (Throwable e) {
+            future.completeExceptionally(cancelled ? new CancellationException("Model loading is cancelled") : e);
+        }
+    }
+
+    private void onProgress(double value) {
+        if (cancelled) {
+            throw new ModelException("Model loading is cancelled");
+        }
+        //the model is ready after the context is created and warmed up
+        progress = Math.min(value, 0.99);
+        if (progressCallback != null) {
+            progressCallback.accept(value);
+        }
+    }
+
+    /**
+     * Get the load progress.
+     *
+     * @return double, between 0 and 1.
+     */
+    public double getProgress() {
+        return progress;
+    }
+
+    /**
+     * Readiness of the model.
+     *
+     * @return boolean, Returns true if the model is loaded successfully.
+     */
+    public boolean isReady() {
+        return future.isDone() && !future.isCompletedExceptionally();
+    }
+
+    /**
+     * Get the elapsed time of loading.
+     *
+     * @return long, Returns -1 if the model is not ready.
+     */
+    public long getLoadTimeMs() {
+        return loadTimeMs;
+    }
+
+    /**
+     * Get the future of the loaded model.
+     *
+     * @return CompletableFuture
+     */
+    public CompletableFuture<Model> getFuture() {
+        return future;
+    }
+
+    /**
+     * Wait for the model to be loaded.
+     *
+     * @return Model
+     */
+    public Model get() {
+        return future.join();
+    }
+
+    /**
+     * Cancel loading, it has no effect after the model is loaded.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+}
@@ -0,0 +1,200 @@
+package chat.octet.model;
+
+import chat.octet.model.components.criteria.impl.StoppingWordCriteria;
+import chat.octet.model.exceptions.ModelException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.LongSupplier;
+
+/**
+ * Model switcher,
+ * Several models can be loaded at the same time, but only one of them is active in the native library.
+ * <p>A model is used within a lease, the active model is switched only when all leases of it are released.
+ * Models are loaded without the lease lock, so the active model keeps serving while a new model is loading.</p>
+ * <p>Leases are granted in arrival order: once another model is waiting, new leases of the active model wait behind it,
+ * so the active model cannot starve the other models. Nested leases taken by {@link #join(long)} are granted immediately.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Slf4j
+final class ModelSwitcher {
+    private static final Object LOCK = new Object();
+    private static final Deque<Waiter> WAITERS = new ArrayDeque<>();
+    private static long activeHandle;
+    private static int leases;
+    private static int loadedModels;
+
+    private ModelSwitcher() {
+    }
+
+    /**
+     * Load a model and hold a lease of it, the model is loaded while the other models keep serving.
+     *
+     * @param loader Load the model and return the handle, the model must not be activated by the loader.
+     * @return long, Model handle.
+     */
+    static long load(LongSupplier loader) {
+        synchronized (LOCK) {
+            //a loading model keeps the backend alive
+            loadedModels++;
+        }
+        long handle;
+        try {
+            handle = loader.getAsLong();
+        } catch (RuntimeException e) {
+            unloaded();
+            throw e;
+        }
+        if (handle == 0) {
+            unloaded();
+            throw new ModelException("Load model failed.");
+        }
+        acquire(handle);
+        return handle;
+    }
+
+    /**
+     * Acquire a lease of the model, wait until the leases of the other active model are released.
+     * If the other models are waiting, the lease is granted after them.
+     *
+     * @param handle Model handle.
+     */
+    static void acquire(long handle) {
+        synchronized (LOCK) {
+            if (activeHandle == handle && WAITERS.isEmpty()) {
+                leases++;
+                return;
+            }
+            await(new Waiter(handle, false));
+        }
+    }
+
+    /**
+     * Acquire an exclusive lease of the model, wait until all the other leases of the model are released.
+     * Used before the model is unloaded, the nested leases are still granted by {@link #join(long)}.
+     *
+     * @param handle Model handle.
+     */
+    static void acquireExclusive(long handle) {
+        await(new Waiter(handle, true));
+    }
+
+    private static void await(Waiter waiter) {
+        synchronized (LOCK) {
+            WAITERS.add(waiter);
+            try {
+                while (!tryGrant(waiter)) {
+                    LOCK.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ModelException("Waiting for the active model is interrupted");
+            } finally {
+                WAITERS.remove(waiter);
+                LOCK.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Acquire a nested lease of the model, the lease is granted immediately if the model is active and in use.
+     * Used by the actions that may run within a lease of the model, so they never wait behind the other models.
+     *
+     * @param handle Model handle.
+     */
+    static void join(long handle) {
+        synchronized (LOCK) {
+            if (activeHandle == handle && leases > 0) {
+                leases++;
+                return;
+            }
+        }
+        acquire(handle);
+    }
+
+    /**
+     * Release a lease of the model.
+     *
+     * @param handle Model handle.
+     */
+    static void release(long handle) {
+        synchronized (LOCK) {
+            if (activeHandle == handle && leases > 0 && --leases == 0) {
+                LOCK.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Unload the model with a lease held by the caller, the lease is released.
+     *
+     * @param handle Model handle.
+     * @return boolean, Returns true if no model is loaded.
+     */
+    static boolean unload(long handle) {
+        synchronized (LOCK) {
+            LlamaService.releaseLlamaModel(handle);
+            if (activeHandle == handle) {
+                activeHandle = 0;
+                leases = 0;
+                LOCK.notifyAll();
+            }
+            return --loadedModels == 0;
+        }
+    }
+
+    private static void unloaded() {
+        synchronized (LOCK) {
+            loadedModels--;
+        }
+    }
+
+    /**
+     * Grant the lease if no waiter of another model or exclusive waiter is ahead of it,
+     * the model is activated when the leases of the active model are released.
+     */
+    private static boolean tryGrant(Waiter waiter) {
+        for (Waiter ahead : WAITERS) {
+            if (ahead == waiter) {
+                break;
+            }
+            if (ahead.handle != waiter.handle || ahead.exclusive) {
+                return false;
+            }
+        }
+        if (waiter.exclusive && activeHandle == waiter.handle && leases > 0) {
+            return false;
+        }
+        if (activeHandle != waiter.handle) {
+            if (leases > 0) {
+                return false;
+            }
+            LlamaService.activateLlamaModel(waiter.handle);
+            switchTo(waiter.handle);
+        }
+        leases++;
+        return true;
+    }
+
+    private static void switchTo(long handle) {
+        //the token caches belong to the vocabulary of the active model
+        TokenEncoder.clearCache();
+        TokenDecoder.clearCache();
+        StoppingWordCriteria.clearCache();
+        activeHandle = handle;
+        log.debug("Active model switched, handle: {}.", handle);
+    }
+
+    private static final class Waiter {
+        private final long handle;
+        private final boolean exclusive;
+
+        private Waiter(long handle, boolean exclusive) {
+            this.handle = handle;
+            this.exclusive = exclusive;
+        }
+    }
+
+}
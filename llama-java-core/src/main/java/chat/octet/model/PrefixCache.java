@@ -0,0 +1,262 @@
+package chat.octet.model;
+
+import com.google.common.collect.Maps;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Prompt prefix cache,
+ * Keeps the K-V cache of recent prompts in reserved sequences and indexes them with a radix tree over token ids.
+ * <p>A new generation copies the K-V cache of the longest cached prefix into its own sequence,
+ * so only the remaining suffix of the prompt needs to be decoded.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Slf4j
+public class PrefixCache {
+    /**
+     * Reserved sequence ids, generation sequence ids always start from 10000.
+     */
+    private static final int FIRST_SEQUENCE_ID = 1;
+
+    private final int maxEntries;
+    private final Entry[] entries;
+    private final CacheOperator operator;
+    private final Node root = new Node(new int[0], null);
+    private long accessCounter;
+    private long hits;
+    private long misses;
+    private long reusedTokens;
+
+    /**
+     * Create prompt prefix cache.
+     *
+     * @param maxEntries Maximum number of cached prompts.
+     */
+    public PrefixCache(int maxEntries) {
+        this(maxEntries, CacheOperator.LLAMA);
+    }
+
+    /**
+     * Create prompt prefix cache with the K-V cache operator.
+     *
+     * @param maxEntries Maximum number of cached prompts.
+     * @param operator   K-V cache operator of the sequences.
+     */
+    PrefixCache(int maxEntries, CacheOperator operator) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.entries = new Entry[this.maxEntries];
+        this.operator = operator;
+    }
+
+    /**
+     * Copy the K-V cache of the longest cached prefix to the specified sequence.
+     *
+     * @param sequenceId Target sequence id, the sequence must be empty.
+     * @param tokens     Prompt tokens.
+     * @param maxLength  Maximum number of tokens can be reused.
+     * @return int, Number of reused tokens.
+     */
+    public synchronized int reuse(int sequenceId, int[] tokens, int maxLength) {
+        Node node = root;
+        int matched = 0;
+        while (matched < maxLength) {
+            Node child = node.children.get(tokens[matched]);
+            if (child == null) {
+                break;
+            }
+            int common = commonLength(child.key, tokens, matched, maxLength);
+            matched += common;
+            node = child;
+            if (common < child.key.length) {
+                break;
+            }
+        }
+        Entry entry = matched > 0 ? findEntry(node) : null;
+        if (entry == null) {
+            ++misses;
+            return 0;
+        }
+        entry.lastAccess = ++accessCounter;
+        operator.copy(entry.sequenceId, sequenceId, matched);
+        ++hits;
+        reusedTokens += matched;
+        log.debug("Prefix cache hit, sequence id: {}, cached sequence id: {}, reused token size: {}.", sequenceId, entry.sequenceId, matched);
+        return matched;
+    }
+
+    /**
+     * Cache the K-V cache of a decoded prompt.
+     *
+     * @param sequenceId Source sequence id.
+     * @param tokens     Prompt tokens.
+     * @param length     Prompt tokens length.
+     */
+    public synchronized void put(int sequenceId, int[] tokens, int length) {
+        if (length <= 0) {
+            return;
+        }
+        Node node = insert(tokens, length);
+        Entry entry = findEntry(node);
+        if (entry != null) {
+            //an equal or longer prompt is already cached
+            entry.lastAccess = ++accessCounter;
+            return;
+        }
+        int slot = freeSlot();
+        entry = new Entry(FIRST_SEQUENCE_ID + slot, node);
+        entry.lastAccess = ++accessCounter;
+        entries[slot] = entry;
+        node.entry = entry;
+        operator.copy(sequenceId, entry.sequenceId, length);
+        log.debug("Prefix cache added, cached sequence id: {}, token size: {}.", entry.sequenceId, length);
+    }
+
+    /**
+     * Remove all cached prompts and release the K-V cache.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] != null) {
+                operator.clear(entries[i].sequenceId);
+                entries[i] = null;
+            }
+        }
+        root.children.clear();
+        log.debug("Prefix cache cleared.");
+    }
+
+    public synchronized boolean isEmpty() {
+        return root.children.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits: " + hits + ", misses: " + misses + ", reused tokens: " + reusedTokens;
+    }
+
+    private int freeSlot() {
+        int lru = 0;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] == null) {
+                return i;
+            }
+            if (entries[i].lastAccess < entries[lru].lastAccess) {
+                lru = i;
+            }
+        }
+        evict(entries[lru]);
+        entries[lru] = null;
+        return lru;
+    }
+
+    private void evict(Entry entry) {
+        operator.clear(entry.sequenceId);
+        Node node = entry.node;
+        node.entry = null;
+        //prune the branches without any cached prompt
+        while (node.parent != null && node.entry == null && node.children.isEmpty()) {
+            node.parent.children.remove(node.key[0]);
+            node = node.parent;
+        }
+        log.debug("Prefix cache evicted, cached sequence id: {}.", entry.sequenceId);
+    }
+
+    private Node insert(int[] tokens, int length) {
+        Node node = root;
+        int index = 0;
+        while (index < length) {
+            Node child = node.children.get(tokens[index]);
+            if (child == null) {
+                child = new Node(Arrays.copyOfRange(tokens, index, length), node);
+                node.children.put(tokens[index], child);
+                return child;
+            }
+            int common = commonLength(child.key, tokens, index, length);
+            if (common < child.key.length) {
+                child = split(child, common);
+            }
+            index += common;
+            node = child;
+        }
+        return node;
+    }
+
+    private Node split(Node node, int length) {
+        Node parent = node.parent;
+        Node middle = new Node(Arrays.copyOfRange(node.key, 0, length), parent);
+        parent.children.put(middle.key[0], middle);
+        node.key = Arrays.copyOfRange(node.key, length, node.key.length);
+        node.parent = middle;
+        middle.children.put(node.key[0], node);
+        return middle;
+    }
+
+    private static int commonLength(int[] key, int[] tokens, int offset, int length) {
+        int size = Math.min(key.length, length - offset);
+        int i = 0;
+        while (i < size && key[i] == tokens[offset + i]) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static Entry findEntry(Node node) {
+        if (node.entry != null) {
+            return node.entry;
+        }
+        for (Node child : node.children.values()) {
+            Entry entry = findEntry(child);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * K-V cache operations of the cached sequences.
+     */
+    interface CacheOperator {
+        CacheOperator LLAMA = new CacheOperator() {
+            @Override
+            public void copy(int srcSequenceId, int dstSequenceId, int length) {
+                LlamaService.copyCache(srcSequenceId, dstSequenceId, 0, length);
+            }
+
+            @Override
+            public void clear(int sequenceId) {
+                LlamaService.clearCache(sequenceId);
+            }
+        };
+
+        void copy(int srcSequenceId, int dstSequenceId, int length);
+
+        void clear(int sequenceId);
+    }
+
+    private static final class Node {
+        private final Map<Integer, Node> children = Maps.newHashMap();
+        private int[] key;
+        private Node parent;
+        private Entry entry;
+
+        private Node(int[] key, Node parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+    }
+
+    private static final class Entry {
+        private final int sequenceId;
+        private final Node node;
+        private long lastAccess;
+
+        private Entry(int sequenceId, Node node) {
+            this.sequenceId = sequenceId;
+            this.node = node;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package chat.octet.model;
+
+import chat.octet.model.beans.Status;
+import chat.octet.model.exceptions.GenerationException;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Chat session cache,
+ * Sessions are evicted in LRU order when the maximum number of sessions or the total token budget is exceeded,
+ * and expired after the idle timeout.
+ * <p>The K-V cache of an evicted session is released by the executor,
+ * sessions in use by a generator are never evicted until the generator is closed.
+ * A session is used by one generator at a time, so the generators of a session never copy the same status.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Slf4j
+public class SessionCache {
+    private final int maxSessions;
+    private final long idleTimeoutMillis;
+    private final long maxTokens;
+    private final Executor executor;
+    private final BiConsumer<String, Status> evictionListener;
+    private final LinkedHashMap<String, Session> sessions = Maps.newLinkedHashMap();
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create chat session cache.
+     *
+     * @param maxSessions Maximum number of sessions, less than or equal to 0 means unlimited.
+     * @param idleTimeout Idle timeout in seconds, less than or equal to 0 means never expire.
+     * @param maxTokens   Maximum number of tokens of all sessions, less than or equal to 0 means unlimited.
+     * @param executor    Executor of releasing the K-V cache.
+     */
+    public SessionCache(int maxSessions, long idleTimeout, long maxTokens, Executor executor) {
+        this(maxSessions, idleTimeout, maxTokens, executor, null);
+    }
+
+    /**
+     * Create chat session cache.
+     *
+     * @param maxSessions      Maximum number of sessions, less than or equal to 0 means unlimited.
+     * @param idleTimeout      Idle timeout in seconds, less than or equal to 0 means never expire.
+     * @param maxTokens        Maximum number of tokens of all sessions, less than or equal to 0 means unlimited.
+     * @param executor         Executor of releasing the K-V cache.
+     * @param evictionListener Called by the executor before the K-V cache of an evicted or expired session is released, nullable.
+     */
+    public SessionCache(int maxSessions, long idleTimeout, long maxTokens, Executor executor, BiConsumer<String, Status> evictionListener) {
+        this.maxSessions = maxSessions;
+        this.idleTimeoutMillis = idleTimeout * 1000;
+        this.maxTokens = maxTokens;
+        this.executor = executor;
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Get the session of the specified key, create it if not exists.
+     * The session is in use until it is released, wait if the session is in use by another generator.
+     *
+     * @param key      Session key.
+     * @param supplier Status supplier, create the status of the key.
+     * @return Session
+     */
+    public synchronized Session acquire(String key, Function<String, Status> supplier) {
+        Session session = sessions.get(key);
+        while (session != null && session.references > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GenerationException("Waiting for the chat session is interrupted");
+            }
+            session = sessions.get(key);
+        }
+        cleanUp();
+        session = sessions.remove(key);
+        if (session == null) {
+            session = new Session(key, supplier.apply(key));
+            ++misses;
+            log.debug("Create new chat session, session: {} id: {}, chat session cache size: {}.", key, session.status.getId(), sessions.size() + 1);
+        } else {
+            ++hits;
+        }
+        //move to the end of the LRU order
+        sessions.put(key, session);
+        session.references++;
+        session.lastAccessTime = System.currentTimeMillis();
+        shrink();
+        return session;
+    }
+
+    /**
+     * Release the session after generation.
+     *
+     * @param session Session.
+     */
+    public synchronized void release(Session session) {
+        session.references--;
+        session.lastAccessTime = System.currentTimeMillis();
+        if (session.references == 0 && session.removed) {
+            reset(session);
+        }
+        shrink();
+        notifyAll();
+    }
+
+    /**
+     * Remove the session of the specified key.
+     *
+     * @param key Session key.
+     * @return boolean, Returns true if the session exists.
+     */
+    public synchronized boolean remove(String key) {
+        Session session = sessions.remove(key);
+        if (session == null) {
+            return false;
+        }
+        remove(session);
+        return true;
+    }
+
+    /**
+     * Remove all sessions.
+     *
+     * @return int, Number of removed sessions.
+     */
+    public synchronized int removeAll() {
+        List<Session> list = Lists.newArrayList(sessions.values());
+        sessions.clear();
+        list.forEach(this::remove);
+        return list.size();
+    }
+
+    /**
+     * Evict all sessions which are not in use, the eviction listener is called for each session.
+     *
+     * @return int, Number of evicted sessions.
+     */
+    public synchronized int evictAll() {
+        int size = 0;
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            if (session.references == 0) {
+                it.remove();
+                evict(session);
+                ++size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Remove the expired sessions.
+     */
+    public synchronized void cleanUp() {
+        if (idleTimeoutMillis <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            if (session.references == 0 && now - session.lastAccessTime > idleTimeoutMillis) {
+                it.remove();
+                evict(session);
+                log.debug("Chat session expired, session: {}.", session.key);
+            }
+        }
+    }
+
+    public synchronized boolean containsKey(String key) {
+        return sessions.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Total number of tokens of all sessions.
+     *
+     * @return long
+     */
+    public synchronized long getTokenSize() {
+        long tokens = 0;
+        for (Session session : sessions.values()) {
+            tokens += session.status.getPastTokenSize();
+        }
+        return tokens;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private void remove(Session session) {
+        session.removed = true;
+        if (session.references == 0) {
+            reset(session);
+        }
+        log.info("Removed chat session, session: {}.", session.key);
+    }
+
+    /**
+     * Evict the least recently used sessions which are not in use.
+     */
+    private void shrink() {
+        long tokens = (maxTokens > 0) ? getTokenSize() : 0;
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext() && ((maxSessions > 0 && sessions.size() > maxSessions) || (maxTokens > 0 && tokens > maxTokens))) {
+            Session session = it.next();
+            if (session.references > 0) {
+                continue;
+            }
+            it.remove();
+            tokens -= session.status.getPastTokenSize();
+            evict(session);
+            log.debug("Chat session evicted, session: {}, chat session cache size: {}.", session.key, sessions.size());
+        }
+    }
+
+    private void evict(Session session) {
+        ++evictions;
+        session.removed = true;
+        executor.execute(() -> {
+            if (evictionListener != null) {
+                try {
+                    evictionListener.accept(session.key, session.status);
+                } catch (Exception e) {
+                    log.error("Chat session eviction listener error ", e);
+                }
+            }
+            session.status.reset();
+        });
+    }
+
+    private void reset(Session session) {
+        session.removed = true;
+        executor.execute(session.status::reset);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "sessions: " + sessions.size() +
+                ", hits: " + hits +
+                ", misses: " + misses +
+                ", evictions: " + evictions;
+    }
+
+    /**
+     * Chat session.
+     */
+    public static final class Session {
+        private final String key;
+        @Getter
+        private final Status status;
+        private int references;
+        private long lastAccessTime;
+        private boolean removed;
+
+        private Session(String key, Status status) {
+            this.key = key;
+            this.status = status;
+        }
+    }
+
+}
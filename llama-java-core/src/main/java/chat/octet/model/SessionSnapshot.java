@@ -0,0 +1,229 @@
+package chat.octet.model;
+
+import chat.octet.model.beans.Status;
+import chat.octet.model.exceptions.ModelException;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Chat session snapshot,
+ * Saves the token ids, the cached text and the sequence state (K-V cache) of a session to a file,
+ * and restores them when the session is used again.
+ * <p>File layout: header, system prompt cache, cached text, text boundaries, token ids, sequence state.
+ * The cached text is used to match the incremental prompt of the restored session.
+ * The sequence state is memory-mapped and passed to llama.cpp directly.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Slf4j
+public class SessionSnapshot {
+    private static final int MAGIC = 0x4F435353;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+    private static final String FILE_SUFFIX = ".session";
+
+    private final Path directory;
+    private final int fingerprint;
+
+    /**
+     * Create session snapshot.
+     *
+     * @param directory   Snapshot directory.
+     * @param fingerprint Model fingerprint, snapshots of other models are ignored.
+     */
+    public SessionSnapshot(String directory, int fingerprint) {
+        this.directory = Paths.get(directory);
+        this.fingerprint = fingerprint;
+        try {
+            Files.createDirectories(this.directory);
+        } catch (IOException e) {
+            throw new ModelException("Failed to create session snapshot directory: " + directory, e);
+        }
+    }
+
+    private Path getFile(String key) {
+        return directory.resolve(Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + FILE_SUFFIX);
+    }
+
+    /**
+     * Save the session into the snapshot file.
+     * <p>The K-V cache of the session is read, it must not be modified by other threads at the same time.</p>
+     *
+     * @param key    Session key.
+     * @param status Session status.
+     * @return boolean, Returns true if saved.
+     */
+    public boolean save(String key, Status status) {
+        if (status.getSnapshot() != null) {
+            //the K-V cache was never restored, the existing snapshot is up-to-date
+            return true;
+        }
+        int tokenSize = status.getPastTokenSize();
+        if (tokenSize <= 0) {
+            return false;
+        }
+        Path file = getFile(key);
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        long stateSize = LlamaService.getStateSize(status.getId());
+        byte[] prompt = status.getSystemPromptCache() == null ? new byte[0] : status.getSystemPromptCache().getBytes(StandardCharsets.UTF_8);
+        byte[] text = status.getCachedText() == null ? new byte[0] : status.getCachedText().getBytes(StandardCharsets.UTF_8);
+        List<int[]> boundaries = status.getCachedText() == null ? List.of() : status.getTextBoundaries();
+        long stateOffset = getStateOffset(prompt.length, text.length, boundaries.size(), tokenSize);
+
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate((int) stateOffset).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(fingerprint).putInt(tokenSize).putInt(prompt.length).putLong(stateSize)
+                    .putInt(text.length).putInt(boundaries.size()).putInt(0);
+            header.put(prompt).put(text);
+            for (int[] boundary : boundaries) {
+                header.putInt(boundary[0]).putInt(boundary[1]);
+            }
+            header.asIntBuffer().put(status.getInputIds(), 0, tokenSize);
+            header.position(0);
+            channel.write(header, 0);
+
+            MappedByteBuffer state = channel.map(FileChannel.MapMode.READ_WRITE, stateOffset, stateSize);
+            long size = LlamaService.saveState(status.getId(), state);
+            if (size <= 0) {
+                log.warn("Failed to save session state, session: {}, sequence id: {}.", key, status.getId());
+                Files.deleteIfExists(tempFile);
+                return false;
+            }
+            state.force();
+        } catch (IOException e) {
+            log.error("Failed to save session snapshot, session: " + key, e);
+            return false;
+        }
+        try {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to save session snapshot, session: " + key, e);
+            return false;
+        }
+        log.debug("Session snapshot saved, session: {}, token size: {}, state size: {}.", key, tokenSize, stateSize);
+        return true;
+    }
+
+    private static long getStateOffset(int promptLength, int textLength, int boundarySize, int tokenSize) {
+        return HEADER_SIZE + promptLength + textLength + boundarySize * 8L + tokenSize * 4L;
+    }
+
+    /**
+     * Load the token ids and the cached text of the session from the snapshot file,
+     * the K-V cache is restored later by {@link #restore(Status)} before decoding.
+     *
+     * @param key Session key.
+     * @return Status, or null if the snapshot does not exist.
+     */
+    public Status load(String key) {
+        Path file = getFile(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != fingerprint) {
+                log.warn("Ignore incompatible session snapshot, session: {}.", key);
+                return null;
+            }
+            int tokenSize = buffer.getInt();
+            int promptLength = buffer.getInt();
+            buffer.getLong();
+            int textLength = buffer.getInt();
+            int boundarySize = buffer.getInt();
+            Status status = new Status();
+            if (tokenSize <= 0 || tokenSize >= status.getContextSize()) {
+                log.warn("Ignore session snapshot that exceeds the context size, session: {}.", key);
+                return null;
+            }
+            buffer.position(HEADER_SIZE);
+            if (promptLength > 0) {
+                byte[] prompt = new byte[promptLength];
+                buffer.get(prompt);
+                status.setSystemPromptCache(new String(prompt, StandardCharsets.UTF_8));
+            }
+            byte[] textBytes = new byte[textLength];
+            buffer.get(textBytes);
+            String text = new String(textBytes, StandardCharsets.UTF_8);
+            int textEnd = 0;
+            for (int i = 0; i < boundarySize; i++) {
+                int boundaryTokenSize = buffer.getInt();
+                int boundaryTextLength = buffer.getInt();
+                status.appendText(text.substring(textEnd, boundaryTextLength), boundaryTokenSize);
+                textEnd = boundaryTextLength;
+            }
+            int[] tokens = new int[tokenSize];
+            IntBuffer tokenBuffer = buffer.asIntBuffer();
+            tokenBuffer.get(tokens);
+            status.appendTokens(tokens);
+            status.addPastTokensSize(tokenSize);
+            status.setSnapshot(file);
+            log.debug("Session snapshot loaded, session: {}, token size: {}.", key, tokenSize);
+            return status;
+        } catch (Exception e) {
+            log.error("Failed to load session snapshot, session: " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Restore the K-V cache of the status from its snapshot file.
+     * If failed, the past tokens of the status are cleared and need to be decoded again.
+     *
+     * @param status Session status.
+     * @return boolean, Returns true if restored.
+     */
+    public static boolean restore(Status status) {
+        Path file = status.getSnapshot();
+        status.setSnapshot(null);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            int tokenSize = header.getInt(12);
+            int promptLength = header.getInt(16);
+            long stateSize = header.getLong(20);
+            long stateOffset = getStateOffset(promptLength, header.getInt(28), header.getInt(32), tokenSize);
+            if (tokenSize == status.getPastTokenSize()) {
+                MappedByteBuffer state = channel.map(FileChannel.MapMode.READ_ONLY, stateOffset, stateSize);
+                if (LlamaService.loadState(status.getId(), state) > 0) {
+                    log.debug("Session state restored, sequence id: {}, token size: {}.", status.getId(), tokenSize);
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to restore session state, file: " + file, e);
+        }
+        log.warn("Failed to restore session state, all tokens will be decoded again, sequence id: {}.", status.getId());
+        LlamaService.clearCache(status.getId());
+        status.addPastTokensSize(-status.getPastTokenSize());
+        return false;
+    }
+
+    /**
+     * Delete the snapshot file of the session.
+     *
+     * @param key Session key.
+     */
+    public void delete(String key) {
+        try {
+            Files.deleteIfExists(getFile(key));
+        } catch (IOException e) {
+            log.error("Failed to delete session snapshot, session: " + key, e);
+        }
+    }
+}
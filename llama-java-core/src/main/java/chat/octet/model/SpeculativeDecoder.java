@@ -0,0 +1,110 @@
+package chat.octet.model;
+
+import chat.octet.model.beans.Status;
+import chat.octet.model.components.speculative.DraftProposer;
+import chat.octet.model.exceptions.DecodeException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.text.MessageFormat;
+import java.util.Arrays;
+
+/**
+ * Speculative decoder,
+ * The draft proposer proposes several tokens and the main model verifies them in one batch decoding.
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ * @see DraftProposer
+ */
+@Slf4j
+public class SpeculativeDecoder {
+    private final int sequenceId;
+    private final DraftProposer proposer;
+    private final int[] draftTokens;
+    private final int[] verifySequenceIds;
+    private final int[] verifyTokens;
+    private final int[] verifyPositions;
+    private int draftSize;
+    private int draftInputLength;
+    private long drafted;
+    private long accepted;
+
+    /**
+     * Create speculative decoder.
+     *
+     * @param sequenceId     Generation sequence id.
+     * @param draftTokenSize Maximum number of draft tokens in each step.
+     * @param proposer       Draft proposer.
+     */
+    public SpeculativeDecoder(int sequenceId, int draftTokenSize, DraftProposer proposer) {
+        this.sequenceId = sequenceId;
+        this.proposer = proposer;
+        this.draftTokens = new int[draftTokenSize];
+        this.verifySequenceIds = new int[draftTokenSize + 1];
+        this.verifyTokens = new int[draftTokenSize + 1];
+        this.verifyPositions = new int[draftTokenSize + 1];
+        Arrays.fill(verifySequenceIds, sequenceId);
+    }
+
+    /**
+     * Propose the draft tokens after the input tokens,
+     * and batch decoding the last input token and the draft tokens by the main model.
+     * <p>The logits of the i-th draft token can be read with index i + 1,
+     * and the logits of the last input token can be read with index 0.</p>
+     *
+     * @param status  Generation status, the last input token is not decoded by the main model yet.
+     * @param maxSize Maximum number of draft tokens.
+     * @return int, Number of draft tokens.
+     */
+    public int draft(Status status, int maxSize) {
+        draftInputLength = status.getInputLength();
+        draftSize = proposer.propose(status, draftTokens, Math.max(0, Math.min(maxSize, draftTokens.length)));
+        int position = draftInputLength - 1;
+        verifyTokens[0] = status.getInputIds()[position];
+        verifyPositions[0] = position;
+        for (int i = 0; i < draftSize; i++) {
+            verifyTokens[i + 1] = draftTokens[i];
+            verifyPositions[i + 1] = position + i + 1;
+        }
+        int decodeStatus = LlamaService.batchDecodeTokens(verifySequenceIds, verifyTokens, verifyPositions, draftSize + 1);
+        if (decodeStatus != 0) {
+            throw new DecodeException(MessageFormat.format("Failed to decode, return code: {0}.", decodeStatus));
+        }
+        drafted += draftSize;
+        return draftSize;
+    }
+
+    /**
+     * Get the draft token of the specified index.
+     *
+     * @param index Index of the draft tokens.
+     * @return int, Returns -1 if the index is out of the draft tokens.
+     */
+    public int getDraftToken(int index) {
+        return index < draftSize ? draftTokens[index] : -1;
+    }
+
+    /**
+     * Accept the leading draft tokens and remove the rejected tokens from the K-V cache of the main model.
+     *
+     * @param acceptedSize Number of accepted draft tokens.
+     * @param contextSize  Context size.
+     */
+    public void accept(int acceptedSize, int contextSize) {
+        if (acceptedSize < draftSize) {
+            LlamaService.clearCache(sequenceId, draftInputLength + acceptedSize, contextSize);
+        }
+        proposer.accept(acceptedSize);
+        accepted += acceptedSize;
+    }
+
+    /**
+     * Release the draft proposer at the end of generation.
+     *
+     * @param status Generation status.
+     */
+    public void release(Status status) {
+        proposer.release(status);
+        log.debug("Speculative decoding completed, sequence id: {}, draft tokens: {}, accepted tokens: {}.", sequenceId, drafted, accepted);
+    }
+
+}
@@ -1,26 +1,54 @@
 package chat.octet.model;
 
 
+import com.google.common.base.Preconditions;
+
 import java.nio.charset.StandardCharsets;
 
 /**
- * Token decoder
+ * Token decoder,
+ * The pieces of all tokens are cached in a piece table when first used, decoding a token is an array lookup.
+ * <p>The piece table must be cleared when the model is changed.</p>
  *
  * @author <a href="https://github.com/eoctet">William</a>
  */
 public class TokenDecoder {
+    private static volatile PieceTable pieceTable;
+    private static volatile PieceTable specialPieceTable;
 
     private TokenDecoder() {
     }
 
+    private static PieceTable getPieceTable(boolean special) {
+        PieceTable table = special ? specialPieceTable : pieceTable;
+        if (table != null) {
+            return table;
+        }
+        synchronized (TokenDecoder.class) {
+            table = special ? specialPieceTable : pieceTable;
+            if (table == null) {
+                int[] offsets = new int[LlamaService.getVocabSize() + 1];
+                table = new PieceTable(LlamaService.getTokenPieces(offsets, special), offsets);
+                if (special) {
+                    specialPieceTable = table;
+                } else {
+                    pieceTable = table;
+                }
+            }
+            return table;
+        }
+    }
+
     public static String decodeToken(boolean special, int... tokens) {
-        byte[] buffer = new byte[tokens.length * 64];
+        PieceTable table = getPieceTable(special);
         int length = 0;
         for (int token : tokens) {
-            byte[] bytes = new byte[64];
-            int size = LlamaService.tokenToPiece(token, bytes, bytes.length, 0, special);
-            System.arraycopy(bytes, 0, buffer, length, size);
-            length += size;
+            length += table.getLength(token);
+        }
+        byte[] buffer = new byte[length];
+        int offset = 0;
+        for (int token : tokens) {
+            offset += table.copy(token, buffer, offset);
         }
         return new String(buffer, 0, length, StandardCharsets.UTF_8);
     }
@@ -29,34 +57,49 @@ public class TokenDecoder {
         return decodeToken(false, tokens);
     }
 
-    public static int getByteLength(byte[] buffer, int length) {
-        int len = 0;
-        for (int i = 0; i < length; i++) {
-            byte code = buffer[i];
-            if (!Character.isValidCodePoint(code)) {
-                try {
-                    len += getUtf8ByteLength(code);
-                } catch (Exception ignored) {
-                }
-            } else {
-                len++;
-            }
+    /**
+     * Copy the piece of the token into the buffer.
+     *
+     * @param special If true, special tokens are rendered in the output.
+     * @param token   Token id.
+     * @param buffer  Byte buffer.
+     * @return int, Returns the piece length, or the negative piece length if the buffer is too small.
+     */
+    public static int getPiece(boolean special, int token, byte[] buffer) {
+        PieceTable table = getPieceTable(special);
+        int length = table.getLength(token);
+        if (length > buffer.length) {
+            return -length;
         }
-        return len;
+        return table.copy(token, buffer, 0);
     }
 
-    public static int getUtf8ByteLength(byte bytes) {
-        int topBits = bytes & 0xFF;
-        if (topBits <= 0x7F) {
-            return 1;
-        } else if (topBits >= 0xC2 && topBits <= 0xDF) {
-            return 2;
-        } else if (topBits >= 0xE0 && topBits <= 0xEF) {
-            return 3;
-        } else if (topBits >= 0xF0 && topBits <= 0xF7) {
-            return 4;
-        } else {
-            throw new IllegalArgumentException("Illegal byte, byte code is " + bytes);
+    /**
+     * Clear the piece tables.
+     */
+    public static synchronized void clearCache() {
+        pieceTable = null;
+        specialPieceTable = null;
+    }
+
+    private static final class PieceTable {
+        private final byte[] pieces;
+        private final int[] offsets;
+
+        private PieceTable(byte[] pieces, int[] offsets) {
+            this.pieces = pieces;
+            this.offsets = offsets;
+        }
+
+        private int getLength(int token) {
+            Preconditions.checkElementIndex(token, offsets.length - 1, "Token id");
+            return offsets[token + 1] - offsets[token];
+        }
+
+        private int copy(int token, byte[] buffer, int offset) {
+            int length = getLength(token);
+            System.arraycopy(pieces, offsets[token], buffer, offset, length);
+            return length;
         }
     }
 
@@ -0,0 +1,87 @@
+package chat.octet.model;
+
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * Token encoder,
+ * Caches the tokens of repeated text fragments such as system prompts, stopping words and special tokens.
+ * <p>The cache is bounded in LRU order and must be cleared when the model is changed.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+public class TokenEncoder {
+    private static final int MAX_CACHE_SIZE = 1024;
+    private static final Cache<String, int[]> CACHE = CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE).build();
+
+    private TokenEncoder() {
+    }
+
+    private static String getKey(String text, boolean addSpecial, boolean parseSpecial) {
+        return (addSpecial ? "1" : "0") + (parseSpecial ? "1" : "0") + text;
+    }
+
+    /**
+     * Convert the text into tokens, the tokens are read from the cache if exists.
+     *
+     * @param text         Input text.
+     * @param addSpecial   Add special BOS token.
+     * @param parseSpecial Allow tokenizing special and/or control tokens.
+     * @return int[], A copy of the cached tokens.
+     */
+    public static int[] encode(String text, boolean addSpecial, boolean parseSpecial) {
+        Preconditions.checkNotNull(text, "Text cannot be null");
+        String key = getKey(text, addSpecial, parseSpecial);
+        int[] tokens = CACHE.getIfPresent(key);
+        if (tokens == null) {
+            tokens = LlamaService.tokenize(text, addSpecial, parseSpecial);
+            CACHE.put(key, tokens);
+        }
+        return tokens.clone();
+    }
+
+    /**
+     * Convert the texts into tokens, the texts which are not cached are tokenized in one call.
+     *
+     * @param texts        Input texts.
+     * @param addSpecial   Add special BOS token.
+     * @param parseSpecial Allow tokenizing special and/or control tokens.
+     * @return List, A copy of the cached tokens of each text.
+     */
+    public static List<int[]> encode(List<String> texts, boolean addSpecial, boolean parseSpecial) {
+        Preconditions.checkNotNull(texts, "Texts cannot be null");
+        int[][] results = new int[texts.size()][];
+        List<String> missingTexts = Lists.newArrayList();
+        List<Integer> missingIndexes = Lists.newArrayList();
+        for (int i = 0; i < results.length; i++) {
+            int[] tokens = CACHE.getIfPresent(getKey(texts.get(i), addSpecial, parseSpecial));
+            if (tokens != null) {
+                results[i] = tokens.clone();
+            } else {
+                missingTexts.add(texts.get(i));
+                missingIndexes.add(i);
+            }
+        }
+        if (!missingTexts.isEmpty()) {
+            List<int[]> tokens = LlamaService.tokenizeBatch(missingTexts, addSpecial, parseSpecial);
+            for (int i = 0; i < tokens.size(); i++) {
+                CACHE.put(getKey(missingTexts.get(i), addSpecial, parseSpecial), tokens.get(i));
+                results[missingIndexes.get(i)] = tokens.get(i).clone();
+            }
+        }
+        return Lists.newArrayList(results);
+    }
+
+    /**
+     * Clear the token cache.
+     */
+    public static void clearCache() {
+        CACHE.invalidateAll();
+    }
+
+}
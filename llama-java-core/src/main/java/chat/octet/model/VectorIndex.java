@@ -0,0 +1,561 @@
+package chat.octet.model;
+
+import chat.octet.model.exceptions.ModelException;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Vector index,
+ * An approximate nearest neighbor index (HNSW) of the normalized embeddings, scored by cosine similarity.
+ * <p>The vectors and the graph are kept in off-heap memory, or memory-mapped to a file and reused after restart,
+ * the texts are kept in a separate file with the suffix {@code .text}. The dimension is fixed by the first vector,
+ * so the index must be rebuilt when the embedding model changes.</p>
+ * <p>File layout: header, upper layer links, nodes of [level, text, base layer links, vector].</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Slf4j
+public class VectorIndex implements AutoCloseable {
+    private static final int MAGIC = 0x4F435649;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int NODE_HEADER_SIZE = 24;
+    private static final int MAX_LEVEL = 16;
+    //a buffer cannot exceed 2GB, the nodes are split into segments
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Random random = new Random(42);
+    private final Path path;
+    private final FileChannel channel;
+    private final FileChannel textChannel;
+    private final List<String> texts;
+    private final int efConstruction;
+    private final int efSearch;
+    private final ByteBuffer header;
+    private int capacity;
+    private int m;
+    private int dimension;
+    private int nodeSize;
+    private int nodesPerSegment;
+    private int upperCapacity;
+    private ByteBuffer upper;
+    private ByteBuffer[] segments;
+    private int size;
+    private int entryPoint = -1;
+    private int maxLevel;
+    private int upperSize;
+    private long textSize;
+
+    /**
+     * Create vector index.
+     *
+     * @param path           Index file path, use off-heap memory if it is blank.
+     * @param capacity       Maximum number of vectors, ignored if the index file exists.
+     * @param m              Number of links of each node, ignored if the index file exists.
+     * @param efConstruction Size of the dynamic candidate list when adding vectors.
+     * @param efSearch       Size of the dynamic candidate list when searching.
+     */
+    public VectorIndex(String path, int capacity, int m, int efConstruction, int efSearch) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be greater than 0");
+        Preconditions.checkArgument(m >= 2, "M must be at least 2");
+        this.capacity = capacity;
+        this.m = m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = Math.max(efSearch, 1);
+        if (path == null || path.isBlank()) {
+            this.path = null;
+            this.channel = null;
+            this.textChannel = null;
+            this.texts = Lists.newArrayList();
+            this.header = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.nativeOrder());
+        } else {
+            this.path = Paths.get(path);
+            this.texts = null;
+            try {
+                if (this.path.getParent() != null) {
+                    Files.createDirectories(this.path.getParent());
+                }
+                this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.textChannel = FileChannel.open(Paths.get(path + ".text"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE).order(ByteOrder.nativeOrder());
+            } catch (IOException e) {
+                throw new ModelException("Failed to map vector index file: " + path, e);
+            }
+            if (header.getInt(0) == MAGIC && header.getInt(4) == VERSION) {
+                open();
+            } else {
+                header.putInt(0, 0);
+            }
+        }
+    }
+
+    private void open() {
+        this.dimension = header.getInt(8);
+        this.capacity = header.getInt(12);
+        this.m = header.getInt(16);
+        this.size = header.getInt(20);
+        this.entryPoint = header.getInt(24);
+        this.maxLevel = header.getInt(28);
+        this.upperSize = header.getInt(32);
+        this.textSize = header.getLong(40);
+        layout();
+        //searches never map segments, so the segments of the existing nodes are mapped here
+        for (int node = 0; node < size; node += nodesPerSegment) {
+            segment(node);
+        }
+        log.info("Vector index opened, size: {}, capacity: {}, dimension: {}, file: {}.", size, capacity, dimension, path);
+    }
+
+    private void init(int dimension) {
+        this.dimension = dimension;
+        layout();
+        header.putInt(8, dimension).putInt(12, capacity).putInt(16, m);
+        writeHeader();
+        header.putInt(4, VERSION).putInt(0, MAGIC);
+        log.info("Vector index created, capacity: {}, dimension: {}, file: {}.", capacity, dimension, path);
+    }
+
+    private void layout() {
+        this.nodeSize = NODE_HEADER_SIZE + Integer.BYTES * 2 * m + Float.BYTES * dimension;
+        this.nodesPerSegment = Math.max(1, SEGMENT_SIZE / nodeSize);
+        this.segments = new ByteBuffer[(capacity + nodesPerSegment - 1) / nodesPerSegment];
+        //the expected number of upper layer links is capacity / (m - 1)
+        int upperRecordSize = Integer.BYTES * (m + 1);
+        this.upperCapacity = (int) Math.min(2L * capacity / (m - 1) + 64, (Integer.MAX_VALUE - HEADER_SIZE) / upperRecordSize);
+        this.upper = allocate(HEADER_SIZE, (long) upperCapacity * upperRecordSize);
+    }
+
+    private ByteBuffer allocate(long offset, long length) {
+        if (channel == null) {
+            return ByteBuffer.allocateDirect((int) length).order(ByteOrder.nativeOrder());
+        }
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, offset, length).order(ByteOrder.nativeOrder());
+        } catch (IOException e) {
+            throw new ModelException("Failed to map vector index file: " + path, e);
+        }
+    }
+
+    private void writeHeader() {
+        header.putInt(20, size).putInt(24, entryPoint).putInt(28, maxLevel).putInt(32, upperSize).putLong(40, textSize);
+    }
+
+    private ByteBuffer segment(int node) {
+        int index = node / nodesPerSegment;
+        if (segments[index] == null) {
+            long offset = HEADER_SIZE + (long) upper.capacity() + (long) index * nodesPerSegment * nodeSize;
+            int nodes = Math.min(nodesPerSegment, capacity - index * nodesPerSegment);
+            segments[index] = allocate(offset, (long) nodes * nodeSize);
+        }
+        return segments[index];
+    }
+
+    private int nodeOffset(int node) {
+        return (node % nodesPerSegment) * nodeSize;
+    }
+
+    /**
+     * Add a vector to the index.
+     *
+     * @param embedding Embedding of the text.
+     * @param text      Text of the embedding.
+     * @return int, Index of the vector.
+     */
+    public int add(float[] embedding, String text) {
+        Preconditions.checkNotNull(embedding, "Embedding cannot be null");
+        Preconditions.checkNotNull(text, "Text cannot be null");
+        lock.writeLock().lock();
+        try {
+            if (dimension == 0) {
+                init(embedding.length);
+            }
+            Preconditions.checkArgument(embedding.length == dimension, "Embedding dimension must be " + dimension);
+            if (size >= capacity) {
+                throw new ModelException("Vector index is full, capacity: " + capacity);
+            }
+            int node = size;
+            float[] vector = normalize(embedding);
+            int level = randomLevel();
+            ByteBuffer buffer = segment(node);
+            int offset = nodeOffset(node);
+            buffer.putInt(offset, level).putInt(offset + 4, upperSize);
+            writeText(buffer, offset, text);
+            buffer.putInt(offset + 20, 0);
+            for (int i = 1; i <= level; i++) {
+                upper.putInt((upperSize + i - 1) * Integer.BYTES * (m + 1), 0);
+            }
+            int vectorOffset = offset + NODE_HEADER_SIZE + Integer.BYTES * 2 * m;
+            for (int i = 0; i < dimension; i++) {
+                buffer.putFloat(vectorOffset + i * Float.BYTES, vector[i]);
+            }
+            upperSize += level;
+            size++;
+            connect(node, vector, level);
+            writeHeader();
+            return node;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int randomLevel() {
+        int level = (int) (-Math.log(1.0 - random.nextDouble()) / Math.log(m));
+        //levels are lowered when the upper layer links are used up
+        return Math.max(0, Math.min(Math.min(level, MAX_LEVEL), upperCapacity - upperSize));
+    }
+
+    private void connect(int node, float[] vector, int level) {
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+        Candidate current = new Candidate(entryPoint, similarity(vector, entryPoint));
+        for (int l = maxLevel; l > level; l--) {
+            current = greedySearch(vector, current, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            List<Candidate> candidates = searchLayer(vector, current, efConstruction, l);
+            List<Candidate> selected = selectNeighbors(candidates, m);
+            int[] links = selected.stream().mapToInt(Candidate::getNode).toArray();
+            setLinks(node, l, links, links.length);
+            for (int link : links) {
+                addLink(link, node, l);
+            }
+            current = candidates.get(0);
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    private void addLink(int node, int link, int level) {
+        int maxLinks = level == 0 ? 2 * m : m;
+        int[] links = getLinks(node, level);
+        if (links.length < maxLinks) {
+            int[] updated = new int[links.length + 1];
+            System.arraycopy(links, 0, updated, 0, links.length);
+            updated[links.length] = link;
+            setLinks(node, level, updated, updated.length);
+            return;
+        }
+        //shrink the links of the node by the heuristic
+        float[] vector = getVector(node);
+        List<Candidate> candidates = Lists.newArrayList(new Candidate(link, similarity(vector, link)));
+        for (int i : links) {
+            candidates.add(new Candidate(i, similarity(vector, i)));
+        }
+        candidates.sort(Comparator.comparingDouble(Candidate::getScore).reversed());
+        int[] selected = selectNeighbors(candidates, maxLinks).stream().mapToInt(Candidate::getNode).toArray();
+        setLinks(node, level, selected, selected.length);
+    }
+
+    /**
+     * Select the neighbors that are closer to the node than to the other selected neighbors,
+     * so the links point to different directions.
+     */
+    private List<Candidate> selectNeighbors(List<Candidate> candidates, int maxLinks) {
+        List<Candidate> selected = Lists.newArrayList();
+        List<float[]> vectors = Lists.newArrayList();
+        for (Candidate candidate : candidates) {
+            if (selected.size() >= maxLinks) {
+                break;
+            }
+            float[] vector = getVector(candidate.node);
+            boolean diverse = true;
+            for (float[] other : vectors) {
+                if (dot(vector, other) > candidate.score) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected.add(candidate);
+                vectors.add(vector);
+            }
+        }
+        return selected;
+    }
+
+    private Candidate greedySearch(float[] query, Candidate entry, int level) {
+        Candidate current = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int link : getLinks(current.node, level)) {
+                float score = similarity(query, link);
+                if (score > current.score) {
+                    current = new Candidate(link, score);
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    private List<Candidate> searchLayer(float[] query, Candidate entry, int ef, int level) {
+        BitSet visited = new BitSet(size);
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(Comparator.comparingDouble(Candidate::getScore).reversed());
+        PriorityQueue<Candidate> results = new PriorityQueue<>(Comparator.comparingDouble(Candidate::getScore));
+        visited.set(entry.node);
+        candidates.add(entry);
+        results.add(entry);
+        while (!candidates.isEmpty()) {
+            Candidate candidate = candidates.poll();
+            if (results.size() >= ef && candidate.score < results.peek().score) {
+                break;
+            }
+            for (int link : getLinks(candidate.node, level)) {
+                if (visited.get(link)) {
+                    continue;
+                }
+                visited.set(link);
+                float score = similarity(query, link);
+                if (results.size() < ef || score > results.peek().score) {
+                    Candidate next = new Candidate(link, score);
+                    candidates.add(next);
+                    results.add(next);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+        List<Candidate> sorted = Lists.newArrayList(results);
+        sorted.sort(Comparator.comparingDouble(Candidate::getScore).reversed());
+        return sorted;
+    }
+
+    /**
+     * Search the nearest texts of the embedding.
+     *
+     * @param embedding Query embedding.
+     * @param topK      Maximum number of results.
+     * @return List, Results in descending order of similarity.
+     */
+    public List<SearchResult> search(float[] embedding, int topK) {
+        Preconditions.checkNotNull(embedding, "Embedding cannot be null");
+        lock.readLock().lock();
+        try {
+            if (size == 0 || topK <= 0) {
+                return Lists.newArrayList();
+            }
+            Preconditions.checkArgument(embedding.length == dimension, "Embedding dimension must be " + dimension);
+            float[] query = normalize(embedding);
+            Candidate current = new Candidate(entryPoint, similarity(query, entryPoint));
+            for (int l = maxLevel; l > 0; l--) {
+                current = greedySearch(query, current, l);
+            }
+            List<SearchResult> results = Lists.newArrayList();
+            for (Candidate candidate : searchLayer(query, current, Math.max(efSearch, topK), 0)) {
+                if (results.size() >= topK) {
+                    break;
+                }
+                results.add(new SearchResult(candidate.node, readText(candidate.node), candidate.score));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int[] getLinks(int node, int level) {
+        if (level == 0) {
+            ByteBuffer buffer = segment(node);
+            int offset = nodeOffset(node) + 20;
+            int[] links = new int[buffer.getInt(offset)];
+            for (int i = 0; i < links.length; i++) {
+                links[i] = buffer.getInt(offset + Integer.BYTES * (i + 1));
+            }
+            return links;
+        }
+        int offset = upperOffset(node, level);
+        int[] links = new int[upper.getInt(offset)];
+        for (int i = 0; i < links.length; i++) {
+            links[i] = upper.getInt(offset + Integer.BYTES * (i + 1));
+        }
+        return links;
+    }
+
+    private void setLinks(int node, int level, int[] links, int count) {
+        ByteBuffer buffer = level == 0 ? segment(node) : upper;
+        int offset = level == 0 ? nodeOffset(node) + 20 : upperOffset(node, level);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(offset + Integer.BYTES * (i + 1), links[i]);
+        }
+        buffer.putInt(offset, count);
+    }
+
+    private int upperOffset(int node, int level) {
+        int index = segment(node).getInt(nodeOffset(node) + 4) + level - 1;
+        return index * Integer.BYTES * (m + 1);
+    }
+
+    private float[] getVector(int node) {
+        ByteBuffer buffer = segment(node);
+        int offset = nodeOffset(node) + NODE_HEADER_SIZE + Integer.BYTES * 2 * m;
+        float[] vector = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = buffer.getFloat(offset + i * Float.BYTES);
+        }
+        return vector;
+    }
+
+    private float similarity(float[] query, int node) {
+        ByteBuffer buffer = segment(node);
+        int offset = nodeOffset(node) + NODE_HEADER_SIZE + Integer.BYTES * 2 * m;
+        float sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            sum += query[i] * buffer.getFloat(offset + i * Float.BYTES);
+        }
+        return sum;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static float[] normalize(float[] embedding) {
+        float norm = (float) Math.sqrt(dot(embedding, embedding));
+        float[] vector = new float[embedding.length];
+        for (int i = 0; i < embedding.length; i++) {
+            vector[i] = norm > 0 ? embedding[i] / norm : 0;
+        }
+        return vector;
+    }
+
+    private void writeText(ByteBuffer buffer, int offset, String text) {
+        if (textChannel == null) {
+            buffer.putLong(offset + 8, texts.size()).putInt(offset + 16, 0);
+            texts.add(text);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        try {
+            ByteBuffer data = ByteBuffer.wrap(bytes);
+            while (data.hasRemaining()) {
+                textChannel.write(data, textSize + data.position());
+            }
+        } catch (IOException e) {
+            throw new ModelException("Failed to write vector index text file: " + path, e);
+        }
+        buffer.putLong(offset + 8, textSize).putInt(offset + 16, bytes.length);
+        textSize += bytes.length;
+    }
+
+    private String readText(int node) {
+        ByteBuffer buffer = segment(node);
+        long position = buffer.getLong(nodeOffset(node) + 8);
+        if (textChannel == null) {
+            return texts.get((int) position);
+        }
+        ByteBuffer data = ByteBuffer.allocate(buffer.getInt(nodeOffset(node) + 16));
+        try {
+            while (data.hasRemaining()) {
+                if (textChannel.read(data, position + data.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new ModelException("Failed to read vector index text file: " + path, e);
+        }
+        return new String(data.array(), 0, data.position(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the number of vectors.
+     *
+     * @return int
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Flush the memory-mapped index file.
+     */
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            if (channel == null || dimension == 0) {
+                return;
+            }
+            textChannel.force(false);
+            for (ByteBuffer buffer : Lists.asList(header, upper, segments)) {
+                if (buffer instanceof MappedByteBuffer mapped) {
+                    mapped.force();
+                }
+            }
+        } catch (IOException e) {
+            throw new ModelException("Failed to flush vector index file: " + path, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        if (channel != null) {
+            try {
+                channel.close();
+                textChannel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close vector index file: {}.", path, e);
+            }
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static final class Candidate {
+        private final int node;
+        private final float score;
+    }
+
+    /**
+     * Search result of the vector index.
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static final class SearchResult {
+        private final int index;
+        private final String text;
+        private final float score;
+    }
+
+}
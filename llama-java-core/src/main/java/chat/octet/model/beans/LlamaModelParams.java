@@ -2,6 +2,8 @@ package chat.octet.model.beans;
 
 import lombok.ToString;
 
+import java.util.function.DoubleConsumer;
+
 /**
  * Llama model params entity
  *
@@ -49,5 +51,10 @@ public class LlamaModelParams {
      * Attempt one of the below optimization strategies that may help on some NUMA systems.
      */
     public int numaStrategy;
+    /**
+     * load progress callback, the progress is between 0 and 1, throw an exception to abort loading (nullable).
+     */
+    @ToString.Exclude
+    public DoubleConsumer progressCallback;
 
 }
@@ -9,7 +9,9 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
 
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
 
@@ -24,6 +26,21 @@ public class Status {
     private int pastTokenSize;
     @Setter
     private String systemPromptCache;
+    /**
+     * Session snapshot file, the K-V cache of the session is not restored from the snapshot yet.
+     */
+    @Setter
+    private Path snapshot;
+    /**
+     * Text of the cached tokens, and the token sizes where the text can be split, used by the incremental prompt.
+     */
+    private String cachedText;
+    private List<int[]> textBoundaries = Lists.newArrayList();
+    /**
+     * Number of tokens kept at the start of the context when shifting the context.
+     */
+    @Setter
+    private int keepTokenSize;
 
     public Status() {
         this.id = Platform.RANDOM_GENERATOR.nextInt(10000, 50000);
@@ -45,10 +62,18 @@ public class Status {
         this.inputLength = srcStatus.getInputLength();
         this.pastTokenSize = srcStatus.getPastTokenSize();
         this.systemPromptCache = srcStatus.getSystemPromptCache();
+        this.snapshot = srcStatus.getSnapshot();
+        this.cachedText = srcStatus.getCachedText();
+        this.textBoundaries = Lists.newArrayList(srcStatus.getTextBoundaries());
+        this.keepTokenSize = srcStatus.getKeepTokenSize();
     }
 
     public void appendTokens(int[] tokens) {
-        if (inputLength + tokens.length >= contextSize) {
+        appendTokens(tokens, false);
+    }
+
+    public void appendTokens(int[] tokens, boolean contextShift) {
+        if (inputLength + tokens.length >= contextSize && !(contextShift && shift(inputLength + tokens.length - contextSize + 1))) {
             reset();
             log.warn("Input tokens has exceeded the context size, status will be reset immediately, sequence id: {}.", id);
         }
@@ -76,7 +101,81 @@ public class Status {
             pastTokenSize = srcStatus.getPastTokenSize();
             generateTokens = Lists.newArrayList(srcStatus.getGenerateTokens());
             systemPromptCache = srcStatus.getSystemPromptCache();
+            snapshot = srcStatus.getSnapshot();
+            cachedText = srcStatus.getCachedText();
+            textBoundaries = Lists.newArrayList(srcStatus.getTextBoundaries());
+            keepTokenSize = srcStatus.getKeepTokenSize();
+        }
+    }
+
+    /**
+     * Shift the context, the oldest tokens after the kept tokens are removed from the context cache
+     * and the positions of the later tokens are shifted. At least half of the tokens after the kept tokens are removed.
+     * <p>The context cache is modified, it must be called by the thread that decodes the sequence,
+     * e.g. the scheduler thread when the sequence is admitted or generating.</p>
+     *
+     * @param minDiscardSize Minimum number of tokens to be removed.
+     * @return boolean, Returns false if the tokens cannot be removed.
+     */
+    public boolean shift(int minDiscardSize) {
+        int keep = Math.min(Math.max(keepTokenSize, LlamaService.addBosToken() ? 1 : 0), pastTokenSize);
+        int discard = Math.max(minDiscardSize, (pastTokenSize - keep) / 2);
+        //the last token is kept, it may not be decoded yet
+        if (discard <= 0 || keep + discard >= pastTokenSize) {
+            return false;
+        }
+        LlamaService.clearCache(id, keep, keep + discard);
+        LlamaService.shiftCache(id, keep + discard, contextSize, -discard);
+        System.arraycopy(inputIds, keep + discard, inputIds, keep, inputLength - keep - discard);
+        inputLength -= discard;
+        pastTokenSize -= discard;
+        //the text after the kept tokens does not match the cached tokens
+        textBoundaries.removeIf(boundary -> boundary[0] > keep);
+        cachedText = textBoundaries.isEmpty() ? null : cachedText.substring(0, textBoundaries.get(textBoundaries.size() - 1)[1]);
+        log.debug("Context shifted, sequence id: {}, keep token size: {}, discard token size: {}.", id, keep, discard);
+        return true;
+    }
+
+    /**
+     * Append the text of the cached tokens.
+     *
+     * @param text      Text of the tokens.
+     * @param tokenSize Token size at the end of the text.
+     */
+    public void appendText(String text, int tokenSize) {
+        cachedText = StringUtils.defaultString(cachedText) + text;
+        textBoundaries.add(new int[]{tokenSize, cachedText.length()});
+    }
+
+    /**
+     * Keep the longest cached tokens whose text is a prefix of the prompt,
+     * the other tokens are removed from the context cache.
+     *
+     * @param prompt Prompt text of the whole conversation.
+     * @return String, Prompt text after the kept tokens, or null if no token can be kept.
+     */
+    public String retainPrefix(String prompt) {
+        if (cachedText == null) {
+            return null;
+        }
+        int matched = StringUtils.indexOfDifference(cachedText, prompt);
+        if (matched == StringUtils.INDEX_NOT_FOUND) {
+            matched = cachedText.length();
+        }
+        //at least one token is decoded to get the logits
+        for (int i = textBoundaries.size() - 1; i >= 0; i--) {
+            int tokenSize = textBoundaries.get(i)[0];
+            int textLength = textBoundaries.get(i)[1];
+            if (textLength <= matched && textLength < prompt.length() && tokenSize <= pastTokenSize) {
+                LlamaService.clearCache(id, tokenSize, contextSize);
+                inputLength = tokenSize;
+                pastTokenSize = tokenSize;
+                cachedText = cachedText.substring(0, textLength);
+                textBoundaries = Lists.newArrayList(textBoundaries.subList(0, i + 1));
+                return prompt.substring(textLength);
+            }
         }
+        return null;
     }
 
     public FinishReason getFinishReason() {
@@ -97,6 +196,9 @@ public class Status {
         pastTokenSize = 0;
         inputLength = 0;
         systemPromptCache = null;
+        snapshot = null;
+        cachedText = null;
+        textBoundaries = Lists.newArrayList();
     }
 
 }
@@ -3,6 +3,7 @@ package chat.octet.model.components.criteria;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.FloatBuffer;
 
 /**
  * Customize a controller to implement stop rule control for model inference.
@@ -22,4 +23,20 @@ public interface StoppingCriteria {
      */
     boolean criteria(@Nullable int[] inputTokenIds, @Nonnull float[] scores, Object... args);
 
+    /**
+     * Stopping criteria
+     * <p>The default implementation copies the scores into an array,
+     * override it to avoid the copy when the scores are native logits.</p>
+     *
+     * @param inputTokenIds Indices of input sequence tokens in the vocabulary.
+     * @param scores        Prediction scores of a language modeling head. These can be logits for each vocabulary.
+     * @param args          Specific args to a stopping criteria.
+     * @return boolean `False` indicates we should continue, `True` indicates we should stop.
+     */
+    default boolean criteria(@Nullable int[] inputTokenIds, @Nonnull FloatBuffer scores, Object... args) {
+        float[] array = new float[scores.limit()];
+        scores.get(0, array);
+        return criteria(inputTokenIds, array, args);
+    }
+
 }
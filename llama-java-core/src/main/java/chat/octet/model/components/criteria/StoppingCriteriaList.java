@@ -6,6 +6,7 @@ import lombok.extern.slf4j.Slf4j;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.FloatBuffer;
 import java.util.Set;
 
 /**
@@ -46,4 +47,15 @@ public class StoppingCriteriaList implements StoppingCriteria {
         }
         return false;
     }
+
+    @Override
+    public boolean criteria(@Nullable int[] inputTokenIds, @Nonnull FloatBuffer scores, Object... args) {
+        for (StoppingCriteria criteria : criteriaSet) {
+            if (criteria.criteria(inputTokenIds, scores, args)) {
+                log.debug("Matched stop criteria, criteria name: {}.", criteria.getClass().getName());
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -4,6 +4,7 @@ import chat.octet.model.components.criteria.StoppingCriteria;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.FloatBuffer;
 
 public class MaxTimeCriteria implements StoppingCriteria {
 
@@ -24,4 +25,9 @@ public class MaxTimeCriteria implements StoppingCriteria {
     public boolean criteria(@Nullable int[] inputTokenIds, @Nonnull float[] scores, Object... args) {
         return System.currentTimeMillis() - this.initialTimestamp > maxTimeMillis;
     }
+
+    @Override
+    public boolean criteria(@Nullable int[] inputTokenIds, @Nonnull FloatBuffer scores, Object... args) {
+        return System.currentTimeMillis() - this.initialTimestamp > maxTimeMillis;
+    }
 }
@@ -1,49 +1,209 @@
 package chat.octet.model.components.criteria.impl;
 
 import chat.octet.model.LlamaService;
+import chat.octet.model.TokenEncoder;
 import chat.octet.model.beans.Token;
 import chat.octet.model.components.criteria.StoppingCriteria;
+import chat.octet.model.enums.LlamaTokenAttr;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 
-
+/**
+ * Stopping word criteria,
+ * The stopping words are matched on the generated text by an Aho-Corasick automaton, and numeric words are matched as token ids.
+ * A stopping word of a single control token (e.g. &lt;/s&gt;) is also matched as token id, control tokens may not be rendered as text.
+ * <p>Use {@link #newMatcher()} to match the text stream of a generation incrementally,
+ * the text that may be the start of a stopping word is held back, so the stopping word is never emitted.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
 public class StoppingWordCriteria implements StoppingCriteria {
 
-    private final List<int[]> stoppingTokens;
+    private static final Cache<List<String>, StoppingWordCriteria> CACHE = CacheBuilder.newBuilder().maximumSize(64).build();
+
+    private final Set<Integer> stoppingTokens;
+    private final List<Map<Character, Integer>> transitions;
+    private final int[] failures;
+    private final int[] depths;
+    //length of the longest stopping word that ends at the state, 0 if none
+    private final int[] matchLengths;
+    private final int maxLength;
 
     public StoppingWordCriteria(String... words) {
+        this(StoppingWordCriteria::getControlTokens, words);
+    }
+
+    /**
+     * Create stopping word criteria with the control token lookup.
+     *
+     * @param controlTokens Lookup of the control tokens of the stopping words.
+     * @param words         Stopping words.
+     */
+    StoppingWordCriteria(Function<List<String>, Set<Integer>> controlTokens, String... words) {
         Preconditions.checkNotNull(words, "Stopping words cannot be null");
-        this.stoppingTokens = Lists.newArrayList();
+        this.stoppingTokens = Sets.newHashSet();
+        this.transitions = Lists.newArrayList();
+        this.transitions.add(Maps.newHashMap());
 
+        List<Integer> wordLengths = Lists.newArrayList(0);
+        List<Integer> stateDepths = Lists.newArrayList(0);
+        List<String> texts = Lists.newArrayList();
+        int longest = 0;
         for (String word : words) {
             if (NumberUtils.isParsable(word)) {
-                stoppingTokens.add(new int[]{Integer.parseInt(word)});
-            } else {
-                int[] tokens = LlamaService.tokenize(word, false, true);
-                stoppingTokens.add(tokens);
+                stoppingTokens.add(Integer.parseInt(word));
+                continue;
+            }
+            if (StringUtils.isEmpty(word)) {
+                continue;
+            }
+            texts.add(word);
+            int state = 0;
+            for (int i = 0; i < word.length(); i++) {
+                Integer next = transitions.get(state).get(word.charAt(i));
+                if (next == null) {
+                    next = transitions.size();
+                    transitions.add(Maps.newHashMap());
+                    wordLengths.add(0);
+                    stateDepths.add(i + 1);
+                    transitions.get(state).put(word.charAt(i), next);
+                }
+                state = next;
+            }
+            wordLengths.set(state, word.length());
+            longest = Math.max(longest, word.length());
+        }
+        //stopping words are repeated in each request, the tokens are cached
+        if (!texts.isEmpty()) {
+            stoppingTokens.addAll(controlTokens.apply(texts));
+        }
+        this.maxLength = longest;
+        this.depths = stateDepths.stream().mapToInt(Integer::intValue).toArray();
+        this.matchLengths = wordLengths.stream().mapToInt(Integer::intValue).toArray();
+        this.failures = new int[transitions.size()];
+
+        //build the failure links in breadth-first order
+        Queue<Integer> queue = new ArrayDeque<>(transitions.get(0).values());
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (Map.Entry<Character, Integer> entry : transitions.get(state).entrySet()) {
+                int child = entry.getValue();
+                failures[child] = state == 0 ? 0 : next(failures[state], entry.getKey());
+                matchLengths[child] = Math.max(matchLengths[child], matchLengths[failures[child]]);
+                queue.add(child);
+            }
+        }
+    }
+
+    private static Set<Integer> getControlTokens(List<String> texts) {
+        Set<Integer> tokens = Sets.newHashSet();
+        for (int[] encoded : TokenEncoder.encode(texts, false, true)) {
+            if (encoded.length == 1 && (LlamaService.getTokenAttr(encoded[0]) & LlamaTokenAttr.LLAMA_TOKEN_ATTR_CONTROL.getType()) != 0) {
+                tokens.add(encoded[0]);
             }
         }
+        return tokens;
+    }
+
+    /**
+     * Get the cached stopping word criteria of the words.
+     *
+     * @param words Stopping words.
+     * @return StoppingWordCriteria
+     */
+    public static StoppingWordCriteria of(String... words) {
+        Preconditions.checkNotNull(words, "Stopping words cannot be null");
+        try {
+            return CACHE.get(Arrays.asList(words.clone()), () -> new StoppingWordCriteria(words));
+        } catch (ExecutionException e) {
+            throw new IllegalArgumentException(e.getCause());
+        }
+    }
+
+    /**
+     * Clear the cached stopping word criteria, the token ids belong to the vocabulary of the active model.
+     */
+    public static void clearCache() {
+        CACHE.invalidateAll();
+    }
+
+    private int next(int state, char c) {
+        while (state > 0 && !transitions.get(state).containsKey(c)) {
+            state = failures[state];
+        }
+        return transitions.get(state).getOrDefault(c, 0);
+    }
+
+    /**
+     * Create a matcher of a generation.
+     *
+     * @return Matcher
+     */
+    public Matcher newMatcher() {
+        return new Matcher();
     }
 
     @Override
     public boolean criteria(@Nullable int[] inputTokenIds, @Nonnull float[] scores, Object... args) {
-        if (args != null && args.length == 1) {
-            @SuppressWarnings("unchecked")
-            List<Token> generateTokens = (List<Token>) args[0];
-
-            for (int[] tokens : stoppingTokens) {
-                int length = tokens.length;
-                if (length > generateTokens.size()) {
-                    continue;
-                }
-                int[] lastTokens = generateTokens.subList(generateTokens.size() - length, generateTokens.size()).stream().mapToInt(Token::getId).toArray();
-                if (Arrays.equals(tokens, lastTokens)) {
+        return matches(args);
+    }
+
+    @Override
+    public boolean criteria(@Nullable int[] inputTokenIds, @Nonnull FloatBuffer scores, Object... args) {
+        return matches(args);
+    }
+
+    /**
+     * Match the stopping words that end in the last generated token.
+     */
+    private boolean matches(Object... args) {
+        if (args == null || args.length != 1) {
+            return false;
+        }
+        @SuppressWarnings("unchecked")
+        List<Token> generateTokens = (List<Token>) args[0];
+        if (generateTokens.isEmpty()) {
+            return false;
+        }
+        Token last = generateTokens.get(generateTokens.size() - 1);
+        if (stoppingTokens.contains(last.getId())) {
+            return true;
+        }
+        if (maxLength == 0) {
+            return false;
+        }
+        //only the tail text can contain a stopping word that ends in the last token
+        int lastLength = StringUtils.length(last.getText());
+        int start = generateTokens.size() - 1;
+        int length = lastLength;
+        while (start > 0 && length < maxLength + lastLength) {
+            length += StringUtils.length(generateTokens.get(--start).getText());
+        }
+        int state = 0;
+        int position = 0;
+        for (int i = start; i < generateTokens.size(); i++) {
+            String text = StringUtils.defaultString(generateTokens.get(i).getText());
+            for (int j = 0; j < text.length(); j++, position++) {
+                state = next(state, text.charAt(j));
+                if (matchLengths[state] > 0 && position >= length - lastLength) {
                     return true;
                 }
             }
@@ -51,4 +211,68 @@ public class StoppingWordCriteria implements StoppingCriteria {
         return false;
     }
 
+    /**
+     * Stopping word matcher of a generation.
+     */
+    public final class Matcher {
+        private final StringBuilder pending = new StringBuilder();
+        private int state;
+        private boolean matched;
+
+        private Matcher() {
+        }
+
+        /**
+         * Feed the next generated token, the text that may be the start of a stopping word is held back.
+         *
+         * @param tokenId Token id.
+         * @param text    Token text.
+         * @return String, Text that can be emitted, the matched stopping word is removed.
+         */
+        public String feed(int tokenId, String text) {
+            if (matched) {
+                return StringUtils.EMPTY;
+            }
+            if (stoppingTokens.contains(tokenId)) {
+                matched = true;
+                return flush();
+            }
+            for (int i = 0; i < text.length(); i++) {
+                state = next(state, text.charAt(i));
+                pending.append(text.charAt(i));
+                if (matchLengths[state] > 0) {
+                    matched = true;
+                    String emitted = pending.substring(0, pending.length() - matchLengths[state]);
+                    pending.setLength(0);
+                    return emitted;
+                }
+            }
+            int size = pending.length() - depths[state];
+            String emitted = pending.substring(0, size);
+            pending.delete(0, size);
+            return emitted;
+        }
+
+        /**
+         * Release the text held back at the end of generation.
+         *
+         * @return String
+         */
+        public String flush() {
+            String text = pending.toString();
+            pending.setLength(0);
+            state = 0;
+            return text;
+        }
+
+        /**
+         * Whether a stopping word is matched.
+         *
+         * @return boolean
+         */
+        public boolean isMatched() {
+            return matched;
+        }
+    }
+
 }
@@ -3,6 +3,7 @@ package chat.octet.model.components.processor;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.FloatBuffer;
 
 /**
  * Customize a processor to adjust the probability distribution of words and control the generation of model inference results.
@@ -22,4 +23,20 @@ public interface LogitsProcessor {
      */
     float[] processor(@Nullable int[] inputTokenIds, @Nonnull float[] scores, Object... args);
 
+    /**
+     * Logits processor, adjust the scores in place.
+     * <p>The default implementation copies the scores into an array,
+     * override it to avoid the copy when the scores are native logits.</p>
+     *
+     * @param inputTokenIds Indices of input sequence tokens in the vocabulary.
+     * @param scores        Prediction scores of a language modeling head. These can be logits for each vocabulary.
+     * @param args          Specific args to a logits processor.
+     */
+    default void processor(@Nullable int[] inputTokenIds, @Nonnull FloatBuffer scores, Object... args) {
+        float[] array = new float[scores.limit()];
+        scores.get(0, array);
+        float[] result = processor(inputTokenIds, array, args);
+        scores.put(0, result, 0, Math.min(result.length, scores.limit()));
+    }
+
 }
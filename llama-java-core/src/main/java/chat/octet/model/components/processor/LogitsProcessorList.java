@@ -2,37 +2,46 @@ package chat.octet.model.components.processor;
 
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.Optional;
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
- * Stopping criteria list
+ * Logits processor list,
+ * Processors are executed in the order they are added.
+ * <p>Consecutive sparse processors are compiled into one sparse pass,
+ * a later processor overrides the scores set by the earlier processors.</p>
  *
  * @author <a href="https://github.com/eoctet">William</a>
  */
 public final class LogitsProcessorList implements LogitsProcessor {
 
     private final Set<LogitsProcessor> logitsProcessors;
+    private volatile List<LogitsProcessor> pipeline;
 
     public LogitsProcessorList() {
-        this.logitsProcessors = Sets.newHashSet();
+        this.logitsProcessors = Sets.newLinkedHashSet();
     }
 
-    public LogitsProcessorList add(LogitsProcessor processor) {
+    public synchronized LogitsProcessorList add(LogitsProcessor processor) {
         for (LogitsProcessor p : logitsProcessors) {
             if (p.getClass() == processor.getClass()) {
                 return this;
             }
         }
         this.logitsProcessors.add(processor);
+        this.pipeline = null;
         return this;
     }
 
-    public boolean isEmpty() {
+    public synchronized boolean isEmpty() {
         return this.logitsProcessors.isEmpty();
     }
 
@@ -40,10 +49,70 @@ public final class LogitsProcessorList implements LogitsProcessor {
     public float[] processor(@Nullable int[] inputTokenIds, @Nonnull float[] scores, Object... args) {
         Preconditions.checkNotNull(scores, "Scores cannot be null");
 
-        float[] result = null;
+        float[] result = scores;
+        for (LogitsProcessor pro : getPipeline()) {
+            result = pro.processor(inputTokenIds, result, args);
+        }
+        return result;
+    }
+
+    @Override
+    public void processor(@Nullable int[] inputTokenIds, @Nonnull FloatBuffer scores, Object... args) {
+        Preconditions.checkNotNull(scores, "Scores cannot be null");
+
+        for (LogitsProcessor pro : getPipeline()) {
+            pro.processor(inputTokenIds, scores, args);
+        }
+    }
+
+    private List<LogitsProcessor> getPipeline() {
+        List<LogitsProcessor> stages = pipeline;
+        if (stages == null) {
+            stages = compile();
+        }
+        return stages;
+    }
+
+    /**
+     * Compile the processors into stages, consecutive sparse processors are merged into one stage.
+     *
+     * @return List of stages.
+     */
+    private synchronized List<LogitsProcessor> compile() {
+        if (pipeline != null) {
+            return pipeline;
+        }
+        List<LogitsProcessor> stages = Lists.newArrayList();
+        Map<Integer, Float> sparseScores = Maps.newLinkedHashMap();
         for (LogitsProcessor pro : logitsProcessors) {
-            result = pro.processor(inputTokenIds, scores, args);
+            if (pro instanceof SparseLogitsProcessor sparse) {
+                int[] tokenIds = sparse.getTokenIds();
+                float[] tokenScores = sparse.getTokenScores();
+                for (int i = 0; i < tokenIds.length; i++) {
+                    sparseScores.put(tokenIds[i], tokenScores[i]);
+                }
+            } else {
+                addSparseStage(stages, sparseScores);
+                stages.add(pro);
+            }
+        }
+        addSparseStage(stages, sparseScores);
+        this.pipeline = stages;
+        return stages;
+    }
+
+    private static void addSparseStage(List<LogitsProcessor> stages, Map<Integer, Float> sparseScores) {
+        if (sparseScores.isEmpty()) {
+            return;
+        }
+        int[] tokenIds = new int[sparseScores.size()];
+        float[] tokenScores = new float[sparseScores.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Float> entry : sparseScores.entrySet()) {
+            tokenIds[i] = entry.getKey();
+            tokenScores[i++] = entry.getValue();
         }
-        return Optional.ofNullable(result).orElse(scores);
+        stages.add(new SparseLogitsProcessor(tokenIds, tokenScores));
+        sparseScores.clear();
     }
 }
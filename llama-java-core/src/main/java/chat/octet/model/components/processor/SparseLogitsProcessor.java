@@ -0,0 +1,63 @@
+package chat.octet.model.components.processor;
+
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.FloatBuffer;
+
+/**
+ * Sparse logits processor, sets fixed scores of the specified tokens.
+ * <p>The scores do not depend on the input tokens,
+ * so consecutive sparse processors are merged into one pass by {@link LogitsProcessorList}.
+ * The merged pass only applies the token scores, so the processor methods cannot be overridden.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+public class SparseLogitsProcessor implements LogitsProcessor {
+    /**
+     * Score of the banned tokens.
+     */
+    public static final float BANNED_SCORE = Float.NEGATIVE_INFINITY;
+
+    private final int[] tokenIds;
+    private final float[] tokenScores;
+
+    /**
+     * Create sparse logits processor.
+     *
+     * @param tokenIds    Token ids.
+     * @param tokenScores Score of each token.
+     */
+    public SparseLogitsProcessor(int[] tokenIds, float[] tokenScores) {
+        Preconditions.checkNotNull(tokenIds, "Token ids cannot be null");
+        Preconditions.checkNotNull(tokenScores, "Token scores cannot be null");
+        Preconditions.checkArgument(tokenIds.length == tokenScores.length, "Token ids and scores must have the same length");
+        this.tokenIds = tokenIds.clone();
+        this.tokenScores = tokenScores.clone();
+    }
+
+    public int[] getTokenIds() {
+        return tokenIds.clone();
+    }
+
+    public float[] getTokenScores() {
+        return tokenScores.clone();
+    }
+
+    @Override
+    public final float[] processor(@Nullable int[] inputTokenIds, @Nonnull float[] scores, Object... args) {
+        for (int i = 0; i < tokenIds.length; i++) {
+            scores[tokenIds[i]] = tokenScores[i];
+        }
+        return scores;
+    }
+
+    @Override
+    public final void processor(@Nullable int[] inputTokenIds, @Nonnull FloatBuffer scores, Object... args) {
+        for (int i = 0; i < tokenIds.length; i++) {
+            scores.put(tokenIds[i], tokenScores[i]);
+        }
+    }
+}
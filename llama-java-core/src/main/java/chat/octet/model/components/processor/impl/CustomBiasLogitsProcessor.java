@@ -2,39 +2,43 @@ package chat.octet.model.components.processor.impl;
 
 
 import chat.octet.model.beans.LogitBias;
-import chat.octet.model.components.processor.LogitsProcessor;
+import chat.octet.model.components.processor.SparseLogitsProcessor;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Floats;
+import com.google.common.primitives.Ints;
 import lombok.extern.slf4j.Slf4j;
 
-import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
 import java.util.Map;
 
 @Slf4j
-public class CustomBiasLogitsProcessor implements LogitsProcessor {
-
-    private final LogitBias logitBias;
-    private final int vocabSize;
+public class CustomBiasLogitsProcessor extends SparseLogitsProcessor {
 
     public CustomBiasLogitsProcessor(LogitBias logitBias, int vocabSize) {
-        Preconditions.checkNotNull(logitBias, "Logit bias cannot be null");
-        this.logitBias = logitBias;
-        this.vocabSize = vocabSize;
+        this(parse(logitBias, vocabSize));
     }
 
-    @Override
-    public float[] processor(@Nullable int[] inputTokenIds, @Nonnull float[] scores, Object... args) {
+    private CustomBiasLogitsProcessor(Map<Integer, Float> tokenScores) {
+        super(Ints.toArray(tokenScores.keySet()), Floats.toArray(tokenScores.values()));
+    }
+
+    /**
+     * Parse the logit bias once, "false" means the token is banned.
+     */
+    private static Map<Integer, Float> parse(LogitBias logitBias, int vocabSize) {
+        Preconditions.checkNotNull(logitBias, "Logit bias cannot be null");
+        Map<Integer, Float> tokenScores = Maps.newLinkedHashMap();
         for (Map.Entry<Integer, String> entry : logitBias.entrySet()) {
             int token = entry.getKey();
             String value = entry.getValue();
             if (token >= 0 && token < vocabSize) {
                 try {
-                    scores[token] = "false".equalsIgnoreCase(value) ? Float.MIN_VALUE : Float.parseFloat(value);
+                    tokenScores.put(token, "false".equalsIgnoreCase(value) ? BANNED_SCORE : Float.parseFloat(value));
                 } catch (Exception e) {
                     log.error("Error: ", e);
                 }
             }
         }
-        return scores;
+        return tokenScores;
     }
 }
@@ -1,26 +1,20 @@
 package chat.octet.model.components.processor.impl;
 
 
-import chat.octet.model.components.processor.LogitsProcessor;
+import chat.octet.model.components.processor.SparseLogitsProcessor;
 import com.google.common.base.Preconditions;
 
-import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
+import java.util.Arrays;
 
-public class NoBadWordsLogitsProcessor implements LogitsProcessor {
-
-    private final int[] badWordsTokenIds;
+public class NoBadWordsLogitsProcessor extends SparseLogitsProcessor {
 
     public NoBadWordsLogitsProcessor(int[] badWordsTokenIds) {
-        Preconditions.checkNotNull(badWordsTokenIds, "Bad word tokens cannot be null");
-        this.badWordsTokenIds = badWordsTokenIds;
+        super(Preconditions.checkNotNull(badWordsTokenIds, "Bad word tokens cannot be null"), bannedScores(badWordsTokenIds.length));
     }
 
-    @Override
-    public float[] processor(@Nullable int[] inputTokenIds, @Nonnull float[] scores, Object... args) {
-        for (int id : badWordsTokenIds) {
-            scores[id] = Float.MIN_VALUE;
-        }
+    private static float[] bannedScores(int size) {
+        float[] scores = new float[size];
+        Arrays.fill(scores, BANNED_SCORE);
         return scores;
     }
 }
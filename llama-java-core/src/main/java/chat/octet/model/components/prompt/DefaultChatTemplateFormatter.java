@@ -6,11 +6,19 @@ import chat.octet.model.functions.Function;
 import chat.octet.model.functions.FunctionConstants;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.Resources;
 import com.hubspot.jinjava.Jinjava;
 import com.hubspot.jinjava.JinjavaConfig;
+import com.hubspot.jinjava.interpret.Context;
+import com.hubspot.jinjava.interpret.FatalTemplateErrorsException;
+import com.hubspot.jinjava.interpret.JinjavaInterpreter;
+import com.hubspot.jinjava.interpret.TemplateError;
+import com.hubspot.jinjava.tree.Node;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
@@ -22,14 +30,25 @@ import java.util.Optional;
 /**
  * Default chat template formatter.
  * Provides a standardized method for handling and displaying chat prompts.
+ * <p>The template is parsed once. For the bundled templates, the rendered messages are cached,
+ * and a new request only renders the messages appended to a cached conversation.</p>
  *
  * @author <a href="https://github.com/eoctet">William</a>
  */
 @Slf4j
 public class DefaultChatTemplateFormatter implements ChatTemplateFormatter {
+    private static final int MAX_CACHED_PREFIXES = 256;
+    private static final int MAX_APPENDED_MESSAGES = 4;
+
     private final Jinjava jinJava;
     @Getter
-    private String chatTemplate;
+    private final String chatTemplate;
+    private final Node templateTree;
+    private final boolean hasMessages;
+    private final boolean hasGenerationPrompt;
+    private final boolean hasFunctionCalls;
+    private final boolean incremental;
+    private final Cache<PrefixKey, String> prefixCache = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_PREFIXES).build();
 
     public DefaultChatTemplateFormatter(String modelType, String defaultChatTemplate) {
         Preconditions.checkNotNull(modelType, "Model type name cannot be null");
@@ -37,40 +56,154 @@ public class DefaultChatTemplateFormatter implements ChatTemplateFormatter {
 
         JinjavaConfig config = JinjavaConfig.newBuilder().withTrimBlocks(true).build();
         this.jinJava = new Jinjava(config);
+        String template;
+        boolean bundled = true;
         try {
-            this.chatTemplate = Resources.toString(Resources.getResource(resourcePath), Charsets.UTF_8);
+            template = Resources.toString(Resources.getResource(resourcePath), Charsets.UTF_8);
             log.info("Loaded chat template from local resource: {}", resourcePath);
         } catch (Exception e) {
             if (StringUtils.isBlank(defaultChatTemplate)) {
                 throw new ModelException("Failed to load local chat template: " + resourcePath, e);
             }
-            this.chatTemplate = defaultChatTemplate;
+            template = defaultChatTemplate;
+            bundled = false;
             log.warn("Failed to load local chat template, use default template.");
         }
-        log.debug("Created a new chat formatter, chat template: {}", this.chatTemplate);
+        this.chatTemplate = template;
+        this.hasMessages = StringUtils.contains(chatTemplate, "messages");
+        this.hasGenerationPrompt = StringUtils.contains(chatTemplate, "add_generation_prompt");
+        this.hasFunctionCalls = StringUtils.contains(chatTemplate, "add_function_calls");
+        this.templateTree = parse(chatTemplate);
+        this.incremental = bundled && hasMessages && verifyIncremental();
+        log.debug("Created a new chat formatter, incremental: {}, chat template: {}", incremental, this.chatTemplate);
     }
 
     public DefaultChatTemplateFormatter(String modelType) {
         this(modelType, null);
     }
 
-    @Override
-    public String format(List<ChatMessage> messages, List<Function> functions, boolean addGenerationPrompt, Map<String, Object> params) {
-        Preconditions.checkNotNull(messages, "Chat messages cannot be null");
-        //check chat template
-        if (!StringUtils.contains(chatTemplate, "messages")) {
-            throw new IllegalArgumentException("The chat template must contain the 'messages' variable");
+    private Node parse(String template) {
+        JinjavaInterpreter interpreter = jinJava.newInterpreter();
+        JinjavaInterpreter.pushCurrent(interpreter);
+        try {
+            Node tree = interpreter.parse(template);
+            checkErrors(interpreter);
+            return tree;
+        } finally {
+            JinjavaInterpreter.popCurrent();
+        }
+    }
+
+    private String render(Map<String, Object> context) {
+        JinjavaInterpreter interpreter = new JinjavaInterpreter(jinJava, new Context(jinJava.getGlobalContext(), context), jinJava.getGlobalConfig());
+        JinjavaInterpreter.pushCurrent(interpreter);
+        try {
+            String output = interpreter.render(templateTree);
+            checkErrors(interpreter);
+            return output;
+        } finally {
+            JinjavaInterpreter.popCurrent();
         }
+    }
 
+    private void checkErrors(JinjavaInterpreter interpreter) {
+        List<TemplateError> errors = interpreter.getErrorsCopy().stream().filter(e -> e.getSeverity() == TemplateError.ErrorType.FATAL).toList();
+        if (!errors.isEmpty()) {
+            throw new FatalTemplateErrorsException(chatTemplate, errors);
+        }
+    }
+
+    /**
+     * Verify that rendering the appended messages after the cached conversation
+     * gives the same prompt as rendering the whole conversation.
+     */
+    private boolean verifyIncremental() {
+        List<List<ChatMessage>> probes = Lists.newArrayList(
+                Lists.newArrayList(ChatMessage.toSystem("S"), ChatMessage.toUser("U1"), ChatMessage.toAssistant("A1"),
+                        ChatMessage.toUser("U2"), ChatMessage.toAssistant("A2"), ChatMessage.toUser("U3")),
+                Lists.newArrayList(ChatMessage.toUser("U1"), ChatMessage.toAssistant("A1"), ChatMessage.toUser("U2"),
+                        ChatMessage.toAssistant("A2"), ChatMessage.toUser("U3"))
+        );
+        try {
+            for (List<ChatMessage> probe : probes) {
+                for (int size = 2; size <= probe.size(); size++) {
+                    List<ChatMessage> messages = probe.subList(0, size);
+                    for (int prefix = 1; prefix < size; prefix++) {
+                        String cached = render(createContext(probe.subList(0, prefix), false, null));
+                        for (boolean addGenerationPrompt : new boolean[]{false, true}) {
+                            String expected = render(createContext(messages, addGenerationPrompt, null));
+                            String content = append(cached, messages.subList(prefix - 1, size), null);
+                            if (content == null || !expected.equals(addGenerationPrompt ? addGenerationPrompt(content, messages, null) : content)) {
+                                return false;
+                            }
+                        }
+                    }
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            log.debug("Chat template cannot be rendered incrementally.", e);
+            return false;
+        }
+    }
+
+    private Map<String, Object> createContext(List<ChatMessage> messages, boolean addGenerationPrompt, Map<String, Object> params) {
         Map<String, Object> context = Maps.newLinkedHashMap();
         if (params != null && !params.isEmpty()) {
             context.putAll(params);
         }
-        if (StringUtils.contains(chatTemplate, "add_generation_prompt")) {
+        if (hasGenerationPrompt) {
             context.put("add_generation_prompt", addGenerationPrompt);
         }
+        context.put("messages", messages);
+        return context;
+    }
 
-        if (StringUtils.contains(chatTemplate, "add_function_calls") && functions != null && !functions.isEmpty()) {
+    /**
+     * Render the messages after the cached prompt, the first message is the last cached message
+     * and only renders as the context of the template.
+     */
+    private String append(String cached, List<ChatMessage> messages, Map<String, Object> params) {
+        String head = render(createContext(messages.subList(0, 1), false, params));
+        String tail = render(createContext(messages, false, params));
+        if (!tail.startsWith(head)) {
+            return null;
+        }
+        return cached + tail.substring(head.length());
+    }
+
+    private String addGenerationPrompt(String content, List<ChatMessage> messages, Map<String, Object> params) {
+        List<ChatMessage> last = messages.subList(messages.size() - 1, messages.size());
+        String head = render(createContext(last, false, params));
+        String tail = render(createContext(last, true, params));
+        return content + StringUtils.removeStart(tail, head);
+    }
+
+    private String formatIncremental(List<ChatMessage> messages, boolean addGenerationPrompt, Map<String, Object> params) {
+        String content = null;
+        for (int prefix = messages.size() - 1; prefix >= Math.max(1, messages.size() - MAX_APPENDED_MESSAGES) && content == null; prefix--) {
+            String cached = prefixCache.getIfPresent(new PrefixKey(messages.subList(0, prefix), params));
+            if (cached != null) {
+                content = append(cached, messages.subList(prefix - 1, messages.size()), params);
+            }
+        }
+        if (content == null) {
+            content = render(createContext(messages, false, params));
+        }
+        prefixCache.put(new PrefixKey(messages, params), content);
+        return addGenerationPrompt ? addGenerationPrompt(content, messages, params) : content;
+    }
+
+    @Override
+    public String format(List<ChatMessage> messages, List<Function> functions, boolean addGenerationPrompt, Map<String, Object> params) {
+        Preconditions.checkNotNull(messages, "Chat messages cannot be null");
+        //check chat template
+        if (!hasMessages) {
+            throw new IllegalArgumentException("The chat template must contain the 'messages' variable");
+        }
+
+        if (hasFunctionCalls && functions != null && !functions.isEmpty()) {
+            Map<String, Object> context = createContext(messages, addGenerationPrompt, params);
             context.put("add_function_calls", true);
             context.put("functions", functions);
             // filter chat messages and reformat user message
@@ -90,10 +223,28 @@ public class DefaultChatTemplateFormatter implements ChatTemplateFormatter {
                 }
             }
             context.put("messages", lists);
-        } else {
-            context.put("messages", messages);
+            return render(context);
+        }
+        if (incremental && !messages.isEmpty()) {
+            return formatIncremental(messages, addGenerationPrompt, params);
+        }
+        return render(createContext(messages, addGenerationPrompt, params));
+    }
+
+    /**
+     * Cache key of the rendered messages, compared by the roles and contents.
+     */
+    @EqualsAndHashCode
+    private static final class PrefixKey {
+        private final List<ChatMessage.ChatRole> roles;
+        private final List<String> contents;
+        private final Map<String, Object> params;
+
+        private PrefixKey(List<ChatMessage> messages, Map<String, Object> params) {
+            this.roles = messages.stream().map(ChatMessage::getRole).toList();
+            this.contents = messages.stream().map(ChatMessage::getContent).toList();
+            this.params = params == null || params.isEmpty() ? Map.of() : Maps.newHashMap(params);
         }
-        return jinJava.render(chatTemplate, context);
     }
 
 }
@@ -0,0 +1,479 @@
+package chat.octet.model.components.sampler;
+
+
+import chat.octet.model.parameters.GenerateParameter;
+import com.google.common.base.Preconditions;
+
+import java.nio.FloatBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * Java sampler chain,
+ * Samples the next token on the JVM with the same steps as the native sampling:
+ * repetition penalties, top-k, tail free, typical, top-p, min-p, temperature (or dynamic temperature) and mirostat.
+ * <p>Candidates are kept in primitive arrays which are reused by each sampling, top-k uses partial selection.
+ * The sampler is stateful (mirostat and random state) and must be used by only one generation.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+public class SamplerChain {
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int MIROSTAT_M = 100;
+
+    private final GenerateParameter generateParams;
+    private final int vocabSize;
+    private final int tokenNl;
+    private final SplittableRandom random;
+    //candidates
+    private final int[] ids;
+    private final float[] logits;
+    private final float[] probs;
+    private final float[] keys;
+    private final int[] tokenCounts;
+    private int size;
+    private boolean sorted;
+    private float mirostatMu;
+    private int equalFrom;
+    private int equalTo;
+
+    /**
+     * Create sampler chain.
+     *
+     * @param generateParams Generation parameter.
+     * @param vocabSize      Vocabulary size.
+     * @param tokenNl        New line token id.
+     */
+    public SamplerChain(GenerateParameter generateParams, int vocabSize, int tokenNl) {
+        Preconditions.checkNotNull(generateParams, "Generate parameter cannot be null");
+        this.generateParams = generateParams;
+        this.vocabSize = vocabSize;
+        this.tokenNl = tokenNl;
+        this.random = generateParams.getSamplingSeed() < 0 ? new SplittableRandom() : new SplittableRandom(generateParams.getSamplingSeed());
+        this.ids = new int[vocabSize];
+        this.logits = new float[vocabSize];
+        this.probs = new float[vocabSize];
+        this.keys = new float[vocabSize];
+        this.tokenCounts = new int[vocabSize];
+        this.mirostatMu = 2.0f * generateParams.getMirostatTAU();
+    }
+
+    /**
+     * Sampling the next token.
+     *
+     * @param scores           Logits of the vocabulary.
+     * @param lastTokens       Last token array.
+     * @param lastTokensOffset Offset of the last tokens in the array.
+     * @param lastTokensSize   Number of the last tokens.
+     * @return int, Returns the sampled token id.
+     */
+    public int sample(FloatBuffer scores, int[] lastTokens, int lastTokensOffset, int lastTokensSize) {
+        scores.get(0, logits, 0, vocabSize);
+        return sample(lastTokens, lastTokensOffset, lastTokensSize);
+    }
+
+    /**
+     * Sampling the next token.
+     *
+     * @param scores           Logits of the vocabulary.
+     * @param lastTokens       Last token array.
+     * @param lastTokensOffset Offset of the last tokens in the array.
+     * @param lastTokensSize   Number of the last tokens.
+     * @return int, Returns the sampled token id.
+     */
+    public int sample(float[] scores, int[] lastTokens, int lastTokensOffset, int lastTokensSize) {
+        System.arraycopy(scores, 0, logits, 0, vocabSize);
+        return sample(lastTokens, lastTokensOffset, lastTokensSize);
+    }
+
+    private int sample(int[] lastTokens, int lastTokensOffset, int lastTokensSize) {
+        for (int i = 0; i < vocabSize; i++) {
+            ids[i] = i;
+        }
+        size = vocabSize;
+        sorted = false;
+
+        float nlLogit = tokenNl >= 0 ? logits[tokenNl] : 0;
+        if (lastTokens != null && lastTokensSize > 0) {
+            penalties(lastTokens, lastTokensOffset, lastTokensSize);
+        }
+        if (!generateParams.isPenalizeNl() && tokenNl >= 0) {
+            logits[tokenNl] = nlLogit;
+        }
+
+        float temperature = generateParams.getTemperature();
+        if (temperature <= 0) {
+            return greedy();
+        }
+        switch (generateParams.getMirostatMode()) {
+            case V1:
+                temperature(temperature);
+                return mirostat();
+            case V2:
+                temperature(temperature);
+                return mirostatV2();
+            default:
+                topK(generateParams.getTopK() <= 0 ? vocabSize : generateParams.getTopK(), 1);
+                tailFree(generateParams.getTsf(), 1);
+                typical(generateParams.getTypical(), 1);
+                topP(generateParams.getTopP(), 1);
+                minP(generateParams.getMinP(), 1);
+                if (generateParams.getDynatempRange() > 0) {
+                    float min = Math.max(0.0f, temperature - generateParams.getDynatempRange());
+                    float max = Math.max(0.0f, temperature + generateParams.getDynatempRange());
+                    entropy(min, max, generateParams.getDynatempExponent());
+                } else {
+                    temperature(temperature);
+                }
+                return ids[distribution()];
+        }
+    }
+
+    private void penalties(int[] lastTokens, int offset, int length) {
+        float penalty = generateParams.getRepeatPenalty();
+        float frequency = generateParams.getFrequencyPenalty();
+        float presence = generateParams.getPresencePenalty();
+        if (penalty == 1.0f && frequency == 0.0f && presence == 0.0f) {
+            return;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            if (lastTokens[i] >= 0 && lastTokens[i] < vocabSize) {
+                tokenCounts[lastTokens[i]]++;
+            }
+        }
+        //candidates are in token id order before sorting
+        for (int i = offset; i < offset + length; i++) {
+            int token = lastTokens[i];
+            if (token < 0 || token >= vocabSize || tokenCounts[token] == 0) {
+                continue;
+            }
+            int count = tokenCounts[token];
+            tokenCounts[token] = 0;
+            logits[token] = logits[token] <= 0 ? logits[token] * penalty : logits[token] / penalty;
+            logits[token] -= count * frequency + presence;
+        }
+    }
+
+    private int greedy() {
+        int max = 0;
+        for (int i = 1; i < size; i++) {
+            if (logits[i] > logits[max]) {
+                max = i;
+            }
+        }
+        return ids[max];
+    }
+
+    private void softmax() {
+        if (!sorted) {
+            sort(logits, 0, size);
+            sorted = true;
+        }
+        float max = logits[0];
+        float sum = 0.0f;
+        for (int i = 0; i < size; i++) {
+            float p = (float) Math.exp(logits[i] - max);
+            probs[i] = p;
+            sum += p;
+        }
+        for (int i = 0; i < size; i++) {
+            probs[i] /= sum;
+        }
+    }
+
+    private void topK(int k, int minKeep) {
+        k = Math.min(Math.max(k, minKeep), size);
+        if (!sorted) {
+            if (k < size) {
+                select(logits, 0, size, k);
+            }
+            sort(logits, 0, k);
+            sorted = true;
+        }
+        size = k;
+    }
+
+    private void tailFree(float z, int minKeep) {
+        if (z >= 1.0f || size <= 2) {
+            return;
+        }
+        softmax();
+        //second derivatives of the probabilities, stored in the keys
+        int length = size - 2;
+        float sum = 0.0f;
+        for (int i = 0; i < length; i++) {
+            float d = (probs[i] - probs[i + 1]) - (probs[i + 1] - probs[i + 2]);
+            keys[i] = Math.abs(d);
+            sum += keys[i];
+        }
+        float cumSum = 0.0f;
+        int lastIndex = size;
+        for (int i = 0; i < length; i++) {
+            cumSum += sum > 1e-6f ? keys[i] / sum : 1.0f / length;
+            if (cumSum > z && i >= minKeep) {
+                lastIndex = i;
+                break;
+            }
+        }
+        size = lastIndex;
+    }
+
+    private void typical(float p, int minKeep) {
+        if (p >= 1.0f) {
+            return;
+        }
+        softmax();
+        float entropy = 0.0f;
+        for (int i = 0; i < size; i++) {
+            entropy += (float) (-probs[i] * Math.log(probs[i]));
+        }
+        //sort by the absolute difference between the negative log probability and the entropy, in ascending order
+        for (int i = 0; i < size; i++) {
+            keys[i] = -Math.abs((float) -Math.log(probs[i]) - entropy);
+        }
+        sort(keys, 0, size);
+        float cumSum = 0.0f;
+        int lastIndex = size;
+        for (int i = 0; i < size; i++) {
+            cumSum += probs[i];
+            if (cumSum > p && i >= minKeep - 1) {
+                lastIndex = i + 1;
+                break;
+            }
+        }
+        size = lastIndex;
+        sorted = false;
+    }
+
+    private void topP(float p, int minKeep) {
+        if (p >= 1.0f) {
+            return;
+        }
+        softmax();
+        float cumSum = 0.0f;
+        int lastIndex = size;
+        for (int i = 0; i < size; i++) {
+            cumSum += probs[i];
+            if (cumSum >= p && i + 1 >= minKeep) {
+                lastIndex = i + 1;
+                break;
+            }
+        }
+        size = lastIndex;
+    }
+
+    private void minP(float p, int minKeep) {
+        if (p <= 0.0f || size == 0) {
+            return;
+        }
+        if (!sorted) {
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < size; i++) {
+                max = Math.max(max, logits[i]);
+            }
+            float minLogit = max + (float) Math.log(p);
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (logits[i] >= minLogit) {
+                    ++kept;
+                }
+            }
+            if (kept >= minKeep) {
+                int index = 0;
+                for (int i = 0; i < size; i++) {
+                    if (logits[i] >= minLogit) {
+                        swap(null, index++, i);
+                    }
+                }
+                size = kept;
+                return;
+            }
+            sort(logits, 0, size);
+            sorted = true;
+        }
+        float minLogit = logits[0] + (float) Math.log(p);
+        int i = 1;
+        while (i < size && (logits[i] >= minLogit || i < minKeep)) {
+            ++i;
+        }
+        size = i;
+    }
+
+    private void temperature(float temperature) {
+        for (int i = 0; i < size; i++) {
+            logits[i] /= temperature;
+        }
+    }
+
+    private void entropy(float minTemperature, float maxTemperature, float exponent) {
+        if (size <= 1) {
+            return;
+        }
+        float maxEntropy = (float) -Math.log(1.0f / size);
+        softmax();
+        float entropy = 0.0f;
+        for (int i = 0; i < size; i++) {
+            if (probs[i] > 0.0f) {
+                entropy -= (float) (probs[i] * Math.log(probs[i]));
+            }
+        }
+        float normalizedEntropy = entropy / maxEntropy;
+        float temperature = minTemperature + (maxTemperature - minTemperature) * (float) Math.pow(normalizedEntropy, exponent);
+        temperature(temperature);
+
+        double max = logits[0];
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            double p = Math.exp(logits[i] - max);
+            probs[i] = (float) p;
+            sum += p;
+        }
+        for (int i = 0; i < size; i++) {
+            probs[i] = (float) (probs[i] / sum);
+        }
+    }
+
+    private int mirostat() {
+        float n = size;
+        softmax();
+        float sumTiBi = 0.0f;
+        float sumTiSq = 0.0f;
+        for (int i = 0; i < MIROSTAT_M - 1 && i < size - 1; i++) {
+            float ti = (float) Math.log((i + 2) / (float) (i + 1));
+            float bi = (float) Math.log(probs[i] / probs[i + 1]);
+            sumTiBi += ti * bi;
+            sumTiSq += ti * ti;
+        }
+        float sHat = sumTiBi / sumTiSq;
+        float epsilonHat = sHat - 1;
+        float k = (float) Math.pow((epsilonHat * Math.pow(2, mirostatMu)) / (1 - Math.pow(n, -epsilonHat)), 1 / sHat);
+        topK((int) k, 1);
+        int index = distribution();
+        updateMirostatMu(index);
+        return ids[index];
+    }
+
+    private int mirostatV2() {
+        softmax();
+        //truncate the words with surprise values greater than mu
+        int length = 0;
+        while (length < size && -log2(probs[length]) <= mirostatMu) {
+            ++length;
+        }
+        size = Math.max(1, length);
+        int index = distribution();
+        updateMirostatMu(index);
+        return ids[index];
+    }
+
+    private void updateMirostatMu(int index) {
+        float error = -log2(probs[index]) - generateParams.getMirostatTAU();
+        mirostatMu -= generateParams.getMirostatETA() * error;
+    }
+
+    /**
+     * Sampling the candidate index from the probability distribution.
+     */
+    private int distribution() {
+        softmax();
+        double target = random.nextDouble();
+        double cumSum = 0.0;
+        for (int i = 0; i < size; i++) {
+            cumSum += probs[i];
+            if (target < cumSum) {
+                return i;
+            }
+        }
+        return size - 1;
+    }
+
+    private static float log2(float value) {
+        return (float) (Math.log(value) / Math.log(2));
+    }
+
+    /**
+     * Partition the candidates, the first k candidates have the largest keys.
+     */
+    private void select(float[] sortKeys, int from, int to, int k) {
+        int left = from;
+        int right = to - 1;
+        while (right > left) {
+            partition(sortKeys, left, right);
+            if (k < equalFrom) {
+                right = equalFrom - 1;
+            } else if (k > equalTo + 1) {
+                left = equalTo + 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sort the candidates by the keys in descending order.
+     */
+    private void sort(float[] sortKeys, int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            partition(sortKeys, from, to - 1);
+            int lower = equalFrom;
+            int upper = equalTo + 1;
+            //recurse into the smaller part
+            if (lower - from < to - upper) {
+                sort(sortKeys, from, lower);
+                from = upper;
+            } else {
+                sort(sortKeys, upper, to);
+                to = lower;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && sortKeys[j] > sortKeys[j - 1]; j--) {
+                swap(sortKeys, j, j - 1);
+            }
+        }
+    }
+
+    /**
+     * Three-way partition around the median of three,
+     * candidates equal to the pivot are placed in the range [equalFrom, equalTo].
+     */
+    private void partition(float[] sortKeys, int left, int right) {
+        float a = sortKeys[left];
+        float b = sortKeys[(left + right) >>> 1];
+        float c = sortKeys[right];
+        float pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+        int lower = left;
+        int upper = right;
+        int i = left;
+        while (i <= upper) {
+            if (sortKeys[i] > pivot) {
+                swap(sortKeys, i++, lower++);
+            } else if (sortKeys[i] < pivot) {
+                swap(sortKeys, i, upper--);
+            } else {
+                ++i;
+            }
+        }
+        equalFrom = lower;
+        equalTo = upper;
+    }
+
+    private void swap(float[] sortKeys, int i, int j) {
+        if (i == j) {
+            return;
+        }
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        float logit = logits[i];
+        logits[i] = logits[j];
+        logits[j] = logit;
+        float prob = probs[i];
+        probs[i] = probs[j];
+        probs[j] = prob;
+        if (sortKeys == keys) {
+            float key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package chat.octet.model.components.speculative;
+
+
+import chat.octet.model.LlamaService;
+import chat.octet.model.beans.Status;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Draft model proposer,
+ * The loaded draft model proposes the draft tokens greedily.
+ * <p>The K-V cache of the draft model is kept in the same sequence id as the main model,
+ * only the tokens rejected by the main model are decoded again by the draft model.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Slf4j
+public class DraftModelProposer implements DraftProposer {
+    private int inputLength;
+    private int draftSize;
+    private int pastTokenSize;
+
+    @Override
+    public int propose(Status status, int[] draftTokens, int maxSize) {
+        inputLength = status.getInputLength();
+        draftSize = LlamaService.draftTokens(status.getId(), status.getInputIds(), inputLength, pastTokenSize, draftTokens, maxSize);
+        if (draftSize < 0) {
+            log.warn("Failed to generate draft tokens, sequence id: {}.", status.getId());
+            return 0;
+        }
+        return draftSize;
+    }
+
+    @Override
+    public void accept(int acceptedSize) {
+        //the draft model cache is decoded again if drafting failed, and the last draft token is not decoded
+        pastTokenSize = draftSize < 0 ? 0 : inputLength + Math.min(acceptedSize, Math.max(0, draftSize - 1));
+    }
+
+    @Override
+    public void release(Status status) {
+        LlamaService.clearDraftCache(status.getId());
+        pastTokenSize = 0;
+    }
+
+}
@@ -0,0 +1,41 @@
+package chat.octet.model.components.speculative;
+
+
+import chat.octet.model.beans.Status;
+
+/**
+ * Draft proposer of speculative decoding,
+ * Proposes the draft tokens after the input tokens, the draft tokens are verified by the main model in one batch.
+ * <p>A proposer is created for each generation and is not thread-safe.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+public interface DraftProposer {
+
+    /**
+     * Propose the draft tokens.
+     *
+     * @param status      Generation status.
+     * @param draftTokens Buffer of the draft tokens.
+     * @param maxSize     Maximum number of draft tokens.
+     * @return int, Number of draft tokens.
+     */
+    int propose(Status status, int[] draftTokens, int maxSize);
+
+    /**
+     * Accept the leading draft tokens of the last proposal.
+     *
+     * @param acceptedSize Number of accepted draft tokens.
+     */
+    default void accept(int acceptedSize) {
+    }
+
+    /**
+     * Release the resources at the end of generation.
+     *
+     * @param status Generation status.
+     */
+    default void release(Status status) {
+    }
+
+}
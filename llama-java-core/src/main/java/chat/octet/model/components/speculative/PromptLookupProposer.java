@@ -0,0 +1,73 @@
+package chat.octet.model.components.speculative;
+
+
+import chat.octet.model.beans.Status;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prompt lookup proposer,
+ * Finds the latest n-gram in the input tokens that matches the last tokens,
+ * and proposes the tokens after it as the draft tokens.
+ * <p>The n-grams are indexed incrementally as the input grows, from the largest n-gram size to 1.
+ * Hash collisions only cause rejected draft tokens, the output is verified by the main model.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+public class PromptLookupProposer implements DraftProposer {
+    private final int ngramSize;
+    private final List<Map<Long, Integer>> ngramIndexes;
+    private int indexedLength = 1;
+
+    /**
+     * Create prompt lookup proposer.
+     *
+     * @param ngramSize Maximum n-gram size.
+     */
+    public PromptLookupProposer(int ngramSize) {
+        Preconditions.checkArgument(ngramSize > 0, "N-gram size must be greater than 0");
+        this.ngramSize = ngramSize;
+        this.ngramIndexes = Lists.newArrayListWithCapacity(ngramSize);
+        for (int i = 0; i < ngramSize; i++) {
+            this.ngramIndexes.add(Maps.newHashMap());
+        }
+    }
+
+    @Override
+    public int propose(Status status, int[] draftTokens, int maxSize) {
+        int[] tokens = status.getInputIds();
+        int length = status.getInputLength();
+        //index the n-grams which are followed by at least one token, the latest position overrides the earlier one
+        for (int end = indexedLength; end < length; end++) {
+            for (int n = 1; n <= Math.min(ngramSize, end); n++) {
+                ngramIndexes.get(n - 1).put(hash(tokens, end - n, n), end);
+            }
+        }
+        indexedLength = Math.max(indexedLength, length);
+        if (maxSize <= 0) {
+            return 0;
+        }
+        for (int n = Math.min(ngramSize, length); n > 0; n--) {
+            Integer start = ngramIndexes.get(n - 1).get(hash(tokens, length - n, n));
+            if (start != null) {
+                int size = Math.min(maxSize, length - start);
+                System.arraycopy(tokens, start, draftTokens, 0, size);
+                return size;
+            }
+        }
+        return 0;
+    }
+
+    private static long hash(int[] tokens, int offset, int length) {
+        long hash = 1125899906842597L;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + tokens[i];
+        }
+        return hash;
+    }
+
+}
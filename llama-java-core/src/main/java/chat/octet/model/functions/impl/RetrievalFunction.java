@@ -0,0 +1,80 @@
+package chat.octet.model.functions.impl;
+
+import chat.octet.model.VectorIndex;
+import chat.octet.model.functions.AbstractFunction;
+import chat.octet.model.functions.FunctionDescriptor;
+import chat.octet.model.functions.FunctionInput;
+import chat.octet.model.functions.FunctionOutput;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Provide a function to retrieve the texts from the local vector index,
+ * the query and the texts are embedded by the same model, for example {@code model::embed}.
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ * @see VectorIndex
+ */
+@Getter
+@Slf4j
+public class RetrievalFunction extends AbstractFunction {
+
+    private final VectorIndex index;
+    private final Embedder embedder;
+    private final int topK;
+
+    public RetrievalFunction(FunctionDescriptor desc, VectorIndex index, Embedder embedder, int topK) {
+        super(desc);
+        this.index = index;
+        this.embedder = embedder;
+        this.topK = topK;
+    }
+
+    /**
+     * Embed the texts and add them to the vector index.
+     *
+     * @param texts Text chunks.
+     * @return int, Number of texts added.
+     */
+    public int addTexts(List<String> texts) {
+        List<float[]> embeddings = embedder.embed(texts);
+        for (int i = 0; i < texts.size(); i++) {
+            index.add(embeddings.get(i), texts.get(i));
+        }
+        log.debug("Add {} texts to the vector index, size: {}.", texts.size(), index.size());
+        return texts.size();
+    }
+
+    @Override
+    public FunctionOutput execute(FunctionInput params) {
+        FunctionOutput result = new FunctionOutput();
+        String query = Objects.toString(params.get("query"), "");
+        if (StringUtils.isBlank(query) || index.size() == 0) {
+            return result;
+        }
+        List<Map<String, Object>> items = Lists.newArrayList();
+        for (VectorIndex.SearchResult item : index.search(embedder.embed(Lists.newArrayList(query)).get(0), topK)) {
+            Map<String, Object> data = Maps.newLinkedHashMap();
+            data.put("content", item.getText());
+            data.put("score", item.getScore());
+            items.add(data);
+        }
+        result.put("results", items);
+        return result;
+    }
+
+    /**
+     * Embed the texts, returns the embedding of each text.
+     */
+    @FunctionalInterface
+    public interface Embedder {
+        List<float[]> embed(List<String> texts);
+    }
+}
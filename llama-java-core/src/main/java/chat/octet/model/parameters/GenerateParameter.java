@@ -135,6 +135,19 @@ public final class GenerateParameter {
     @Builder.Default
     private float dynatempExponent = 1.0f;
 
+    /**
+     * Sampling the next token with the Java sampler chain instead of the native sampling (default: false).
+     * The native sampling is always used if grammar rules are specified.
+     */
+    @Builder.Default
+    private boolean javaSampling = false;
+
+    /**
+     * Random seed of the Java sampler chain (default: -1, -1 = random seed).
+     */
+    @Builder.Default
+    private long samplingSeed = -1;
+
     /**
      * Specify a grammar (defined inline or in a file) to constrain model output to a specific format.
      * For example, you could force the model to output JSON or to speak only in emojis
@@ -147,6 +160,21 @@ public final class GenerateParameter {
     @Builder.Default
     private int maxNewTokenSize = 512;
 
+    /**
+     * Maximum number of tokens proposed by the draft model in each step of speculative decoding (default: 5).
+     * Only works if the draft model is loaded, less than 1 means disabled.
+     */
+    @Builder.Default
+    private int draftTokenSize = 5;
+
+    /**
+     * Maximum n-gram size of prompt lookup decoding (default: 0, 0 = disabled).
+     * The draft tokens are copied from the input tokens after the latest n-gram that matches the last generated tokens,
+     * no draft model is required.
+     */
+    @Builder.Default
+    private int promptLookupNgramSize = 0;
+
     /**
      * Print the prompt before generating text.
      */
@@ -237,6 +265,28 @@ public final class GenerateParameter {
     @Builder.Default
     private boolean promptCache = false;
 
+    /**
+     * The chat messages contain the whole conversation, only the prompt after the cached tokens of the session
+     * is tokenized and decoded. If the cached tokens do not match the prompt, the session is prefilled again.
+     * (Only supports chat mode with session cache)
+     */
+    @Builder.Default
+    private boolean incrementalPrompt = false;
+
+    /**
+     * If enabled, the oldest tokens after the kept tokens are removed when the context is full,
+     * and the generation continues instead of being truncated. (Not used with speculative decoding or prefix cache)
+     */
+    @Builder.Default
+    private boolean contextShift = false;
+
+    /**
+     * Number of tokens kept at the start of the context when shifting the context,
+     * -1 keeps the system prompt in chat mode.
+     */
+    @Builder.Default
+    private int keepTokenSize = -1;
+
     /**
      * Specify user nickname, default: User.
      */
@@ -106,6 +106,58 @@ public class ModelParameter {
     @Builder.Default
     private int seqMax = 1;
 
+    /**
+     * Enable continuous batching, the generations of multiple sequences are decoded in one batch,
+     * the maximum number of concurrent generations is limited by seqMax (default: disabled).
+     */
+    @Builder.Default
+    private boolean continuousBatching = false;
+
+    /**
+     * Enable prompt prefix cache, the K-V cache of recent prompts is kept and reused by the prompts with the same prefix,
+     * only the remaining suffix of the prompt needs to be decoded (default: disabled).
+     */
+    @Builder.Default
+    private boolean prefixCache = false;
+
+    /**
+     * Maximum number of prompts kept in the prompt prefix cache (default: 8).
+     */
+    @Builder.Default
+    private int prefixCacheSize = 8;
+
+    /**
+     * Maximum number of chat sessions kept in the session cache,
+     * the least recently used sessions are evicted (default: 64, less than or equal to 0 means unlimited).
+     */
+    @Builder.Default
+    private int maxSessions = 64;
+
+    /**
+     * Idle timeout of chat sessions in seconds (default: 3600, less than or equal to 0 means never expire).
+     */
+    @Builder.Default
+    private long sessionIdleTimeout = 3600;
+
+    /**
+     * Maximum number of tokens of all chat sessions (default: -1, use the context size).
+     */
+    @Builder.Default
+    private int sessionTokenBudget = -1;
+
+    /**
+     * Session snapshot directory, evicted chat sessions are saved to this directory and restored on the next request,
+     * and all the chat sessions are saved when the model is closed (default: disabled).
+     */
+    private String sessionSnapshotPath;
+
+    /**
+     * Warm up the model after loading, a short generation pages in the memory-mapped weights
+     * and compiles the hot paths of the generation, so the first request is not slowed down (default: disabled).
+     */
+    @Builder.Default
+    private boolean warmUp = false;
+
     /**
      * Set the number of threads used for generation (single token).
      */
@@ -201,6 +253,17 @@ public class ModelParameter {
     @Builder.Default
     private boolean embedding = false;
 
+    /**
+     * Maximum number of embeddings kept in the embedding cache, 0 means disabled.
+     */
+    @Builder.Default
+    private int embeddingCacheSize = 1024;
+
+    /**
+     * Embedding cache file, the cache is memory-mapped to the file and reused after restart (default: off-heap memory).
+     */
+    private String embeddingCachePath;
+
     /**
      * whether to offload the KQV ops (including the KV cache) to GPU.
      */
@@ -0,0 +1,110 @@
+package chat.octet.model.utils;
+
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Incremental UTF-8 decoder for streaming output,
+ * Bytes of a character split across any number of token pieces are kept until the character is complete.
+ * <p>Invalid or overlong sequences are replaced with U+FFFD, the decoder is not thread-safe.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+public final class Utf8StreamDecoder {
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private char[] chars = new char[64];
+    private int charLength;
+    private int codePoint;
+    private int minCodePoint;
+    private int pending;
+
+    /**
+     * Decode the bytes and return the complete characters,
+     * the trailing incomplete character is kept for the next call.
+     *
+     * @param bytes  Byte buffer.
+     * @param offset Byte buffer offset.
+     * @param length Byte buffer length.
+     * @return String, Returns an empty string if no character is complete.
+     */
+    public String decode(byte[] bytes, int offset, int length) {
+        if (chars.length < length + 1) {
+            chars = new char[length + 1];
+        }
+        charLength = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int b = bytes[i] & 0xFF;
+            if (pending > 0) {
+                if ((b & 0xC0) == 0x80) {
+                    codePoint = (codePoint << 6) | (b & 0x3F);
+                    if (--pending == 0) {
+                        appendCodePoint();
+                    }
+                    continue;
+                }
+                //the sequence is interrupted, the byte starts a new character
+                pending = 0;
+                chars[charLength++] = REPLACEMENT;
+            }
+            if (b < 0x80) {
+                chars[charLength++] = (char) b;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                start(b & 0x1F, 1, 0x80);
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                start(b & 0x0F, 2, 0x800);
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                start(b & 0x07, 3, 0x10000);
+            } else {
+                chars[charLength++] = REPLACEMENT;
+            }
+        }
+        return charLength == 0 ? StringUtils.EMPTY : new String(chars, 0, charLength);
+    }
+
+    /**
+     * Flush the incomplete character at the end of the stream.
+     *
+     * @return String, Returns U+FFFD if an incomplete character exists, else an empty string.
+     */
+    public String flush() {
+        if (pending == 0) {
+            return StringUtils.EMPTY;
+        }
+        reset();
+        return String.valueOf(REPLACEMENT);
+    }
+
+    /**
+     * Whether an incomplete character is waiting for more bytes.
+     *
+     * @return boolean
+     */
+    public boolean hasPending() {
+        return pending > 0;
+    }
+
+    public void reset() {
+        pending = 0;
+        codePoint = 0;
+        minCodePoint = 0;
+    }
+
+    private void start(int bits, int continuationBytes, int minValue) {
+        codePoint = bits;
+        pending = continuationBytes;
+        minCodePoint = minValue;
+    }
+
+    private void appendCodePoint() {
+        if (codePoint < minCodePoint || codePoint > Character.MAX_CODE_POINT
+                || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            chars[charLength++] = REPLACEMENT;
+        } else if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            chars[charLength++] = (char) codePoint;
+        } else {
+            chars[charLength++] = Character.highSurrogate(codePoint);
+            chars[charLength++] = Character.lowSurrogate(codePoint);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package chat.octet.model;
+
+import com.google.common.collect.Maps;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+class PrefixCacheTest {
+
+    private static final int SEQUENCE_ID = 10000;
+
+    //token ids of the K-V cache of each sequence
+    private final Map<Integer, int[]> sequences = Maps.newHashMap();
+    private int copies;
+
+    private final PrefixCache.CacheOperator operator = new PrefixCache.CacheOperator() {
+        @Override
+        public void copy(int srcSequenceId, int dstSequenceId, int length) {
+            int[] tokens = sequences.get(srcSequenceId);
+            Assertions.assertNotNull(tokens, "Copy from an empty sequence: " + srcSequenceId);
+            Assertions.assertTrue(length <= tokens.length, "Copy out of the sequence: " + srcSequenceId);
+            sequences.put(dstSequenceId, Arrays.copyOf(tokens, length));
+            ++copies;
+        }
+
+        @Override
+        public void clear(int sequenceId) {
+            sequences.remove(sequenceId);
+        }
+    };
+
+    @BeforeEach
+    void setUp() {
+        sequences.clear();
+        copies = 0;
+    }
+
+    private void decode(PrefixCache cache, int... tokens) {
+        sequences.put(SEQUENCE_ID, tokens);
+        cache.put(SEQUENCE_ID, tokens, tokens.length);
+        sequences.remove(SEQUENCE_ID);
+    }
+
+    private int reuse(PrefixCache cache, int maxLength, int... tokens) {
+        int sequenceId = SEQUENCE_ID + 1;
+        sequences.remove(sequenceId);
+        int matched = cache.reuse(sequenceId, tokens, maxLength);
+        if (matched > 0) {
+            //the reused K-V cache must be the prefix of the prompt
+            Assertions.assertArrayEquals(Arrays.copyOf(tokens, matched), sequences.get(sequenceId));
+        } else {
+            Assertions.assertNull(sequences.get(sequenceId));
+        }
+        return matched;
+    }
+
+    @Test
+    void missOnEmptyCache() {
+        PrefixCache cache = new PrefixCache(4, operator);
+        Assertions.assertTrue(cache.isEmpty());
+        Assertions.assertEquals(0, reuse(cache, 3, 1, 2, 3));
+        Assertions.assertEquals(0, copies);
+    }
+
+    @Test
+    void reuseLongestCachedPrefix() {
+        PrefixCache cache = new PrefixCache(4, operator);
+        decode(cache, 1, 2, 3, 4);
+        decode(cache, 1, 2, 5, 6);
+        Assertions.assertFalse(cache.isEmpty());
+
+        Assertions.assertEquals(4, reuse(cache, 4, 1, 2, 3, 4));
+        Assertions.assertEquals(3, reuse(cache, 4, 1, 2, 5, 7));
+        //the prefix ends inside a branch of the radix tree
+        Assertions.assertEquals(2, reuse(cache, 3, 1, 2, 7));
+        Assertions.assertEquals(0, reuse(cache, 3, 2, 3, 4));
+    }
+
+    @Test
+    void limitReusedLength() {
+        PrefixCache cache = new PrefixCache(4, operator);
+        decode(cache, 1, 2, 3, 4);
+        Assertions.assertEquals(2, reuse(cache, 2, 1, 2, 3, 4));
+        Assertions.assertEquals(0, reuse(cache, 0, 1, 2, 3, 4));
+    }
+
+    @Test
+    void skipPrefixOfCachedPrompt() {
+        PrefixCache cache = new PrefixCache(4, operator);
+        decode(cache, 1, 2, 3, 4);
+        decode(cache, 1, 2);
+        decode(cache, 1, 2, 3, 4);
+        //the shorter prompt is covered by the cached longer prompt
+        Assertions.assertEquals(1, copies);
+        Assertions.assertEquals(1, sequences.size());
+    }
+
+    @Test
+    void evictLeastRecentlyUsedPrompt() {
+        PrefixCache cache = new PrefixCache(2, operator);
+        decode(cache, 1, 2, 3);
+        decode(cache, 4, 5);
+        Assertions.assertEquals(3, reuse(cache, 3, 1, 2, 3));
+        decode(cache, 6, 7);
+
+        Assertions.assertEquals(0, reuse(cache, 2, 4, 5));
+        Assertions.assertEquals(3, reuse(cache, 3, 1, 2, 3));
+        Assertions.assertEquals(2, reuse(cache, 2, 6, 7));
+        //the K-V cache of the evicted prompt is released and its sequence is reused
+        Assertions.assertEquals(3, sequences.size());
+        Assertions.assertTrue(sequences.containsKey(1));
+        Assertions.assertTrue(sequences.containsKey(2));
+    }
+
+    @Test
+    void evictBranchSharingPrefix() {
+        PrefixCache cache = new PrefixCache(1, operator);
+        decode(cache, 1, 2, 3);
+        decode(cache, 1, 2, 4);
+        Assertions.assertEquals(3, reuse(cache, 3, 1, 2, 4));
+        Assertions.assertEquals(2, reuse(cache, 3, 1, 2, 3));
+        decode(cache, 5);
+        Assertions.assertEquals(0, reuse(cache, 2, 1, 2));
+    }
+
+    @Test
+    void clearReleasesCachedSequences() {
+        PrefixCache cache = new PrefixCache(4, operator);
+        decode(cache, 1, 2, 3);
+        decode(cache, 4, 5);
+        cache.clear();
+        Assertions.assertTrue(cache.isEmpty());
+        Assertions.assertTrue(sequences.isEmpty());
+        Assertions.assertEquals(0, reuse(cache, 3, 1, 2, 3));
+    }
+}
@@ -0,0 +1,145 @@
+package chat.octet.model;
+
+import chat.octet.model.exceptions.ModelException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+class VectorIndexTest {
+
+    private static final int SIZE = 2000;
+    private static final int DIMENSION = 32;
+    private static final int QUERIES = 50;
+    private static final int TOP_K = 10;
+    private static final double MIN_RECALL = 0.9;
+
+    @TempDir
+    Path tempDir;
+
+    private static float[][] randomVectors(long seed, int size) {
+        Random random = new Random(seed);
+        float[][] vectors = new float[size][DIMENSION];
+        for (float[] vector : vectors) {
+            for (int i = 0; i < DIMENSION; i++) {
+                vector[i] = (float) random.nextGaussian();
+            }
+        }
+        return vectors;
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return dot / Math.sqrt(normA * normB);
+    }
+
+    private static Set<Integer> bruteForce(float[][] vectors, float[] query, int topK) {
+        return IntStream.range(0, vectors.length).boxed()
+                .sorted(Comparator.comparingDouble(i -> -cosine(vectors[i], query)))
+                .limit(topK)
+                .collect(Collectors.toSet());
+    }
+
+    private static void addAll(VectorIndex index, float[][] vectors) {
+        for (int i = 0; i < vectors.length; i++) {
+            Assertions.assertEquals(i, index.add(vectors[i], "text-" + i));
+        }
+    }
+
+    private static void assertRecall(VectorIndex index, float[][] vectors) {
+        float[][] queries = randomVectors(7, QUERIES);
+        int found = 0;
+        for (float[] query : queries) {
+            List<VectorIndex.SearchResult> results = index.search(query, TOP_K);
+            Assertions.assertEquals(TOP_K, results.size());
+            for (int i = 0; i < results.size(); i++) {
+                VectorIndex.SearchResult result = results.get(i);
+                Assertions.assertEquals("text-" + result.getIndex(), result.getText());
+                Assertions.assertEquals(cosine(vectors[result.getIndex()], query), result.getScore(), 1e-4);
+                if (i > 0) {
+                    Assertions.assertTrue(results.get(i - 1).getScore() >= result.getScore());
+                }
+            }
+            Set<Integer> expected = bruteForce(vectors, query, TOP_K);
+            found += (int) results.stream().filter(result -> expected.contains(result.getIndex())).count();
+        }
+        double recall = (double) found / (QUERIES * TOP_K);
+        Assertions.assertTrue(recall >= MIN_RECALL, "Recall is too low: " + recall);
+    }
+
+    @Test
+    void searchInMemoryIndex() {
+        float[][] vectors = randomVectors(1, SIZE);
+        try (VectorIndex index = new VectorIndex(null, SIZE, 16, 100, 64)) {
+            addAll(index, vectors);
+            Assertions.assertEquals(SIZE, index.size());
+            assertRecall(index, vectors);
+        }
+    }
+
+    @Test
+    void searchReopenedFileIndex() {
+        float[][] vectors = randomVectors(2, SIZE);
+        String path = tempDir.resolve("index").resolve("vectors.idx").toString();
+        try (VectorIndex index = new VectorIndex(path, SIZE, 16, 100, 64)) {
+            addAll(index, Arrays.copyOf(vectors, SIZE / 2));
+        }
+        //capacity and links are read from the index file
+        try (VectorIndex index = new VectorIndex(path, 1, 2, 100, 64)) {
+            Assertions.assertEquals(SIZE / 2, index.size());
+            for (int i = SIZE / 2; i < SIZE; i++) {
+                Assertions.assertEquals(i, index.add(vectors[i], "text-" + i));
+            }
+        }
+        try (VectorIndex index = new VectorIndex(path, 1, 2, 100, 64)) {
+            Assertions.assertEquals(SIZE, index.size());
+            assertRecall(index, vectors);
+        }
+    }
+
+    @Test
+    void searchExactVector() {
+        float[][] vectors = randomVectors(3, 100);
+        try (VectorIndex index = new VectorIndex("", 100, 8, 50, 16)) {
+            addAll(index, vectors);
+            for (int i = 0; i < vectors.length; i++) {
+                VectorIndex.SearchResult result = index.search(vectors[i], 1).get(0);
+                Assertions.assertEquals(i, result.getIndex());
+                Assertions.assertEquals(1.0f, result.getScore(), 1e-4);
+            }
+        }
+    }
+
+    @Test
+    void searchEmptyIndex() {
+        try (VectorIndex index = new VectorIndex(null, 10, 4, 10, 10)) {
+            Assertions.assertTrue(index.search(new float[DIMENSION], TOP_K).isEmpty());
+            index.add(new float[]{1, 0}, "a");
+            Assertions.assertTrue(index.search(new float[]{1, 0}, 0).isEmpty());
+            Assertions.assertEquals(1, index.search(new float[]{1, 0}, TOP_K).size());
+        }
+    }
+
+    @Test
+    void rejectInvalidVectors() {
+        try (VectorIndex index = new VectorIndex(null, 1, 4, 10, 10)) {
+            index.add(new float[]{1, 0}, "a");
+            Assertions.assertThrows(IllegalArgumentException.class, () -> index.add(new float[]{1, 0, 0}, "b"));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> index.search(new float[]{1}, 1));
+            Assertions.assertThrows(ModelException.class, () -> index.add(new float[]{0, 1}, "c"));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package chat.octet.model.components.criteria.impl;
+
+import chat.octet.model.beans.Token;
+import chat.octet.model.enums.LlamaTokenAttr;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+class StoppingWordCriteriaTest {
+
+    private static StoppingWordCriteria create(String... words) {
+        return new StoppingWordCriteria(texts -> Sets.newHashSet(), words);
+    }
+
+    private static String feed(StoppingWordCriteria.Matcher matcher, String... pieces) {
+        StringBuilder output = new StringBuilder();
+        for (String piece : pieces) {
+            output.append(matcher.feed(0, piece));
+        }
+        return output.toString();
+    }
+
+    private static boolean criteria(StoppingWordCriteria criteria, String... pieces) {
+        List<Token> tokens = Lists.newArrayList();
+        for (String piece : pieces) {
+            tokens.add(new Token(0, LlamaTokenAttr.LLAMA_TOKEN_ATTR_NORMAL, piece));
+        }
+        return criteria.criteria(null, new float[0], tokens);
+    }
+
+    @Test
+    void emitTextWithoutStoppingWord() {
+        StoppingWordCriteria.Matcher matcher = create("User:").newMatcher();
+        Assertions.assertEquals("Hello world", feed(matcher, "Hello", " world"));
+        Assertions.assertFalse(matcher.isMatched());
+        Assertions.assertEquals("", matcher.flush());
+    }
+
+    @Test
+    void removeStoppingWordSplitAcrossTokens() {
+        StoppingWordCriteria.Matcher matcher = create("User:").newMatcher();
+        Assertions.assertEquals("Hi", matcher.feed(0, "Hi"));
+        //the possible start of the stopping word is held back
+        Assertions.assertEquals("\n", matcher.feed(0, "\nU"));
+        Assertions.assertEquals("", matcher.feed(0, "se"));
+        Assertions.assertEquals("", matcher.feed(0, "r:"));
+        Assertions.assertTrue(matcher.isMatched());
+        Assertions.assertEquals("", matcher.feed(0, "ignored"));
+        Assertions.assertEquals("", matcher.flush());
+    }
+
+    @Test
+    void releaseHeldBackTextWhenMismatched() {
+        StoppingWordCriteria.Matcher matcher = create("User:").newMatcher();
+        Assertions.assertEquals("", matcher.feed(0, "Us"));
+        Assertions.assertEquals("Using", matcher.feed(0, "ing"));
+        Assertions.assertEquals(" ", matcher.feed(0, " Use"));
+        Assertions.assertFalse(matcher.isMatched());
+        Assertions.assertEquals("Use", matcher.flush());
+    }
+
+    @Test
+    void matchOverlappingStoppingWords() {
+        StoppingWordCriteria criteria = create("abcd", "bc", "xbcy");
+        //"bc" ends inside "abcd" and is matched by the failure link
+        Assertions.assertEquals("xa", feed(criteria.newMatcher(), "xab", "cd"));
+        Assertions.assertEquals("a", feed(create("abcx", "bcd").newMatcher(), "abc", "d"));
+        Assertions.assertEquals("aa", feed(create("ab").newMatcher(), "aa", "ab", "c"));
+    }
+
+    @Test
+    void matchStoppingTokens() {
+        StoppingWordCriteria criteria = new StoppingWordCriteria(texts -> Sets.newHashSet(2), "</s>", "7");
+        StoppingWordCriteria.Matcher matcher = criteria.newMatcher();
+        Assertions.assertEquals("He", matcher.feed(1, "He"));
+        //the text of the stopping token is not emitted
+        Assertions.assertEquals("", matcher.feed(7, "llo"));
+        Assertions.assertTrue(matcher.isMatched());
+
+        matcher = criteria.newMatcher();
+        Assertions.assertEquals("", matcher.feed(1, "<"));
+        //control tokens may not be rendered, the held back text is released
+        Assertions.assertEquals("<", matcher.feed(2, ""));
+        Assertions.assertTrue(matcher.isMatched());
+    }
+
+    @Test
+    void lookupControlTokensOfTextWords() {
+        Set<String> looked = Sets.newHashSet();
+        new StoppingWordCriteria(texts -> {
+            looked.addAll(texts);
+            return Sets.newHashSet();
+        }, "</s>", "", "12");
+        Assertions.assertEquals(Sets.newHashSet("</s>"), looked);
+    }
+
+    @Test
+    void matchStoppingWordEndingInLastToken() {
+        StoppingWordCriteria criteria = create("###", "User:");
+        Assertions.assertTrue(criteria(criteria, "Hi", "\n#", "#", "#"));
+        Assertions.assertTrue(criteria(criteria, "Hi", "\nUs", "er:"));
+        Assertions.assertFalse(criteria(criteria, "Hi", "\nUs", "ing"));
+        //the stopping word ended in a previous token
+        Assertions.assertFalse(criteria(criteria, "###", "Hi"));
+        Assertions.assertFalse(criteria(criteria));
+    }
+}
@@ -0,0 +1,97 @@
+package chat.octet.model.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+class Utf8StreamDecoderTest {
+
+    private static String decode(Utf8StreamDecoder decoder, int... bytes) {
+        byte[] buffer = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            buffer[i] = (byte) bytes[i];
+        }
+        return decoder.decode(buffer, 0, buffer.length);
+    }
+
+    @Test
+    void decodeAscii() {
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        byte[] bytes = "Hello, world".getBytes(StandardCharsets.UTF_8);
+        Assertions.assertEquals("world", decoder.decode(bytes, 7, 5));
+        Assertions.assertFalse(decoder.hasPending());
+        Assertions.assertEquals("", decoder.flush());
+    }
+
+    @Test
+    void decodeCharactersSplitAcrossPieces() {
+        String text = "a你好😀é";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        StringBuilder output = new StringBuilder();
+        for (byte b : bytes) {
+            output.append(decoder.decode(new byte[]{b}, 0, 1));
+        }
+        Assertions.assertFalse(decoder.hasPending());
+        Assertions.assertEquals(text, output.toString());
+    }
+
+    @Test
+    void keepIncompleteCharacterUntilComplete() {
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        Assertions.assertEquals("", decode(decoder, 0xF0, 0x9F));
+        Assertions.assertTrue(decoder.hasPending());
+        Assertions.assertEquals("", decode(decoder, 0x98));
+        Assertions.assertEquals("😀x", decode(decoder, 0x80, 'x'));
+        Assertions.assertFalse(decoder.hasPending());
+    }
+
+    @Test
+    void replaceInvalidBytes() {
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        //stray continuation byte, overlong lead bytes and out of range lead byte
+        Assertions.assertEquals("����a", decode(decoder, 0x80, 0xC0, 0xC1, 0xF5, 'a'));
+        //overlong three byte encoding of '/'
+        Assertions.assertEquals("�", decode(decoder, 0xE0, 0x80, 0xAF));
+        //encoded surrogate
+        Assertions.assertEquals("�", decode(decoder, 0xED, 0xA0, 0x80));
+        //code point above U+10FFFF
+        Assertions.assertEquals("�", decode(decoder, 0xF4, 0x90, 0x80, 0x80));
+    }
+
+    @Test
+    void replaceInterruptedSequence() {
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        Assertions.assertEquals("", decode(decoder, 0xE4, 0xBD));
+        Assertions.assertEquals("�a", decode(decoder, 'a'));
+        Assertions.assertEquals("", decode(decoder, 0xE4));
+        Assertions.assertEquals("�é", decode(decoder, 0xC3, 0xA9));
+    }
+
+    @Test
+    void flushIncompleteCharacter() {
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        Assertions.assertEquals("", decode(decoder, 0xE4, 0xBD));
+        Assertions.assertEquals("�", decoder.flush());
+        Assertions.assertFalse(decoder.hasPending());
+        Assertions.assertEquals("", decoder.flush());
+        Assertions.assertEquals("a", decode(decoder, 'a'));
+    }
+
+    @Test
+    void resetDropsIncompleteCharacter() {
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        decode(decoder, 0xF0, 0x9F, 0x98);
+        decoder.reset();
+        Assertions.assertFalse(decoder.hasPending());
+        Assertions.assertEquals("�b", decode(decoder, 0x80, 'b'));
+    }
+
+    @Test
+    void decodeLargeBuffer() {
+        String text = "数据".repeat(100);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        Assertions.assertEquals(text, new Utf8StreamDecoder().decode(bytes, 0, bytes.length));
+    }
+}
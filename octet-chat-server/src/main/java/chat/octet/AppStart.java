@@ -2,10 +2,12 @@ package chat.octet;
 
 
 import chat.octet.api.CharacterModelBuilder;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.cli.*;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+@Slf4j
 @SpringBootApplication
 public class AppStart {
 
@@ -32,7 +34,11 @@ public class AppStart {
         }
         String mode = cmd.getOptionValue("app", "cli");
         String characterName = cmd.getOptionValue("character", "");
-        CharacterModelBuilder.getInstance().getCharacterModel(characterName);
+        //load the model while the server is starting, requests wait until the model is loaded
+        CharacterModelBuilder.getInstance().loadCharacterModelAsync(characterName).exceptionally(e -> {
+            log.error("Load character model failed ", e);
+            return null;
+        });
         SpringApplication.run(AppStart.class, args);
     }
 
@@ -3,24 +3,49 @@ package chat.octet.api;
 import chat.octet.config.CharacterConfig;
 import chat.octet.exceptions.ServerException;
 import chat.octet.model.Model;
+import chat.octet.model.ModelLoader;
+import chat.octet.model.parameters.ModelParameter;
 import chat.octet.model.utils.JsonUtils;
 import chat.octet.utils.CommonUtils;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Stream;
 
+/**
+ * Character model registry,
+ * Several character models are resident at the same time, and requests are routed by the character name.
+ * <p>Characters with the same model parameters share one model, which costs one copy of the weights and one context,
+ * the chat sessions of each character are kept separately in the context.</p>
+ * <p>The models are evicted in LRU order when the memory budget is exceeded, models in use are never evicted.
+ * The memory is estimated by the model file sizes, a memory-mapped model file shared by several models is counted once.</p>
+ * <p>The models are loaded asynchronously, requests wait for the loading model without blocking the other models.</p>
+ * <p>Reloading a character is a blue/green swap, the new model is loaded while requests are served by the old model,
+ * and the old model is closed after its in-flight requests are completed.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
 @Slf4j
 public final class CharacterModelBuilder implements AutoCloseable {
-    private static volatile Model model;
     private static volatile CharacterModelBuilder builder;
 
-    private CharacterConfig defaultCharacterConfig;
+    private final LinkedHashMap<String, ResidentModel> residentModels = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CharacterConfig> residentCharacters = Maps.newHashMap();
+    private final Set<ResidentModel> retiredModels = Sets.newHashSet();
+    private final Map<String, LoadingModel> loadingModels = Maps.newHashMap();
+    private volatile String defaultCharacter;
+    private volatile long memoryBudget;
 
     private CharacterModelBuilder() {
     }
@@ -36,42 +61,286 @@ public final class CharacterModelBuilder implements AutoCloseable {
         return builder;
     }
 
+    /**
+     * Set the memory budget of the resident models.
+     *
+     * @param memoryBudget Memory budget in bytes, 0 means unlimited.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = Math.max(0, memoryBudget);
+    }
 
-    public Model getCharacterModel() {
-        if (model == null) {
+    /**
+     * Acquire the model of the character, the model is loaded if it is not resident.
+     * The model cannot be evicted until the reference is closed.
+     *
+     * @param characterName Character name, use the default character if it is blank.
+     * @return ModelReference
+     */
+    public ModelReference acquire(String characterName) {
+        String name = StringUtils.isBlank(characterName) ? defaultCharacter : characterName;
+        if (name == null) {
             throw new ServerException("No available models, please reload the model.");
         }
-        return model;
+        while (true) {
+            CompletableFuture<ResidentModel> loading;
+            List<Model> evictedModels = Lists.newArrayList();
+            try {
+                synchronized (residentModels) {
+                    CharacterConfig config = residentCharacters.get(name);
+                    if (config == null) {
+                        config = getCharacterConfig(name);
+                    }
+                    String modelKey = getModelKey(config);
+                    ResidentModel resident = residentModels.get(modelKey);
+                    if (resident != null && !resident.model.isClosed()) {
+                        residentCharacters.put(name, config);
+                        resident.references++;
+                        return new ModelReference(resident, config);
+                    }
+                    loading = load(modelKey, config, evictedModels);
+                }
+            } finally {
+                closeEvictedModels(evictedModels);
+            }
+            //wait outside the lock, the requests of the resident models are not blocked
+            await(loading);
+        }
     }
 
-    public Model getCharacterModel(String characterName) {
-        if (model == null || model.isClosed()) {
-            synchronized (CharacterModelBuilder.class) {
-                if (model == null || model.isClosed()) {
-                    Map<String, CharacterConfig> characterConfigs = getCharacterConfigs();
-                    if (!characterConfigs.containsKey(characterName)) {
-                        throw new ServerException(String.format("No available character config in %s, please check if the character name is available: %s", CommonUtils.getCharactersConfigPath(), characterName));
-                    }
-                    defaultCharacterConfig = characterConfigs.get(characterName);
-                    model = new Model(defaultCharacterConfig.getModelParameter());
+    /**
+     * Use the character as the default character and load the model asynchronously,
+     * the requests of the character wait until the model is loaded.
+     *
+     * @param characterName Character name.
+     * @return CompletableFuture, completed when the model is loaded.
+     */
+    public CompletableFuture<Model> loadCharacterModelAsync(String characterName) {
+        List<Model> evictedModels = Lists.newArrayList();
+        try {
+            synchronized (residentModels) {
+                CharacterConfig config = getCharacterConfig(characterName);
+                String modelKey = getModelKey(config);
+                residentCharacters.put(characterName, config);
+                defaultCharacter = characterName;
+                ResidentModel resident = residentModels.get(modelKey);
+                if (resident != null && !resident.model.isClosed()) {
+                    return CompletableFuture.completedFuture(resident.model);
                 }
+                return load(modelKey, config, evictedModels).thenApply(loaded -> loaded.model);
             }
+        } finally {
+            closeEvictedModels(evictedModels);
+        }
+    }
+
+    public int getMaxConcurrency() {
+        synchronized (residentModels) {
+            return residentModels.values().stream()
+                    .filter(resident -> !resident.model.isClosed() && resident.model.isContinuousBatching())
+                    .mapToInt(resident -> resident.model.getModelParams().getSeqMax())
+                    .max().orElse(1);
         }
-        return model;
     }
 
+    /**
+     * Reload the character config and use it as the default character, the other resident models are not closed.
+     * <p>If the model parameters are changed, the new model is loaded without blocking the requests,
+     * then it is published and the old model is closed after its in-flight requests are completed.</p>
+     *
+     * @param characterName Character name.
+     */
     public void reloadCharacterModel(String characterName) {
-        synchronized (CharacterModelBuilder.class) {
-            if (model != null) {
-                model.close();
-                model = null;
+        CharacterConfig config = getCharacterConfig(characterName);
+        String modelKey = getModelKey(config);
+        CompletableFuture<ResidentModel> loading = null;
+        List<Model> evictedModels = Lists.newArrayList();
+        try {
+            synchronized (residentModels) {
+                ResidentModel current = residentModels.get(modelKey);
+                if (current == null || current.model.isClosed()) {
+                    loading = load(modelKey, config, evictedModels);
+                }
+            }
+        } finally {
+            closeEvictedModels(evictedModels);
+        }
+        //requests are served by the resident models while loading
+        if (loading != null) {
+            await(loading);
+        }
+        List<Model> drainedModels = Lists.newArrayList();
+        synchronized (residentModels) {
+            CharacterConfig previous = residentCharacters.put(characterName, config);
+            defaultCharacter = characterName;
+            if (previous != null && !modelKey.equals(getModelKey(previous))) {
+                retire(getModelKey(previous), drainedModels);
             }
         }
-        getCharacterModel(characterName);
+        drainedModels.forEach(Model::close);
+    }
+
+    /**
+     * Retire the model if no character uses it, the model is closed when all references are closed.
+     */
+    private void retire(String modelKey, List<Model> drainedModels) {
+        if (residentCharacters.values().stream().anyMatch(config -> modelKey.equals(getModelKey(config)))) {
+            return;
+        }
+        ResidentModel resident = residentModels.remove(modelKey);
+        if (resident == null) {
+            return;
+        }
+        if (resident.references == 0) {
+            drainedModels.add(resident.model);
+        } else {
+            retiredModels.add(resident);
+        }
+        log.info("Character model retired, model: {}, in-flight requests: {}.", resident.modelParameter.getModelPath(), resident.references);
     }
 
-    public CharacterConfig getCharacterConfig() {
-        return defaultCharacterConfig;
+    public String getDefaultCharacter() {
+        return defaultCharacter;
+    }
+
+    /**
+     * Readiness of the default character model.
+     *
+     * @return boolean, Returns true if the model of the default character is loaded.
+     */
+    public boolean isReady() {
+        synchronized (residentModels) {
+            CharacterConfig config = defaultCharacter != null ? residentCharacters.get(defaultCharacter) : null;
+            ResidentModel resident = config != null ? residentModels.get(getModelKey(config)) : null;
+            return resident != null && !resident.model.isClosed();
+        }
+    }
+
+    /**
+     * Get the load progress of the loading models.
+     *
+     * @return Map, Model file path and load progress.
+     */
+    public Map<String, Double> getLoadingProgress() {
+        synchronized (residentModels) {
+            Map<String, Double> progress = Maps.newLinkedHashMap();
+            loadingModels.values().forEach(loading -> progress.put(loading.modelParameter.getModelPath(), loading.loader.getProgress()));
+            return progress;
+        }
+    }
+
+    /**
+     * Load the model asynchronously, the model is resident when the future is completed.
+     * The evicted models are closed by the caller outside the lock.
+     */
+    private CompletableFuture<ResidentModel> load(String modelKey, CharacterConfig config, List<Model> evictedModels) {
+        LoadingModel loading = loadingModels.get(modelKey);
+        if (loading != null) {
+            return loading.future;
+        }
+        removeResidentModel(modelKey);
+        evict(config, evictedModels);
+        ModelLoader loader = ModelLoader.load(config.getModelParameter(), config.getDraftModelParameter(), null);
+        CompletableFuture<ResidentModel> future = loader.getFuture().handle((model, error) -> {
+            synchronized (residentModels) {
+                loadingModels.remove(modelKey);
+                if (error != null) {
+                    throw new ServerException("Load character model failed, character: " + config.getName(), error);
+                }
+                ResidentModel resident = new ResidentModel(config.getModelParameter(), config.getDraftModelParameter(), model);
+                residentModels.put(modelKey, resident);
+                log.info("Character model loaded, character: {}, resident models: {}, elapsed time: {} ms.", config.getName(), residentModels.size(), loader.getLoadTimeMs());
+                return resident;
+            }
+        });
+        //the future is completed in place if the loading failed immediately
+        if (!future.isDone()) {
+            loadingModels.put(modelKey, new LoadingModel(config.getModelParameter(), config.getDraftModelParameter(), loader, future));
+        }
+        return future;
+    }
+
+    private static void await(CompletableFuture<ResidentModel> loading) {
+        try {
+            loading.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof ServerException ? (ServerException) e.getCause() : new ServerException(e.getMessage(), e);
+        }
+    }
+
+    private CharacterConfig getCharacterConfig(String characterName) {
+        CharacterConfig config = getCharacterConfigs().get(characterName);
+        if (config == null) {
+            throw new ServerException(String.format("No available character config in %s, please check if the character name is available: %s", CommonUtils.getCharactersConfigPath(), characterName));
+        }
+        return config;
+    }
+
+    /**
+     * Evict the least recently used idle models until the new model fits in the memory budget.
+     */
+    private void evict(CharacterConfig config, List<Model> evictedModels) {
+        if (memoryBudget <= 0) {
+            return;
+        }
+        CharacterConfig defaultConfig = defaultCharacter != null ? residentCharacters.get(defaultCharacter) : null;
+        String defaultModelKey = defaultConfig != null ? getModelKey(defaultConfig) : null;
+        for (Map.Entry<String, ResidentModel> entry : Lists.newArrayList(residentModels.entrySet())) {
+            if (estimateMemory(config) <= memoryBudget) {
+                break;
+            }
+            ResidentModel resident = entry.getValue();
+            if (resident.references == 0 && !entry.getKey().equals(defaultModelKey)) {
+                removeResidentModel(entry.getKey());
+                evictedModels.add(resident.model);
+                log.info("Character model evicted, model: {}.", resident.modelParameter.getModelPath());
+            }
+        }
+        if (!(residentModels.isEmpty() && loadingModels.isEmpty()) && estimateMemory(config) > memoryBudget) {
+            throw new ServerException(String.format("Insufficient memory budget to load the character model: %s, please try again later.", config.getName()));
+        }
+    }
+
+    /**
+     * Close the evicted models, closing a model waits for its native resources and must not hold the registry lock.
+     */
+    private static void closeEvictedModels(List<Model> evictedModels) {
+        evictedModels.forEach(Model::close);
+    }
+
+    private void removeResidentModel(String modelKey) {
+        residentModels.remove(modelKey);
+        residentCharacters.values().removeIf(config -> modelKey.equals(getModelKey(config)));
+    }
+
+    /**
+     * Characters with the same model parameters and draft model parameters share the model.
+     */
+    private static String getModelKey(CharacterConfig config) {
+        return JsonUtils.toJson(config.getModelParameter()) + "|" + JsonUtils.toJson(config.getDraftModelParameter());
+    }
+
+    private long estimateMemory(CharacterConfig config) {
+        List<ModelParameter> parameters = Lists.newArrayList();
+        residentModels.values().forEach(resident -> addModelParameters(parameters, resident.modelParameter, resident.draftModelParameter));
+        loadingModels.values().forEach(loading -> addModelParameters(parameters, loading.modelParameter, loading.draftModelParameter));
+        addModelParameters(parameters, config.getModelParameter(), config.getDraftModelParameter());
+        Set<String> mappedFiles = Sets.newHashSet();
+        long size = 0;
+        for (ModelParameter parameter : parameters) {
+            //the memory-mapped file is shared in the page cache
+            if (!parameter.isMmap() || StringUtils.isNotBlank(parameter.getLoraPath()) || mappedFiles.add(parameter.getModelPath())) {
+                size += new File(parameter.getModelPath()).length();
+            }
+        }
+        return size;
+    }
+
+    private static void addModelParameters(List<ModelParameter> parameters, ModelParameter modelParameter, ModelParameter draftModelParameter) {
+        parameters.add(modelParameter);
+        if (draftModelParameter != null) {
+            parameters.add(draftModelParameter);
+        }
     }
 
     public Map<String, CharacterConfig> getCharacterConfigs() {
@@ -100,8 +369,85 @@ public final class CharacterModelBuilder implements AutoCloseable {
 
     @Override
     public void close() {
-        if (model != null) {
-            model.close();
+        synchronized (residentModels) {
+            loadingModels.values().forEach(loading -> loading.loader.cancel());
+            residentModels.values().forEach(resident -> resident.model.close());
+            retiredModels.forEach(resident -> resident.model.close());
+            residentModels.clear();
+            retiredModels.clear();
+            residentCharacters.clear();
+        }
+    }
+
+    private static final class ResidentModel {
+        private final ModelParameter modelParameter;
+        private final ModelParameter draftModelParameter;
+        private final Model model;
+        private int references;
+
+        private ResidentModel(ModelParameter modelParameter, ModelParameter draftModelParameter, Model model) {
+            this.modelParameter = modelParameter;
+            this.draftModelParameter = draftModelParameter;
+            this.model = model;
+        }
+    }
+
+    private static final class LoadingModel {
+        private final ModelParameter modelParameter;
+        private final ModelParameter draftModelParameter;
+        private final ModelLoader loader;
+        private final CompletableFuture<ResidentModel> future;
+
+        private LoadingModel(ModelParameter modelParameter, ModelParameter draftModelParameter, ModelLoader loader, CompletableFuture<ResidentModel> future) {
+            this.modelParameter = modelParameter;
+            this.draftModelParameter = draftModelParameter;
+            this.loader = loader;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Reference of a resident character model, close it at the end of the request.
+     */
+    public final class ModelReference implements AutoCloseable {
+        private final ResidentModel resident;
+        @Getter
+        private final Model model;
+        @Getter
+        private final CharacterConfig config;
+        private boolean closed;
+
+        private ModelReference(ResidentModel resident, CharacterConfig config) {
+            this.resident = resident;
+            this.model = resident.model;
+            this.config = config;
+        }
+
+        /**
+         * Get the chat session key, the sessions of the characters sharing a model are kept separately.
+         *
+         * @param user    Chat user.
+         * @param session Chat session, nullable.
+         * @return String, Session key.
+         */
+        public String getSessionKey(String user, String session) {
+            return StringUtils.isBlank(session) ? config.getName() + ":" + user : config.getName() + ":" + user + ":" + session;
+        }
+
+        @Override
+        public void close() {
+            boolean drained;
+            synchronized (residentModels) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                drained = --resident.references == 0 && retiredModels.remove(resident);
+            }
+            if (drained) {
+                resident.model.close();
+                log.info("Retired character model closed, model: {}.", resident.modelParameter.getModelPath());
+            }
         }
     }
 }
@@ -1,18 +1,22 @@
 package chat.octet.api;
 
 import chat.octet.api.functions.FunctionRegister;
+import chat.octet.api.handler.AdmissionQueue;
 import chat.octet.api.handler.ProcessFunction;
 import chat.octet.api.model.*;
+import chat.octet.api.CharacterModelBuilder.ModelReference;
+import chat.octet.config.AdmissionConfig;
 import chat.octet.config.CharacterConfig;
+import chat.octet.config.ModelsConfig;
+import chat.octet.config.RetrievalConfig;
 import chat.octet.model.Generator;
-import chat.octet.model.LlamaService;
 import chat.octet.model.Model;
-import chat.octet.model.TokenDecoder;
 import chat.octet.model.beans.ChatMessage;
 import chat.octet.model.beans.CompletionResult;
 import chat.octet.model.beans.Token;
 import chat.octet.model.enums.FinishReason;
 import chat.octet.model.enums.LlamaTokenAttr;
+import chat.octet.model.functions.impl.RetrievalFunction;
 import chat.octet.model.parameters.GenerateParameter;
 import chat.octet.model.utils.JsonUtils;
 import chat.octet.utils.CommonUtils;
@@ -40,17 +44,20 @@ import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.server.*;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.text.MessageFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
 
@@ -63,7 +70,18 @@ import static org.springframework.web.reactive.function.server.RequestPredicates
 @Tag(name = "ChatCompletionService", description = "Chat completion service")
 public class ChatCompletionService {
 
-    private final Semaphore semaphore = new Semaphore(1);
+    private final AdmissionConfig admissionConfig;
+    private final AdmissionQueue admissionQueue;
+    private final RetrievalConfig retrievalConfig;
+    private final RetrievalFunction retrievalFunction;
+
+    public ChatCompletionService(AdmissionConfig admissionConfig, ModelsConfig modelsConfig, RetrievalConfig retrievalConfig) {
+        this.admissionConfig = admissionConfig;
+        CharacterModelBuilder.getInstance().setMemoryBudget(modelsConfig.getMemoryBudget().toBytes());
+        this.admissionQueue = new AdmissionQueue(admissionConfig.getCapacity(), admissionConfig.getMaxWait(), CharacterModelBuilder.getInstance()::getMaxConcurrency);
+        this.retrievalConfig = retrievalConfig;
+        this.retrievalFunction = StringUtils.isNotBlank(retrievalConfig.getCharacter()) ? FunctionRegister.getInstance().registerRetrieval(retrievalConfig) : null;
+    }
 
     @Bean
     @RouterOperation(
@@ -88,33 +106,38 @@ public class ChatCompletionService {
                     }
                     long startTime = System.currentTimeMillis();
 
-                    //load model and generate parameters
-                    Model model = CharacterModelBuilder.getInstance().getCharacterModel();
-                    CharacterConfig config = CharacterModelBuilder.getInstance().getCharacterConfig();
-                    GenerateParameter generateParams = config.getGenerateParameter();
-                    generateParams.setUser(Optional.ofNullable(requestParams.getUser()).orElse(generateParams.getUser()));
-                    generateParams.setSession(Optional.ofNullable(requestParams.getSession()).orElse(""));
-
-                    //default use of preset system prompt
-                    String system = config.getPrompt();
-                    if (StringUtils.isNotBlank(system)) {
-                        ChatMessage msg = !messages.isEmpty() ? messages.get(0) : null;
-                        if (msg != null && ChatMessage.ChatRole.SYSTEM == msg.getRole()) {
-                            msg.setContent(system);
-                        } else {
-                            messages.add(0, ChatMessage.toSystem(system));
+                    //load model of the character and generate parameters
+                    ModelReference reference = CharacterModelBuilder.getInstance().acquire(requestParams.getCharacter());
+                    try {
+                        Model model = reference.getModel();
+                        CharacterConfig config = reference.getConfig();
+                        GenerateParameter generateParams = getGenerateParameter(config);
+                        generateParams.setUser(Optional.ofNullable(requestParams.getUser()).orElse(generateParams.getUser()));
+                        generateParams.setSession(reference.getSessionKey(generateParams.getUser(), requestParams.getSession()));
+
+                        //default use of preset system prompt
+                        String system = config.getPrompt();
+                        if (StringUtils.isNotBlank(system)) {
+                            ChatMessage msg = !messages.isEmpty() ? messages.get(0) : null;
+                            if (msg != null && ChatMessage.ChatRole.SYSTEM == msg.getRole()) {
+                                msg.setContent(system);
+                            } else {
+                                messages.add(0, ChatMessage.toSystem(system));
+                            }
                         }
-                    }
 
-                    String id = CommonUtils.randomString("chatcmpl");
-                    boolean useFunctionCall = Shortcuts.useFunctionCall(messages);
-                    boolean isFunctionCall = ("auto".equalsIgnoreCase(requestParams.getToolChoice()) || useFunctionCall) && config.isFunctionCall();
+                        String id = CommonUtils.randomString("chatcmpl");
+                        boolean useFunctionCall = Shortcuts.useFunctionCall(messages);
+                        boolean isFunctionCall = ("auto".equalsIgnoreCase(requestParams.getToolChoice()) || useFunctionCall) && config.isFunctionCall();
 
-                    if (requestParams.isStream()) {
-                        if (isFunctionCall) {
-                            CompletionResult result = FunctionRegister.getInstance().functionCall(model, generateParams, messages);
-                            List<Token> tokens = Lists.newArrayList(new Token(0, LlamaTokenAttr.LLAMA_TOKEN_ATTR_USER_DEFINED, result.getContent(), FinishReason.FINISHED));
-                            return response(model, tokens, startTime, token -> {
+                        if (requestParams.isStream()) {
+                            return response(requestParams.getUser(), reference, () -> {
+                                if (isFunctionCall) {
+                                    CompletionResult result = FunctionRegister.getInstance().functionCall(model, generateParams, messages);
+                                    return Lists.newArrayList(new Token(0, LlamaTokenAttr.LLAMA_TOKEN_ATTR_USER_DEFINED, result.getContent(), FinishReason.FINISHED));
+                                }
+                                return model.chat(generateParams, messages);
+                            }, startTime, token -> {
                                 if (token.getId() == -1 && token.getTokenAttr() == LlamaTokenAttr.LLAMA_TOKEN_ATTR_USER_DEFINED) {
                                     return token.getText();
                                 } else {
@@ -123,22 +146,18 @@ public class ChatCompletionService {
                                 }
                             });
                         } else {
-                            Generator generator = model.chat(generateParams, messages);
-                            return response(model, generator, startTime, token -> {
-                                if (token.getId() == -1 && token.getTokenAttr() == LlamaTokenAttr.LLAMA_TOKEN_ATTR_USER_DEFINED) {
-                                    return token.getText();
-                                } else {
-                                    ChatCompletionData data = new ChatCompletionData("content", token.getText(), token.getFinishReason().toString());
-                                    return new ChatCompletionChunk(id, "chat.completion", model.getModelName(), Lists.newArrayList(data));
-                                }
+                            return response(requestParams.getUser(), reference, () -> {
+                                CompletionResult result = isFunctionCall ? FunctionRegister.getInstance().functionCall(model, generateParams, messages) : model.chat(generateParams, messages).result();
+                                ChatCompletionData data = new ChatCompletionData(ChatMessage.toAssistant(result.getContent()), result.getFinishReason().toString());
+                                ChatCompletionUsage usage = new ChatCompletionUsage(result.getPromptTokens(), result.getCompletionTokens(), (result.getPromptTokens() + result.getCompletionTokens()));
+                                ChatCompletionChunk chunk = new ChatCompletionChunk(id, "chat.completion", model.getModelName(), usage, Lists.newArrayList(data));
+                                return response(model, chunk, startTime);
                             });
                         }
-                    } else {
-                        CompletionResult result = isFunctionCall ? FunctionRegister.getInstance().functionCall(model, generateParams, messages) : model.chat(generateParams, messages).result();
-                        ChatCompletionData data = new ChatCompletionData(ChatMessage.toAssistant(result.getContent()), result.getFinishReason().toString());
-                        ChatCompletionUsage usage = new ChatCompletionUsage(result.getPromptTokens(), result.getCompletionTokens(), (result.getPromptTokens() + result.getCompletionTokens()));
-                        ChatCompletionChunk chunk = new ChatCompletionChunk(id, "chat.completion", model.getModelName(), usage, Lists.newArrayList(data));
-                        return response(model, chunk, startTime);
+                    } catch (RuntimeException e) {
+                        //the reference is closed by the response once it is created
+                        reference.close();
+                        throw e;
                     }
                 }
         );
@@ -166,27 +185,34 @@ public class ChatCompletionService {
                     }
                     long startTime = System.currentTimeMillis();
 
-                    Model model = CharacterModelBuilder.getInstance().getCharacterModel();
-                    CharacterConfig config = CharacterModelBuilder.getInstance().getCharacterConfig();
-                    GenerateParameter generateParams = config.getGenerateParameter();
+                    ModelReference reference = CharacterModelBuilder.getInstance().acquire(requestParams.getCharacter());
+                    try {
+                        Model model = reference.getModel();
+                        GenerateParameter generateParams = getGenerateParameter(reference.getConfig());
 
-                    String id = CommonUtils.randomString("cmpl");
-                    if (requestParams.isStream()) {
-                        Generator generator = model.generate(generateParams, requestParams.getPrompt());
-                        return response(model, generator, startTime, token -> {
-                            if (token.getId() == -1 && token.getTokenAttr() == LlamaTokenAttr.LLAMA_TOKEN_ATTR_USER_DEFINED) {
-                                return token.getText();
-                            } else {
-                                ChatCompletionData data = new ChatCompletionData(token.getText(), token.getFinishReason().toString());
-                                return new ChatCompletionChunk(id, "text_completion", model.getModelName(), Lists.newArrayList(data));
-                            }
-                        });
-                    } else {
-                        CompletionResult result = model.completions(generateParams, requestParams.getPrompt());
-                        ChatCompletionData data = new ChatCompletionData(result.getContent(), result.getFinishReason().toString());
-                        ChatCompletionUsage usage = new ChatCompletionUsage(result.getPromptTokens(), result.getCompletionTokens(), (result.getPromptTokens() + result.getCompletionTokens()));
-                        ChatCompletionChunk chunk = new ChatCompletionChunk(id, "text_completion", model.getModelName(), usage, Lists.newArrayList(data));
-                        return response(model, chunk, startTime);
+                        String id = CommonUtils.randomString("cmpl");
+                        if (requestParams.isStream()) {
+                            return response(requestParams.getUser(), reference, () -> model.generate(generateParams, requestParams.getPrompt()), startTime, token -> {
+                                if (token.getId() == -1 && token.getTokenAttr() == LlamaTokenAttr.LLAMA_TOKEN_ATTR_USER_DEFINED) {
+                                    return token.getText();
+                                } else {
+                                    ChatCompletionData data = new ChatCompletionData(token.getText(), token.getFinishReason().toString());
+                                    return new ChatCompletionChunk(id, "text_completion", model.getModelName(), Lists.newArrayList(data));
+                                }
+                            });
+                        } else {
+                            return response(requestParams.getUser(), reference, () -> {
+                                CompletionResult result = model.completions(generateParams, requestParams.getPrompt());
+                                ChatCompletionData data = new ChatCompletionData(result.getContent(), result.getFinishReason().toString());
+                                ChatCompletionUsage usage = new ChatCompletionUsage(result.getPromptTokens(), result.getCompletionTokens(), (result.getPromptTokens() + result.getCompletionTokens()));
+                                ChatCompletionChunk chunk = new ChatCompletionChunk(id, "text_completion", model.getModelName(), usage, Lists.newArrayList(data));
+                                return response(model, chunk, startTime);
+                            });
+                        }
+                    } catch (RuntimeException e) {
+                        //the reference is closed by the response once it is created
+                        reference.close();
+                        throw e;
                     }
                 }
         );
@@ -212,7 +238,10 @@ public class ChatCompletionService {
                     if (StringUtils.isBlank(requestParams.getContent())) {
                         return response(HttpStatus.BAD_REQUEST, "Request parameter 'content' cannot be empty");
                     }
-                    int[] tokens = LlamaService.tokenize(requestParams.getContent(), false, true);
+                    int[] tokens;
+                    try (ModelReference reference = CharacterModelBuilder.getInstance().acquire(requestParams.getCharacter())) {
+                        tokens = reference.getModel().tokenize(requestParams.getContent(), false, true);
+                    }
 
                     Map<String, Object> data = Maps.newHashMap();
                     data.put("tokens", tokens);
@@ -242,7 +271,10 @@ public class ChatCompletionService {
                     if (requestParams.getTokens() == null) {
                         return response(HttpStatus.BAD_REQUEST, "Request parameter 'tokens' cannot be empty");
                     }
-                    String text = TokenDecoder.decodeToken(requestParams.getTokens());
+                    String text;
+                    try (ModelReference reference = CharacterModelBuilder.getInstance().acquire(requestParams.getCharacter())) {
+                        text = reference.getModel().detokenize(requestParams.getTokens());
+                    }
 
                     Map<String, Object> data = Maps.newHashMap();
                     data.put("content", text);
@@ -252,6 +284,104 @@ public class ChatCompletionService {
         );
     }
 
+    @Bean
+    @RouterOperation(
+            method = RequestMethod.POST,
+            consumes = MediaType.APPLICATION_JSON_VALUE,
+            produces = MediaType.APPLICATION_JSON_VALUE,
+            operation = @Operation(
+                    requestBody = @RequestBody(content = @Content(examples = @ExampleObject(value = "{\"input\":[\"Your text\"]}"), schema = @Schema(implementation = Object.class))),
+                    description = "Get the embeddings of texts.",
+                    operationId = "embeddings",
+                    tags = "Embeddings",
+                    responses = @ApiResponse(responseCode = "200", content = @Content(examples = @ExampleObject(value = "{\"object\":\"list\",\"data\":[{\"object\":\"embedding\",\"index\":0,\"embedding\":[]}],\"model\":\"string\"}")))
+            )
+    )
+    public RouterFunction<ServerResponse> embeddingsFunction() {
+        return handler(
+                POST("/v1/embeddings"),
+                requestParams -> {
+                    if (requestParams.getInput() == null || requestParams.getInput().isEmpty()
+                            || requestParams.getInput().stream().anyMatch(StringUtils::isEmpty)) {
+                        return response(HttpStatus.BAD_REQUEST, "Request parameter 'input' cannot be empty");
+                    }
+                    ModelReference reference = CharacterModelBuilder.getInstance().acquire(requestParams.getCharacter());
+                    try {
+                        Model model = reference.getModel();
+                        if (!model.getModelParams().isEmbedding()) {
+                            reference.close();
+                            return response(HttpStatus.BAD_REQUEST, "Embedding mode is not enabled for this character");
+                        }
+                        return response(requestParams.getUser(), reference, () -> {
+                            List<float[]> embeddings = model.embed(requestParams.getInput());
+                            List<Map<String, Object>> items = Lists.newArrayList();
+                            for (int i = 0; i < embeddings.size(); i++) {
+                                Map<String, Object> item = Maps.newLinkedHashMap();
+                                item.put("object", "embedding");
+                                item.put("index", i);
+                                item.put("embedding", embeddings.get(i));
+                                items.add(item);
+                            }
+                            Map<String, Object> data = Maps.newLinkedHashMap();
+                            data.put("object", "list");
+                            data.put("data", items);
+                            data.put("model", model.getModelName());
+                            String json = Optional.ofNullable(JsonUtils.toJson(data)).orElse("");
+                            return response(HttpStatus.OK, json);
+                        });
+                    } catch (RuntimeException e) {
+                        //the reference is closed by the response once it is created
+                        reference.close();
+                        throw e;
+                    }
+                }
+        );
+    }
+
+    @Bean
+    @RouterOperation(
+            method = RequestMethod.POST,
+            consumes = MediaType.APPLICATION_JSON_VALUE,
+            produces = MediaType.APPLICATION_JSON_VALUE,
+            operation = @Operation(
+                    requestBody = @RequestBody(content = @Content(examples = @ExampleObject(value = "{\"input\":[\"Your text\"]}"), schema = @Schema(implementation = Object.class))),
+                    description = "Add texts to the local vector index of the retrieval function.",
+                    operationId = "retrievalTexts",
+                    tags = "Embeddings",
+                    responses = @ApiResponse(responseCode = "200", content = @Content(examples = @ExampleObject(value = "{\"count\":0,\"size\":0}")))
+            )
+    )
+    public RouterFunction<ServerResponse> retrievalTextsFunction() {
+        return handler(
+                POST("/v1/retrieval/texts"),
+                requestParams -> {
+                    if (retrievalFunction == null) {
+                        return response(HttpStatus.BAD_REQUEST, "Retrieval function is not enabled");
+                    }
+                    if (requestParams.getInput() == null || requestParams.getInput().isEmpty()
+                            || requestParams.getInput().stream().anyMatch(StringUtils::isEmpty)) {
+                        return response(HttpStatus.BAD_REQUEST, "Request parameter 'input' cannot be empty");
+                    }
+                    //the texts are embedded by the model of the retrieval character
+                    ModelReference reference = CharacterModelBuilder.getInstance().acquire(retrievalConfig.getCharacter());
+                    try {
+                        return response(requestParams.getUser(), reference, () -> {
+                            int count = retrievalFunction.addTexts(requestParams.getInput());
+                            Map<String, Object> data = Maps.newHashMap();
+                            data.put("count", count);
+                            data.put("size", retrievalFunction.getIndex().size());
+                            String json = Optional.ofNullable(JsonUtils.toJson(data)).orElse("");
+                            return response(HttpStatus.OK, json);
+                        });
+                    } catch (RuntimeException e) {
+                        //the reference is closed by the response once it is created
+                        reference.close();
+                        throw e;
+                    }
+                }
+        );
+    }
+
 
     @Bean
     @RouterOperation(
@@ -270,8 +400,6 @@ public class ChatCompletionService {
         return handler(
                 POST("/v1/session/reset"),
                 requestParams -> {
-                    Model model = CharacterModelBuilder.getInstance().getCharacterModel();
-
                     String user = requestParams.getUser();
                     if (StringUtils.isBlank(user)) {
                         return response(HttpStatus.BAD_REQUEST, "Request parameter 'user' cannot be empty");
@@ -280,8 +408,9 @@ public class ChatCompletionService {
                     if (StringUtils.isBlank(sessionId)) {
                         return response(HttpStatus.BAD_REQUEST, "Request parameter 'session' cannot be empty");
                     }
-                    String key = user + ":" + sessionId;
-                    model.removeChatStatus(key);
+                    try (ModelReference reference = CharacterModelBuilder.getInstance().acquire(requestParams.getCharacter())) {
+                        reference.getModel().removeChatStatus(reference.getSessionKey(user, sessionId));
+                    }
                     return response(HttpStatus.OK, "success");
                 }
         );
@@ -340,15 +469,43 @@ public class ChatCompletionService {
                     if (StringUtils.isBlank(character)) {
                         return response(HttpStatus.BAD_REQUEST, "Request parameter 'character' cannot be empty");
                     }
-                    if (!CharacterModelBuilder.getInstance().getCharacterConfig().getName().equals(character)) {
-                        try {
-                            CharacterModelBuilder.getInstance().reloadCharacterModel(character);
-                        } catch (Exception e) {
-                            log.error("Reload character model failed ", e);
-                            return response(HttpStatus.BAD_REQUEST, e.getMessage());
-                        }
-                    }
-                    return response(HttpStatus.OK, "success");
+                    //load the model in background, requests are served by the current models until it is published
+                    return Mono.fromRunnable(() -> CharacterModelBuilder.getInstance().reloadCharacterModel(character))
+                            .subscribeOn(Schedulers.boundedElastic())
+                            .then(response(HttpStatus.OK, "success"))
+                            .onErrorResume(e -> {
+                                log.error("Reload character model failed ", e);
+                                return response(HttpStatus.BAD_REQUEST, e.getMessage());
+                            });
+                }
+        );
+    }
+
+    @Bean
+    @RouterOperation(
+            method = RequestMethod.GET,
+            produces = MediaType.APPLICATION_JSON_VALUE,
+            operation = @Operation(
+                    description = "Readiness of the default character model, returns 503 until the model is loaded.",
+                    operationId = "health",
+                    tags = "Characters",
+                    responses = @ApiResponse(responseCode = "200", content = @Content(examples = @ExampleObject(value = "{\"status\":\"ready\",\"character\":\"string\",\"loading_progress\":{}}")))
+            )
+    )
+    public RouterFunction<ServerResponse> healthFunction() {
+        return RouterFunctions.route(
+                RequestPredicates.GET("/v1/health"),
+                serverRequest -> {
+                    CharacterModelBuilder builder = CharacterModelBuilder.getInstance();
+                    boolean ready = builder.isReady();
+                    Map<String, Double> loadingProgress = builder.getLoadingProgress();
+
+                    Map<String, Object> data = Maps.newHashMap();
+                    data.put("status", ready ? "ready" : (loadingProgress.isEmpty() ? "unavailable" : "loading"));
+                    data.put("character", builder.getDefaultCharacter());
+                    data.put("loading_progress", loadingProgress);
+                    String json = Optional.ofNullable(JsonUtils.toJson(data)).orElse("");
+                    return response(ready ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE, json);
                 }
         );
     }
@@ -373,16 +530,20 @@ public class ChatCompletionService {
                 .body(BodyInserters.fromDataBuffers(dataBufferMono));
     }
 
+    /**
+     * Copy the generate parameter of the character for each request,
+     * the parameter is modified by request and cannot be shared between concurrent requests.
+     */
+    private GenerateParameter getGenerateParameter(CharacterConfig config) {
+        String json = JsonUtils.toJson(config.getGenerateParameter());
+        return Optional.ofNullable(JsonUtils.parseToObject(json, GenerateParameter.class)).orElse(GenerateParameter.builder().build());
+    }
+
     private RouterFunction<ServerResponse> handler(RequestPredicate requestPredicate, ProcessFunction<RequestParameter> function) {
         return RouterFunctions.route(
                 requestPredicate.and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
-                request -> Mono.fromSupplier(semaphore::tryAcquire).flatMap(acquired -> {
-                    if (acquired) {
-                        return request.bodyToMono(RequestParameter.class).flatMap(function::process).doFinally(signalType -> semaphore.release());
-                    } else {
-                        return ServerResponse.status(HttpStatus.NO_CONTENT).header("Retry-After", "5").build();
-                    }
-                })
+                //the model may be loading, so the request is processed off the event loop
+                request -> request.bodyToMono(RequestParameter.class).publishOn(Schedulers.boundedElastic()).flatMap(function::process)
         );
     }
 
@@ -390,28 +551,64 @@ public class ChatCompletionService {
         return ServerResponse.status(status).contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(body));
     }
 
-    private Mono<ServerResponse> response(Model model, Iterable<Token> tokens, long startTime, java.util.function.Function<Token, Object> fn) {
-        return ServerResponse.ok().contentType(MediaType.TEXT_EVENT_STREAM)
-                .body(Flux.fromIterable(tokens)
-                        .concatWithValues(new Token(-1, LlamaTokenAttr.LLAMA_TOKEN_ATTR_USER_DEFINED, "[DONE]")).map(fn).doOnCancel(() -> {
-                            log.info(MessageFormat.format("Inference cancel, elapsed time: {0} ms.", (System.currentTimeMillis() - startTime)));
-                            model.metrics();
-                        }).doOnComplete(() -> {
-                            log.info(MessageFormat.format("Inference completed, elapsed time: {0} ms.", (System.currentTimeMillis() - startTime)));
-                            model.metrics();
-                        }), ChatCompletionChunk.class);
+    private Mono<ServerResponse> retryLater(HttpStatus status) {
+        return ServerResponse.status(status).header("Retry-After", String.valueOf(admissionConfig.getRetryAfter())).build();
+    }
+
+    /**
+     * Wait in the admission queue, then process the request.
+     * The model reference is closed when the request is completed.
+     */
+    private Mono<ServerResponse> response(String user, ModelReference reference, Supplier<Mono<ServerResponse>> supplier) {
+        AdmissionQueue.Ticket ticket = admissionQueue.offer(StringUtils.defaultString(user));
+        if (ticket == null) {
+            reference.close();
+            return retryLater(HttpStatus.TOO_MANY_REQUESTS);
+        }
+        return ticket.await().publishOn(Schedulers.boundedElastic())
+                .flatMap(t -> supplier.get())
+                .onErrorResume(TimeoutException.class, e -> retryLater(HttpStatus.SERVICE_UNAVAILABLE))
+                .doFinally(signalType -> {
+                    ticket.release();
+                    reference.close();
+                });
     }
 
-    private Mono<ServerResponse> response(Model model, Generator generator, long startTime, java.util.function.Function<Token, Object> fn) {
+    /**
+     * Wait in the admission queue and report the queue position, then stream the generated tokens.
+     * The model reference is closed when the stream is completed.
+     */
+    private Mono<ServerResponse> response(String user, ModelReference reference, Supplier<Iterable<Token>> supplier, long startTime, java.util.function.Function<Token, Object> fn) {
+        AdmissionQueue.Ticket ticket = admissionQueue.offer(StringUtils.defaultString(user));
+        if (ticket == null) {
+            reference.close();
+            return retryLater(HttpStatus.TOO_MANY_REQUESTS);
+        }
+        Model model = reference.getModel();
+        Flux<Object> positions = ticket.positions().map(position -> ServerSentEvent.builder(Map.of("queue_position", position)).event("queue").build());
+        Flux<Object> tokens = ticket.await().publishOn(Schedulers.boundedElastic()).flatMapMany(t -> {
+                    Iterable<Token> iterable = supplier.get();
+                    Flux<Token> flux = Flux.fromIterable(iterable).subscribeOn(Schedulers.boundedElastic());
+                    if (iterable instanceof Generator generator) {
+                        flux = flux.doFinally(signalType -> generator.close());
+                    }
+                    return flux;
+                })
+                .concatWithValues(new Token(-1, LlamaTokenAttr.LLAMA_TOKEN_ATTR_USER_DEFINED, "[DONE]")).map(fn).doOnCancel(() -> {
+                    log.info(MessageFormat.format("Inference cancel, elapsed time: {0} ms.", (System.currentTimeMillis() - startTime)));
+                    model.metrics();
+                }).doOnComplete(() -> {
+                    log.info(MessageFormat.format("Inference completed, elapsed time: {0} ms.", (System.currentTimeMillis() - startTime)));
+                    model.metrics();
+                });
+        //the waiting time is limited while reporting the queue position
         return ServerResponse.ok().contentType(MediaType.TEXT_EVENT_STREAM)
-                .body(Flux.fromIterable(generator)
-                        .concatWithValues(new Token(-1, LlamaTokenAttr.LLAMA_TOKEN_ATTR_USER_DEFINED, "[DONE]")).map(fn).doOnCancel(() -> {
-                            log.info(MessageFormat.format("Inference cancel, elapsed time: {0} ms.", (System.currentTimeMillis() - startTime)));
-                            model.metrics();
-                        }).doOnComplete(() -> {
-                            log.info(MessageFormat.format("Inference completed, elapsed time: {0} ms.", (System.currentTimeMillis() - startTime)));
-                            model.metrics();
-                        }), ChatCompletionChunk.class).doFinally(signalType -> generator.close());
+                .body(Flux.concat(positions, tokens)
+                        .onErrorResume(TimeoutException.class, e -> Flux.just(ServerSentEvent.builder("Request waiting timeout in the queue").event("error").build()))
+                        .doFinally(signalType -> {
+                            ticket.release();
+                            reference.close();
+                        }), Object.class);
     }
 
     public Mono<ServerResponse> response(Model model, ChatCompletionChunk chunk, long startTime) {
@@ -1,12 +1,17 @@
 package chat.octet.api.functions;
 
 
+import chat.octet.api.CharacterModelBuilder;
+import chat.octet.api.CharacterModelBuilder.ModelReference;
 import chat.octet.api.functions.model.FunctionConfig;
+import chat.octet.config.RetrievalConfig;
 import chat.octet.model.Model;
+import chat.octet.model.VectorIndex;
 import chat.octet.model.beans.ChatMessage;
 import chat.octet.model.beans.CompletionResult;
 import chat.octet.model.functions.*;
 import chat.octet.model.functions.impl.DataTimeFunction;
+import chat.octet.model.functions.impl.RetrievalFunction;
 import chat.octet.model.parameters.GenerateParameter;
 import chat.octet.model.utils.JsonUtils;
 import chat.octet.utils.CommonUtils;
@@ -53,6 +58,38 @@ public class FunctionRegister {
         return register;
     }
 
+    public RetrievalFunction registerRetrieval(RetrievalConfig config) {
+        VectorIndex index = new VectorIndex(config.getIndexPath(), config.getCapacity(), config.getM(), config.getEfConstruction(), config.getEfSearch());
+        RetrievalFunction function = new RetrievalFunction(
+                FunctionDescriptor.builder()
+                        .name("knowledge_search")
+                        .alias("知识库检索")
+                        .description("知识库检索是一个查询本地知识库的工具，可用于查询已导入的文档内容")
+                        .addParameter(FunctionParameter.builder()
+                                .name("query")
+                                .description("检索关键词或问题")
+                                .required(true)
+                                .addSchema(FUNCTION_PARAMETER_SCHEMA, "string")
+                                .build())
+                        .build(),
+                index,
+                texts -> {
+                    try (ModelReference reference = CharacterModelBuilder.getInstance().acquire(config.getCharacter())) {
+                        return reference.getModel().embed(texts);
+                    }
+                },
+                config.getTopK());
+        FUNCTIONS_INSTANCE.put(function.getDesc().getName(), function);
+        log.info("Register retrieval function, embedding character: {}, vector index size: {}.", config.getCharacter(), index.size());
+        return function;
+    }
+
+    public void close() {
+        FUNCTIONS_INSTANCE.values().stream()
+                .filter(RetrievalFunction.class::isInstance)
+                .forEach(function -> ((RetrievalFunction) function).getIndex().close());
+    }
+
     public List<Function> getFunctions() {
         List<FunctionConfig> configs = getFunctionConfigs();
         for (FunctionConfig config : configs) {
@@ -0,0 +1,188 @@
+package chat.octet.api.handler;
+
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+/**
+ * Bounded request admission queue.
+ * <p>Waiting requests are grouped by user and admitted in round-robin order,
+ * so that a single user cannot occupy the model with a burst of requests.
+ * The number of requests running at the same time is given by the permits supplier.</p>
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+public class AdmissionQueue {
+    private final int capacity;
+    private final Duration maxWait;
+    private final IntSupplier permits;
+    private final Map<String, LinkedList<Ticket>> waitingTickets = Maps.newLinkedHashMap();
+    private int waitingSize;
+    private int runningSize;
+
+    public AdmissionQueue(int capacity, Duration maxWait, IntSupplier permits) {
+        this.capacity = Math.max(0, capacity);
+        this.maxWait = maxWait;
+        this.permits = permits;
+    }
+
+    /**
+     * Add a request to the queue.
+     *
+     * @param user Request user, used for fair scheduling.
+     * @return Ticket, or null if the queue is full.
+     */
+    public synchronized Ticket offer(String user) {
+        if (waitingSize >= capacity && runningSize >= getMaxRunning()) {
+            return null;
+        }
+        Ticket ticket = new Ticket(this, user);
+        waitingTickets.computeIfAbsent(user, k -> Lists.newLinkedList()).add(ticket);
+        ++waitingSize;
+        dispatch();
+        return ticket;
+    }
+
+    /**
+     * Number of requests can run at the same time, at least one request is admitted.
+     */
+    private int getMaxRunning() {
+        return Math.max(1, permits.getAsInt());
+    }
+
+    public synchronized int getWaitingSize() {
+        return waitingSize;
+    }
+
+    public synchronized int getRunningSize() {
+        return runningSize;
+    }
+
+    /**
+     * Admit the waiting requests while permits are available,
+     * then update the queue position of the remaining requests.
+     */
+    private void dispatch() {
+        int maxRunning = getMaxRunning();
+        while (runningSize < maxRunning && waitingSize > 0) {
+            Iterator<Map.Entry<String, LinkedList<Ticket>>> it = waitingTickets.entrySet().iterator();
+            Map.Entry<String, LinkedList<Ticket>> entry = it.next();
+            Ticket ticket = entry.getValue().poll();
+            //move the user to the end of the round
+            it.remove();
+            if (!entry.getValue().isEmpty()) {
+                waitingTickets.put(entry.getKey(), entry.getValue());
+            }
+            --waitingSize;
+            ++runningSize;
+            ticket.state = State.RUNNING;
+            ticket.positions.tryEmitComplete();
+            ticket.granted.tryEmitValue(ticket);
+        }
+        //the n-th waiting request of each user is admitted in the n-th round
+        List<Iterator<Ticket>> lanes = Lists.newLinkedList();
+        waitingTickets.values().forEach(tickets -> lanes.add(tickets.iterator()));
+        int position = 0;
+        while (!lanes.isEmpty()) {
+            Iterator<Iterator<Ticket>> it = lanes.iterator();
+            while (it.hasNext()) {
+                Iterator<Ticket> lane = it.next();
+                if (!lane.hasNext()) {
+                    it.remove();
+                    continue;
+                }
+                Ticket ticket = lane.next();
+                if (ticket.position != ++position) {
+                    ticket.position = position;
+                    ticket.positions.tryEmitNext(position);
+                }
+            }
+        }
+    }
+
+    private synchronized void release(Ticket ticket) {
+        if (ticket.state == State.WAITING) {
+            LinkedList<Ticket> tickets = waitingTickets.get(ticket.user);
+            if (tickets != null && tickets.remove(ticket)) {
+                if (tickets.isEmpty()) {
+                    waitingTickets.remove(ticket.user);
+                }
+                --waitingSize;
+            }
+            ticket.positions.tryEmitComplete();
+        } else if (ticket.state == State.RUNNING) {
+            --runningSize;
+        }
+        ticket.state = State.RELEASED;
+        dispatch();
+    }
+
+    private enum State {
+        WAITING, RUNNING, RELEASED
+    }
+
+    /**
+     * Admission ticket of a request.
+     */
+    public static class Ticket {
+        private final AdmissionQueue queue;
+        private final String user;
+        private final Sinks.One<Ticket> granted = Sinks.one();
+        private final Sinks.Many<Integer> positions = Sinks.many().replay().latest();
+        private final long deadline;
+        private State state = State.WAITING;
+        private int position;
+
+        private Ticket(AdmissionQueue queue, String user) {
+            this.queue = queue;
+            this.user = user;
+            this.deadline = System.nanoTime() + queue.maxWait.toNanos();
+        }
+
+        /**
+         * Remaining waiting time, the maximum waiting time is counted from the time the request is queued.
+         */
+        private Duration getRemainingWait() {
+            return Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
+        }
+
+        /**
+         * Wait until the request is admitted,
+         * a TimeoutException is signaled if the maximum waiting time is exceeded.
+         *
+         * @return Mono
+         */
+        public Mono<Ticket> await() {
+            return Mono.defer(() -> granted.asMono().timeout(getRemainingWait())).doOnError(e -> release());
+        }
+
+        /**
+         * Queue position updates of the request, completed when the request is admitted,
+         * a TimeoutException is signaled if the maximum waiting time is exceeded.
+         *
+         * @return Flux
+         */
+        public Flux<Integer> positions() {
+            return Flux.defer(() -> positions.asFlux().timeout(Mono.delay(getRemainingWait()), position -> Mono.delay(getRemainingWait())))
+                    .doOnError(e -> release());
+        }
+
+        /**
+         * Release the ticket, the waiting request is removed from the queue
+         * and the permit of the running request is returned.
+         */
+        public void release() {
+            queue.release(this);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package chat.octet.api.handler;
 
 
 import chat.octet.api.CharacterModelBuilder;
+import chat.octet.api.functions.FunctionRegister;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextClosedEvent;
@@ -11,6 +12,7 @@ import org.springframework.stereotype.Component;
 public class CleanupResourceListener implements ApplicationListener<ContextClosedEvent> {
     @Override
     public void onApplicationEvent(@NotNull ContextClosedEvent event) {
+        FunctionRegister.getInstance().close();
         CharacterModelBuilder.getInstance().close();
     }
 }
@@ -2,6 +2,7 @@ package chat.octet.api.model;
 
 import chat.octet.model.beans.ChatMessage;
 import chat.octet.model.functions.FunctionDescriptor;
+import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.PropertyNamingStrategies;
@@ -34,6 +35,10 @@ public class RequestParameter {
     private String content;
     private int[] tokens;
 
+    //embeddings parameters
+    @JsonFormat(with = JsonFormat.Feature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
+    private List<String> input;
+
     //function calls parameters
     private String toolChoice;
     private List<FunctionDescriptor> tools;
@@ -0,0 +1,35 @@
+package chat.octet.config;
+
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+/**
+ * Request admission queue config.
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "octet.admission")
+public class AdmissionConfig {
+
+    /**
+     * Maximum number of requests waiting in the queue, requests are rejected with 429 when the queue is full.
+     */
+    private int capacity = 32;
+
+    /**
+     * Maximum time a request can wait in the queue.
+     */
+    private Duration maxWait = Duration.ofSeconds(120);
+
+    /**
+     * Retry-After header value (seconds) of the rejected requests.
+     */
+    private int retryAfter = 5;
+
+}
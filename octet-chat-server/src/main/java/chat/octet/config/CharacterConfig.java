@@ -17,6 +17,10 @@ public class CharacterConfig {
     private boolean functionCall;
     private String prompt;
     private ModelParameter modelParameter = ModelParameter.builder().build();
+    /**
+     * Draft model of speculative decoding, nullable.
+     */
+    private ModelParameter draftModelParameter;
     private GenerateParameter generateParameter = GenerateParameter.builder().build();
 
 }
@@ -0,0 +1,25 @@
+package chat.octet.config;
+
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Resident character models config.
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "octet.models")
+public class ModelsConfig {
+
+    /**
+     * Memory budget of the resident models, estimated by the model file sizes, 0 means unlimited.
+     * <p>Idle models are evicted in LRU order when a new model exceeds the budget.</p>
+     */
+    private DataSize memoryBudget = DataSize.ofBytes(0);
+
+}
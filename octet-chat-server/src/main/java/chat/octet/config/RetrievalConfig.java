@@ -0,0 +1,54 @@
+package chat.octet.config;
+
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Local vector index retrieval config.
+ *
+ * @author <a href="https://github.com/eoctet">William</a>
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "octet.retrieval")
+public class RetrievalConfig {
+
+    /**
+     * Character of the embedding model, the retrieval function is disabled if it is empty.
+     * <p>The embedding parameter of the character model must be enabled.</p>
+     */
+    private String character;
+
+    /**
+     * Vector index file path, use off-heap memory if it is empty.
+     */
+    private String indexPath;
+
+    /**
+     * Maximum number of texts in the vector index.
+     */
+    private int capacity = 100000;
+
+    /**
+     * Number of links of each node in the vector index.
+     */
+    private int m = 16;
+
+    /**
+     * Size of the dynamic candidate list when adding texts.
+     */
+    private int efConstruction = 200;
+
+    /**
+     * Size of the dynamic candidate list when searching.
+     */
+    private int efSearch = 64;
+
+    /**
+     * Maximum number of texts returned by the retrieval function.
+     */
+    private int topK = 3;
+
+}
@@ -0,0 +1,147 @@
+package chat.octet.api.handler;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class AdmissionQueueTest {
+
+    private static final Duration MAX_WAIT = Duration.ofSeconds(10);
+
+    private static void assertAdmitted(AdmissionQueue.Ticket ticket) {
+        StepVerifier.create(ticket.await()).expectNext(ticket).expectComplete().verify(Duration.ofSeconds(1));
+    }
+
+    private static void assertWaiting(AdmissionQueue.Ticket ticket, int position) {
+        StepVerifier.create(ticket.positions()).expectNext(position).thenCancel().verify(Duration.ofSeconds(1));
+        StepVerifier.create(ticket.await()).expectSubscription().expectNoEvent(Duration.ofMillis(20)).thenCancel().verify();
+    }
+
+    @Test
+    void admitWhilePermitsAvailable() {
+        AdmissionQueue queue = new AdmissionQueue(4, MAX_WAIT, () -> 2);
+        AdmissionQueue.Ticket first = queue.offer("user1");
+        AdmissionQueue.Ticket second = queue.offer("user1");
+        AdmissionQueue.Ticket third = queue.offer("user1");
+        assertAdmitted(first);
+        assertAdmitted(second);
+        assertWaiting(third, 1);
+        Assertions.assertEquals(2, queue.getRunningSize());
+        Assertions.assertEquals(1, queue.getWaitingSize());
+
+        first.release();
+        assertAdmitted(third);
+        //the position updates are completed when the request is admitted, the last position is replayed
+        StepVerifier.create(third.positions()).expectNext(1).expectComplete().verify(Duration.ofSeconds(1));
+        Assertions.assertEquals(2, queue.getRunningSize());
+        Assertions.assertEquals(0, queue.getWaitingSize());
+    }
+
+    @Test
+    void admitAtLeastOneRequest() {
+        AdmissionQueue queue = new AdmissionQueue(1, MAX_WAIT, () -> 0);
+        AdmissionQueue.Ticket first = queue.offer("user1");
+        AdmissionQueue.Ticket second = queue.offer("user1");
+        assertAdmitted(first);
+        assertWaiting(second, 1);
+    }
+
+    @Test
+    void rejectWhenQueueIsFull() {
+        AdmissionQueue queue = new AdmissionQueue(1, MAX_WAIT, () -> 1);
+        AdmissionQueue.Ticket first = queue.offer("user1");
+        AdmissionQueue.Ticket second = queue.offer("user2");
+        Assertions.assertNotNull(first);
+        Assertions.assertNotNull(second);
+        Assertions.assertNull(queue.offer("user3"));
+
+        second.release();
+        Assertions.assertNotNull(queue.offer("user3"));
+    }
+
+    @Test
+    void admitUsersInRoundRobinOrder() {
+        AdmissionQueue queue = new AdmissionQueue(8, MAX_WAIT, () -> 1);
+        AdmissionQueue.Ticket running = queue.offer("user1");
+        AdmissionQueue.Ticket user1First = queue.offer("user1");
+        AdmissionQueue.Ticket user1Second = queue.offer("user1");
+        AdmissionQueue.Ticket user1Third = queue.offer("user1");
+        AdmissionQueue.Ticket user2First = queue.offer("user2");
+        AdmissionQueue.Ticket user2Second = queue.offer("user2");
+        assertAdmitted(running);
+        //the n-th waiting request of each user is admitted in the n-th round
+        assertWaiting(user1First, 1);
+        assertWaiting(user2First, 2);
+        assertWaiting(user1Second, 3);
+        assertWaiting(user2Second, 4);
+        assertWaiting(user1Third, 5);
+
+        running.release();
+        assertAdmitted(user1First);
+        user1First.release();
+        assertAdmitted(user2First);
+        user2First.release();
+        assertAdmitted(user1Second);
+        user1Second.release();
+        assertAdmitted(user2Second);
+        user2Second.release();
+        assertAdmitted(user1Third);
+    }
+
+    @Test
+    void releaseWaitingRequest() {
+        AdmissionQueue queue = new AdmissionQueue(4, MAX_WAIT, () -> 1);
+        AdmissionQueue.Ticket running = queue.offer("user1");
+        AdmissionQueue.Ticket first = queue.offer("user2");
+        AdmissionQueue.Ticket second = queue.offer("user3");
+        assertWaiting(second, 2);
+
+        first.release();
+        Assertions.assertEquals(1, queue.getWaitingSize());
+        StepVerifier.create(first.positions()).expectNext(1).expectComplete().verify(Duration.ofSeconds(1));
+        assertWaiting(second, 1);
+
+        //releasing a ticket twice does not return the permit twice
+        first.release();
+        Assertions.assertEquals(1, queue.getRunningSize());
+        running.release();
+        running.release();
+        assertAdmitted(second);
+        Assertions.assertEquals(1, queue.getRunningSize());
+        Assertions.assertEquals(0, queue.getWaitingSize());
+    }
+
+    @Test
+    void timeoutWaitingRequest() {
+        AdmissionQueue queue = new AdmissionQueue(4, Duration.ofMillis(100), () -> 1);
+        AdmissionQueue.Ticket running = queue.offer("user1");
+        AdmissionQueue.Ticket waiting = queue.offer("user2");
+        assertAdmitted(running);
+        StepVerifier.create(waiting.await()).expectError(TimeoutException.class).verify(Duration.ofSeconds(1));
+        Assertions.assertEquals(0, queue.getWaitingSize());
+
+        //the admitted request is not affected by the maximum waiting time
+        running.release();
+        Assertions.assertEquals(0, queue.getRunningSize());
+    }
+
+    @Test
+    void followPermitsSupplier() {
+        AtomicInteger permits = new AtomicInteger(1);
+        AdmissionQueue queue = new AdmissionQueue(4, MAX_WAIT, permits::get);
+        AdmissionQueue.Ticket first = queue.offer("user1");
+        AdmissionQueue.Ticket second = queue.offer("user2");
+        AdmissionQueue.Ticket third = queue.offer("user3");
+        assertWaiting(second, 1);
+
+        permits.set(3);
+        first.release();
+        assertAdmitted(second);
+        assertAdmitted(third);
+        Assertions.assertEquals(2, queue.getRunningSize());
+    }
+}